@@ -0,0 +1,119 @@
+package com.twilio.video.examples.common
+
+import java.nio.ByteBuffer
+
+/**
+ * FrameBufferPool recycles the scratch memory used by frame conversion and capture paths. Arrays
+ * and direct buffers are keyed by their exact byte size, which for a given resolution and pixel
+ * format is stable from frame to frame, so steady state callers always hit the pool.
+ *
+ * Idle memory is bounded by [maxBytes]. When the bound is exceeded the least recently used
+ * sizes are evicted first.
+ */
+class FrameBufferPool(private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+    private val idle = LinkedHashMap<Key, ArrayDeque<Any>>(16, 0.75f, true)
+    private var idleBytes = 0L
+
+    @Volatile
+    var hits = 0L
+        private set
+
+    @Volatile
+    var misses = 0L
+        private set
+
+    @Volatile
+    var evictions = 0L
+        private set
+
+    /**
+     * Returns an array of exactly [size] bytes. The contents are undefined.
+     */
+    fun acquireByteArray(size: Int): ByteArray {
+        return take(Key(Kind.BYTE_ARRAY, size)) as ByteArray? ?: ByteArray(size)
+    }
+
+    /**
+     * Returns a cleared direct buffer with a capacity of exactly [size] bytes.
+     */
+    fun acquireDirectBuffer(size: Int): ByteBuffer {
+        val buffer = take(Key(Kind.DIRECT_BUFFER, size)) as ByteBuffer?
+        return buffer?.apply { clear() } ?: ByteBuffer.allocateDirect(size)
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not use the array afterwards.
+     */
+    fun release(array: ByteArray) {
+        put(Key(Kind.BYTE_ARRAY, array.size), array)
+    }
+
+    /**
+     * Returns a direct buffer to the pool. Heap buffers are ignored. The caller must not use the
+     * buffer afterwards.
+     */
+    fun release(buffer: ByteBuffer) {
+        if (buffer.isDirect) {
+            put(Key(Kind.DIRECT_BUFFER, buffer.capacity()), buffer)
+        }
+    }
+
+    /**
+     * Drops all idle memory held by the pool.
+     */
+    @Synchronized
+    fun clear() {
+        idle.clear()
+        idleBytes = 0
+    }
+
+    @Synchronized
+    fun idleBytes(): Long = idleBytes
+
+    @Synchronized
+    private fun take(key: Key): Any? {
+        val entry = idle[key]?.removeLastOrNull()
+        if (entry == null) {
+            misses++
+        } else {
+            hits++
+            idleBytes -= key.size
+        }
+        return entry
+    }
+
+    @Synchronized
+    private fun put(key: Key, entry: Any) {
+        if (key.size > maxBytes) {
+            return
+        }
+        idle.getOrPut(key) { ArrayDeque() }.addLast(entry)
+        idleBytes += key.size
+        val iterator = idle.entries.iterator()
+        while (idleBytes > maxBytes && iterator.hasNext()) {
+            val eldest = iterator.next()
+            while (idleBytes > maxBytes && eldest.value.isNotEmpty()) {
+                eldest.value.removeFirst()
+                idleBytes -= eldest.key.size
+                evictions++
+            }
+            if (eldest.value.isEmpty()) {
+                iterator.remove()
+            }
+        }
+    }
+
+    private enum class Kind { BYTE_ARRAY, DIRECT_BUFFER }
+
+    private data class Key(val kind: Kind, val size: Int)
+
+    companion object {
+        private const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+
+        /**
+         * Pool shared by the conversion helpers in this module.
+         */
+        @JvmStatic
+        val shared = FrameBufferPool()
+    }
+}
@@ -0,0 +1,301 @@
+package com.twilio.video.examples.common
+
+import java.nio.ByteBuffer
+import kotlin.math.roundToInt
+
+/**
+ * I420ArgbConverter converts I420 planes directly into ARGB_8888 pixels using precomputed
+ * fixed point lookup tables. Rotation is applied while writing each pixel so the caller never
+ * needs a second rotated copy of the frame.
+ *
+ * Instances keep per-row scratch arrays and are not thread safe.
+ */
+class I420ArgbConverter(val colorSpace: YuvColorSpace = YuvColorSpace.BT601_FULL) {
+    private val yTable = IntArray(256)
+    private val vToRTable = IntArray(256)
+    private val uToGTable = IntArray(256)
+    private val vToGTable = IntArray(256)
+    private val uToBTable = IntArray(256)
+    private var rowY = ByteArray(0)
+    private var rowU = ByteArray(0)
+    private var rowV = ByteArray(0)
+    private var chromaR = IntArray(0)
+    private var chromaG = IntArray(0)
+    private var chromaB = IntArray(0)
+    private var sumY = IntArray(0)
+    private var sumU = IntArray(0)
+    private var sumV = IntArray(0)
+    private var boxStartX = IntArray(0)
+    private var boxEndX = IntArray(0)
+    private var chromaStartX = IntArray(0)
+    private var chromaEndX = IntArray(0)
+
+    init {
+        for (i in 0 until 256) {
+            yTable[i] = toFixed(colorSpace.yScale * (i - colorSpace.yOffset)) + ROUNDING
+            vToRTable[i] = toFixed(colorSpace.vToR * (i - 128))
+            uToGTable[i] = toFixed(colorSpace.uToG * (i - 128))
+            vToGTable[i] = toFixed(colorSpace.vToG * (i - 128))
+            uToBTable[i] = toFixed(colorSpace.uToB * (i - 128))
+        }
+    }
+
+    /**
+     * Converts the provided I420 planes into [out], which must hold at least width * height
+     * pixels. The output is laid out row by row using the rotated dimensions, see
+     * [rotatedWidth] and [rotatedHeight]. The positions of the plane buffers are not modified.
+     */
+    fun convert(
+        dataY: ByteBuffer,
+        strideY: Int,
+        dataU: ByteBuffer,
+        strideU: Int,
+        dataV: ByteBuffer,
+        strideV: Int,
+        width: Int,
+        height: Int,
+        rotation: Int,
+        out: IntArray,
+    ) {
+        require(width > 0 && height > 0) { "Invalid dimensions ${width}x$height" }
+        require(out.size >= width * height) { "Output holds ${out.size} pixels, needs ${width * height}" }
+        val chromaWidth = (width + 1) / 2
+        ensureScratch(width, chromaWidth)
+        val planeY = dataY.duplicate()
+        val planeU = dataU.duplicate()
+        val planeV = dataV.duplicate()
+        val steps = writeSteps(width, height, rotation)
+        val stepX = steps[1]
+        val stepY = steps[2]
+
+        var rowStart = steps[0]
+        for (row in 0 until height) {
+            readRow(planeY, row * strideY, rowY, width)
+            if (row and 1 == 0) {
+                val chromaRow = row shr 1
+                readRow(planeU, chromaRow * strideU, rowU, chromaWidth)
+                readRow(planeV, chromaRow * strideV, rowV, chromaWidth)
+                for (col in 0 until chromaWidth) {
+                    val u = rowU[col].toInt() and 0xff
+                    val v = rowV[col].toInt() and 0xff
+                    chromaR[col] = vToRTable[v]
+                    chromaG[col] = -uToGTable[u] - vToGTable[v]
+                    chromaB[col] = uToBTable[u]
+                }
+            }
+            var dst = rowStart
+            for (col in 0 until width) {
+                val y = yTable[rowY[col].toInt() and 0xff]
+                val c = col shr 1
+                out[dst] = argb(y + chromaR[c], y + chromaG[c], y + chromaB[c])
+                dst += stepX
+            }
+            rowStart += stepY
+        }
+    }
+
+    /**
+     * Converts the provided I420 planes into an [outWidth] x [outHeight] image in [out], where the
+     * output dimensions describe the rotated image. The source is center cropped to the output
+     * aspect ratio and every output pixel is the box filtered average of the source pixels it
+     * covers, so only the output pixels go through color conversion.
+     */
+    fun convertScaled(
+        dataY: ByteBuffer,
+        strideY: Int,
+        dataU: ByteBuffer,
+        strideU: Int,
+        dataV: ByteBuffer,
+        strideV: Int,
+        width: Int,
+        height: Int,
+        rotation: Int,
+        outWidth: Int,
+        outHeight: Int,
+        out: IntArray,
+    ) {
+        require(width > 0 && height > 0) { "Invalid dimensions ${width}x$height" }
+        require(outWidth > 0 && outHeight > 0) { "Invalid output dimensions ${outWidth}x$outHeight" }
+        require(out.size >= outWidth * outHeight) {
+            "Output holds ${out.size} pixels, needs ${outWidth * outHeight}"
+        }
+        val quarterTurn = normalizeRotation(rotation) % 180 != 0
+        val targetWidth = if (quarterTurn) outHeight else outWidth
+        val targetHeight = if (quarterTurn) outWidth else outHeight
+        val crop = centerCrop(width, height, targetWidth, targetHeight)
+        val cropX = crop[0]
+        val cropY = crop[1]
+        val cropWidth = crop[2]
+        val cropHeight = crop[3]
+        val chromaWidth = (width + 1) / 2
+        ensureScratch(width, chromaWidth)
+        ensureBoxScratch(targetWidth)
+        val planeY = dataY.duplicate()
+        val planeU = dataU.duplicate()
+        val planeV = dataV.duplicate()
+
+        for (col in 0 until targetWidth) {
+            val x0 = cropX + col * cropWidth / targetWidth
+            val x1 = maxOf(x0 + 1, cropX + (col + 1) * cropWidth / targetWidth)
+            boxStartX[col] = x0
+            boxEndX[col] = x1
+            chromaStartX[col] = x0 shr 1
+            chromaEndX[col] = maxOf((x0 shr 1) + 1, (x1 + 1) shr 1)
+        }
+
+        val steps = writeSteps(targetWidth, targetHeight, rotation)
+        val stepX = steps[1]
+        val stepY = steps[2]
+        var rowStart = steps[0]
+        for (row in 0 until targetHeight) {
+            val y0 = cropY + row * cropHeight / targetHeight
+            val y1 = maxOf(y0 + 1, cropY + (row + 1) * cropHeight / targetHeight)
+            val chromaY0 = y0 shr 1
+            val chromaY1 = maxOf(chromaY0 + 1, (y1 + 1) shr 1)
+            sumY.fill(0)
+            sumU.fill(0)
+            sumV.fill(0)
+            for (sourceRow in y0 until y1) {
+                readRow(planeY, sourceRow * strideY, rowY, width)
+                accumulate(rowY, boxStartX, boxEndX, sumY, targetWidth)
+            }
+            for (chromaRow in chromaY0 until chromaY1) {
+                readRow(planeU, chromaRow * strideU, rowU, chromaWidth)
+                readRow(planeV, chromaRow * strideV, rowV, chromaWidth)
+                accumulate(rowU, chromaStartX, chromaEndX, sumU, targetWidth)
+                accumulate(rowV, chromaStartX, chromaEndX, sumV, targetWidth)
+            }
+
+            var dst = rowStart
+            for (col in 0 until targetWidth) {
+                val lumaArea = (boxEndX[col] - boxStartX[col]) * (y1 - y0)
+                val chromaArea = (chromaEndX[col] - chromaStartX[col]) * (chromaY1 - chromaY0)
+                val y = yTable[average(sumY[col], lumaArea)]
+                val u = average(sumU[col], chromaArea)
+                val v = average(sumV[col], chromaArea)
+                out[dst] = argb(
+                    y + vToRTable[v],
+                    y - uToGTable[u] - vToGTable[v],
+                    y + uToBTable[u],
+                )
+                dst += stepX
+            }
+            rowStart += stepY
+        }
+    }
+
+    private fun ensureBoxScratch(targetWidth: Int) {
+        if (sumY.size < targetWidth) {
+            sumY = IntArray(targetWidth)
+            sumU = IntArray(targetWidth)
+            sumV = IntArray(targetWidth)
+            boxStartX = IntArray(targetWidth)
+            boxEndX = IntArray(targetWidth)
+            chromaStartX = IntArray(targetWidth)
+            chromaEndX = IntArray(targetWidth)
+        }
+    }
+
+    private fun ensureScratch(width: Int, chromaWidth: Int) {
+        if (rowY.size < width) {
+            rowY = ByteArray(width)
+        }
+        if (rowU.size < chromaWidth) {
+            rowU = ByteArray(chromaWidth)
+            rowV = ByteArray(chromaWidth)
+            chromaR = IntArray(chromaWidth)
+            chromaG = IntArray(chromaWidth)
+            chromaB = IntArray(chromaWidth)
+        }
+    }
+
+    companion object {
+        private const val FIXED_SHIFT = 16
+        private const val ROUNDING = 1 shl (FIXED_SHIFT - 1)
+
+        /**
+         * Returns the width of a frame after applying the provided rotation.
+         */
+        fun rotatedWidth(width: Int, height: Int, rotation: Int): Int {
+            return if (normalizeRotation(rotation) % 180 == 0) width else height
+        }
+
+        /**
+         * Returns the height of a frame after applying the provided rotation.
+         */
+        fun rotatedHeight(width: Int, height: Int, rotation: Int): Int {
+            return if (normalizeRotation(rotation) % 180 == 0) height else width
+        }
+
+        /**
+         * Returns the largest centered crop of a [width] x [height] frame that has the aspect
+         * ratio of [targetWidth] x [targetHeight], as x, y, width and height.
+         */
+        fun centerCrop(width: Int, height: Int, targetWidth: Int, targetHeight: Int): IntArray {
+            val cropWidth: Int
+            val cropHeight: Int
+            if (width.toLong() * targetHeight > height.toLong() * targetWidth) {
+                cropWidth = maxOf(1, (height.toLong() * targetWidth / targetHeight).toInt())
+                cropHeight = height
+            } else {
+                cropWidth = width
+                cropHeight = maxOf(1, (width.toLong() * targetHeight / targetWidth).toInt())
+            }
+            return intArrayOf((width - cropWidth) / 2, (height - cropHeight) / 2, cropWidth, cropHeight)
+        }
+
+        internal fun normalizeRotation(rotation: Int): Int {
+            val normalized = ((rotation % 360) + 360) % 360
+            require(normalized % 90 == 0) { "Unsupported rotation $rotation" }
+            return normalized
+        }
+
+        /*
+         * Returns the first output index and the index steps per source column and row that
+         * write a [width] x [height] image rotated clockwise by [rotation] degrees.
+         */
+        private fun writeSteps(width: Int, height: Int, rotation: Int): IntArray {
+            val outWidth = rotatedWidth(width, height, rotation)
+            return when (normalizeRotation(rotation)) {
+                0 -> intArrayOf(0, 1, outWidth)
+                90 -> intArrayOf(height - 1, outWidth, -1)
+                180 -> intArrayOf((height - 1) * outWidth + width - 1, -1, -outWidth)
+                else -> intArrayOf((width - 1) * outWidth, -outWidth, 1)
+            }
+        }
+
+        private fun accumulate(row: ByteArray, start: IntArray, end: IntArray, sums: IntArray, count: Int) {
+            for (col in 0 until count) {
+                var sum = 0
+                for (x in start[col] until end[col]) {
+                    sum += row[x].toInt() and 0xff
+                }
+                sums[col] += sum
+            }
+        }
+
+        private fun average(sum: Int, area: Int): Int {
+            return (sum + area / 2) / area
+        }
+
+        private fun toFixed(value: Double): Int {
+            return (value * (1 shl FIXED_SHIFT)).roundToInt()
+        }
+
+        private fun readRow(plane: ByteBuffer, offset: Int, row: ByteArray, length: Int) {
+            plane.position(offset)
+            plane.get(row, 0, length)
+        }
+
+        private fun argb(r: Int, g: Int, b: Int): Int {
+            return (0xff shl 24) or
+                (clamp(r shr FIXED_SHIFT) shl 16) or
+                (clamp(g shr FIXED_SHIFT) shl 8) or
+                clamp(b shr FIXED_SHIFT)
+        }
+
+        private fun clamp(value: Int): Int {
+            return if (value < 0) 0 else if (value > 255) 255 else value
+        }
+    }
+}
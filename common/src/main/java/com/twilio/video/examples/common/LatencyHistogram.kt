@@ -0,0 +1,84 @@
+package com.twilio.video.examples.common
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * LatencyHistogram counts durations in power of two millisecond buckets, from under 1 ms up to
+ * 512 ms and above. It is cheap enough to record every frame and shows the shape of a
+ * distribution where [LatencyStats] only shows its average and maximum. All methods are thread
+ * safe.
+ */
+class LatencyHistogram {
+    private val buckets = LongArray(BUCKET_COUNT)
+    private var count = 0L
+
+    @Synchronized
+    fun record(durationNs: Long) {
+        buckets[bucketFor(durationNs)]++
+        count++
+    }
+
+    @Synchronized
+    fun count(): Long = count
+
+    /**
+     * Returns the number of durations recorded in each bucket. Bucket 0 holds durations under
+     * 1 ms and bucket i holds durations from 2^(i-1) ms up to 2^i ms, the last bucket being
+     * open ended.
+     */
+    @Synchronized
+    fun buckets(): LongArray = buckets.copyOf()
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket that contains the [percentile]th
+     * duration, or 0 when nothing has been recorded.
+     */
+    @Synchronized
+    fun percentileMs(percentile: Double): Long {
+        require(percentile in 0.0..100.0) { "Invalid percentile $percentile" }
+        if (count == 0L) {
+            return 0
+        }
+        val rank = maxOf(1L, Math.ceil(count * percentile / 100.0).toLong())
+        var seen = 0L
+        for (i in buckets.indices) {
+            seen += buckets[i]
+            if (seen >= rank) {
+                return upperBoundMs(i)
+            }
+        }
+        return upperBoundMs(BUCKET_COUNT - 1)
+    }
+
+    @Synchronized
+    fun reset() {
+        buckets.fill(0)
+        count = 0
+    }
+
+    @Synchronized
+    override fun toString(): String {
+        val builder = StringBuilder("count=$count")
+        for (i in buckets.indices) {
+            if (buckets[i] != 0L) {
+                val bound = if (i == BUCKET_COUNT - 1) ">=${upperBoundMs(i - 1)}" else "<${upperBoundMs(i)}"
+                builder.append(' ').append(bound).append("ms:").append(buckets[i])
+            }
+        }
+        return builder.toString()
+    }
+
+    companion object {
+        private const val BUCKET_COUNT = 11
+
+        internal fun bucketFor(durationNs: Long): Int {
+            val ms = TimeUnit.NANOSECONDS.toMillis(durationNs)
+            if (ms <= 0) {
+                return 0
+            }
+            return minOf(BUCKET_COUNT - 1, 64 - java.lang.Long.numberOfLeadingZeros(ms))
+        }
+
+        private fun upperBoundMs(bucket: Int): Long = 1L shl bucket
+    }
+}
@@ -0,0 +1,52 @@
+package com.twilio.video.examples.common
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * LatencyStats accumulates the count, average, maximum and most recent duration of an
+ * operation. All methods are thread safe.
+ */
+class LatencyStats {
+    private var count = 0L
+    private var totalNs = 0L
+    private var maxNs = 0L
+    private var lastNs = 0L
+
+    @Synchronized
+    fun record(durationNs: Long) {
+        count++
+        totalNs += durationNs
+        lastNs = durationNs
+        if (durationNs > maxNs) {
+            maxNs = durationNs
+        }
+    }
+
+    @Synchronized
+    fun count(): Long = count
+
+    @Synchronized
+    fun averageNs(): Long = if (count == 0L) 0 else totalNs / count
+
+    @Synchronized
+    fun maxNs(): Long = maxNs
+
+    @Synchronized
+    fun lastNs(): Long = lastNs
+
+    @Synchronized
+    fun reset() {
+        count = 0
+        totalNs = 0
+        maxNs = 0
+        lastNs = 0
+    }
+
+    @Synchronized
+    override fun toString(): String {
+        return "count=$count avg=${toMicros(averageNs())}us max=${toMicros(maxNs)}us " +
+            "last=${toMicros(lastNs)}us"
+    }
+
+    private fun toMicros(ns: Long) = TimeUnit.NANOSECONDS.toMicros(ns)
+}
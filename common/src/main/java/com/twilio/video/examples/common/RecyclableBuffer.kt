@@ -0,0 +1,44 @@
+package com.twilio.video.examples.common
+
+import tvi.webrtc.VideoFrame
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * RecyclableBuffer wraps a [VideoFrame.Buffer] and invokes [onRecycle] once the last reference
+ * to it is released, which lets capturers hand the backing memory back to a pool or a reusable
+ * slot after the SDK is done with the frame.
+ */
+class RecyclableBuffer(
+    private val delegate: VideoFrame.Buffer,
+    private val onRecycle: () -> Unit,
+) : VideoFrame.Buffer {
+    private val refCount = AtomicInteger(1)
+
+    override fun getWidth(): Int = delegate.width
+
+    override fun getHeight(): Int = delegate.height
+
+    override fun toI420(): VideoFrame.I420Buffer? = delegate.toI420()
+
+    override fun cropAndScale(
+        cropX: Int,
+        cropY: Int,
+        cropWidth: Int,
+        cropHeight: Int,
+        scaleWidth: Int,
+        scaleHeight: Int,
+    ): VideoFrame.Buffer? {
+        return delegate.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight)
+    }
+
+    override fun retain() {
+        refCount.incrementAndGet()
+    }
+
+    override fun release() {
+        if (refCount.decrementAndGet() == 0) {
+            delegate.release()
+            onRecycle()
+        }
+    }
+}
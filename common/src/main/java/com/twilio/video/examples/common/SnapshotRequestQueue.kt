@@ -0,0 +1,349 @@
+package com.twilio.video.examples.common
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import tvi.webrtc.JavaI420Buffer
+import tvi.webrtc.VideoFrame
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Output formats supported by [SnapshotRequestQueue].
+ */
+enum class SnapshotFormat {
+    /**
+     * A rotated ARGB_8888 [Bitmap].
+     */
+    BITMAP,
+
+    /**
+     * An unrotated copy of the frame as a [VideoFrame.I420Buffer] owned by the receiver.
+     */
+    I420,
+
+    /**
+     * Unrotated JPEG bytes. [Snapshot.rotation] describes how the image should be displayed.
+     */
+    JPEG,
+}
+
+/**
+ * Describes the snapshot a caller wants. A [width] or [height] of zero keeps the frame
+ * resolution. Sizes describe the rotated, upright image and the frame is center cropped to
+ * their aspect ratio.
+ */
+data class SnapshotOptions(
+    val format: SnapshotFormat = SnapshotFormat.BITMAP,
+    val width: Int = 0,
+    val height: Int = 0,
+    val jpegQuality: Int = DEFAULT_JPEG_QUALITY,
+) {
+    companion object {
+        const val DEFAULT_JPEG_QUALITY = 90
+    }
+}
+
+/**
+ * The result of a snapshot request. Exactly one of [bitmap], [i420Buffer] or [jpeg] is set,
+ * depending on the requested [SnapshotFormat].
+ */
+class Snapshot(
+    val options: SnapshotOptions,
+    val rotation: Int,
+    val timestampNs: Long,
+    val bitmap: Bitmap? = null,
+    val i420Buffer: VideoFrame.I420Buffer? = null,
+    val jpeg: ByteArray? = null,
+)
+
+/**
+ * Invoked with the snapshot, or null when the frame could not be converted.
+ */
+typealias SnapshotCallback = (Snapshot?) -> Unit
+
+/**
+ * Handle to a pending snapshot request.
+ */
+class SnapshotHandle internal constructor(
+    val options: SnapshotOptions,
+    internal val callback: SnapshotCallback,
+) {
+    private val cancelled = AtomicBoolean(false)
+
+    /**
+     * [System.nanoTime] at which the request was made.
+     */
+    val requestTimeNs = System.nanoTime()
+
+    val isCancelled: Boolean
+        get() = cancelled.get()
+
+    /**
+     * Cancels the request if it has not been fulfilled yet. The callback is not invoked for a
+     * cancelled request.
+     */
+    fun cancel() {
+        cancelled.set(true)
+    }
+}
+
+/**
+ * SnapshotRequestQueue collects snapshot requests until the next frame is available. All
+ * requests drained for a frame are fulfilled together, converting the frame once per distinct
+ * [SnapshotOptions] instead of once per request.
+ */
+class SnapshotRequestQueue {
+    private val pending = ConcurrentLinkedQueue<SnapshotHandle>()
+
+    /**
+     * True when at least one request is waiting for a frame.
+     */
+    val hasPending: Boolean
+        get() = !pending.isEmpty()
+
+    /**
+     * Adds a request that will be fulfilled with the next frame passed to [fulfil].
+     */
+    fun enqueue(
+        options: SnapshotOptions = SnapshotOptions(),
+        callback: SnapshotCallback,
+    ): SnapshotHandle {
+        return SnapshotHandle(options, callback).also { pending.add(it) }
+    }
+
+    /**
+     * Removes and returns all pending requests.
+     */
+    fun drain(): List<SnapshotHandle> {
+        val requests = ArrayList<SnapshotHandle>()
+        while (true) {
+            requests.add(pending.poll() ?: break)
+        }
+        return requests
+    }
+
+    companion object {
+        /**
+         * Converts [videoFrame] for every request and invokes their callbacks on the calling
+         * thread. The frame is not released.
+         *
+         * Callers on a thread with an EGL context, such as a [tvi.webrtc.VideoProcessor], should
+         * pass [convertTexturesOnCurrentThread] so texture frames are converted with the
+         * converter cached for that thread, see [YuvConverterCache]. Otherwise texture frames are
+         * converted by the buffer itself on its own EGL thread.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun fulfil(
+            videoFrame: VideoFrame,
+            requests: List<SnapshotHandle>,
+            convertTexturesOnCurrentThread: Boolean = false,
+        ) {
+            fulfil(videoFrame, requests, convertTexturesOnCurrentThread, JavaI420Buffer::allocate)
+        }
+
+        internal fun fulfil(
+            videoFrame: VideoFrame,
+            requests: List<SnapshotHandle>,
+            convertTexturesOnCurrentThread: Boolean,
+            allocateI420: (Int, Int) -> VideoFrame.I420Buffer,
+        ) {
+            val active = requests.filterNot { it.isCancelled }
+            if (active.isEmpty()) {
+                return
+            }
+            val results = ArrayList<Pair<SnapshotHandle, Snapshot?>>(active.size)
+            val buffer = videoFrame.buffer
+            val i420Buffer = if (convertTexturesOnCurrentThread &&
+                buffer is VideoFrame.TextureBuffer
+            ) {
+                YuvConverterCache.convert(buffer)
+            } else {
+                buffer.toI420()
+            }
+            try {
+                active.groupBy { it.options }.forEach { (options, handles) ->
+                    val snapshot = i420Buffer?.let { convert(it, videoFrame, options) }
+                    try {
+                        /*
+                         * Snapshots are owned by the receiver, so every receiver gets its own
+                         * copy. All copies are made before any callback runs, because a
+                         * receiver may release or modify its snapshot as soon as it gets it.
+                         */
+                        handles.forEachIndexed { index, handle ->
+                            val result = snapshot?.let { copyFor(it, index == 0, allocateI420) }
+                            results.add(handle to result)
+                        }
+                    } finally {
+                        snapshot?.i420Buffer?.release()
+                    }
+                }
+            } catch (e: Throwable) {
+                results.forEach { (_, result) -> result?.i420Buffer?.release() }
+                throw e
+            } finally {
+                i420Buffer?.release()
+            }
+            deliver(results)
+        }
+
+        /**
+         * Completes every request with a null snapshot, for example when the frame could not be
+         * handed off for conversion.
+         */
+        @JvmStatic
+        fun reject(requests: List<SnapshotHandle>) {
+            requests.filterNot { it.isCancelled }.forEach { it.callback(null) }
+        }
+
+        /*
+         * Invokes every callback even when one of them throws, then rethrows the first failure.
+         */
+        private fun deliver(results: List<Pair<SnapshotHandle, Snapshot?>>) {
+            var failure: Throwable? = null
+            for ((handle, result) in results) {
+                try {
+                    handle.callback(result)
+                } catch (e: Throwable) {
+                    val first = failure
+                    if (first == null) {
+                        failure = e
+                    } else {
+                        first.addSuppressed(e)
+                    }
+                }
+            }
+            failure?.let { throw it }
+        }
+
+        /*
+         * Returns a snapshot the receiver owns. The converted I420 buffer is always copied since
+         * fulfil releases it, while the first receiver of a bitmap or JPEG keeps the original.
+         */
+        private fun copyFor(
+            snapshot: Snapshot,
+            isFirst: Boolean,
+            allocateI420: (Int, Int) -> VideoFrame.I420Buffer,
+        ): Snapshot? {
+            val i420Buffer = snapshot.i420Buffer
+            if (i420Buffer != null) {
+                return Snapshot(
+                    snapshot.options,
+                    snapshot.rotation,
+                    snapshot.timestampNs,
+                    i420Buffer = copyI420(i420Buffer, allocateI420),
+                )
+            }
+            if (isFirst) {
+                return snapshot
+            }
+            val bitmap = snapshot.bitmap
+            return if (bitmap != null) {
+                val copy = bitmap.copy(bitmap.config, bitmap.isMutable) ?: return null
+                Snapshot(snapshot.options, snapshot.rotation, snapshot.timestampNs, bitmap = copy)
+            } else {
+                Snapshot(
+                    snapshot.options,
+                    snapshot.rotation,
+                    snapshot.timestampNs,
+                    jpeg = snapshot.jpeg?.copyOf(),
+                )
+            }
+        }
+
+        private fun convert(
+            i420Buffer: VideoFrame.I420Buffer,
+            videoFrame: VideoFrame,
+            options: SnapshotOptions,
+        ): Snapshot {
+            val rotation = videoFrame.rotation
+            if (options.format == SnapshotFormat.BITMAP) {
+                val bitmap = if (options.width > 0 && options.height > 0) {
+                    i420Buffer.toScaledBitmap(options.width, options.height, rotation)
+                } else {
+                    i420Buffer.toBitmap(rotation)
+                }
+                return Snapshot(options, rotation, videoFrame.timestampNs, bitmap = bitmap)
+            }
+            val scaled = scale(i420Buffer, rotation, options)
+            if (options.format == SnapshotFormat.I420) {
+                // Released by fulfil once every receiver has its own copy
+                return Snapshot(options, rotation, videoFrame.timestampNs, i420Buffer = scaled)
+            }
+            try {
+                return Snapshot(
+                    options,
+                    rotation,
+                    videoFrame.timestampNs,
+                    jpeg = toJpeg(scaled, options.jpegQuality),
+                )
+            } finally {
+                scaled.release()
+            }
+        }
+
+        /*
+         * Returns a retained buffer at the requested size, expressed in unrotated coordinates.
+         */
+        private fun scale(
+            i420Buffer: VideoFrame.I420Buffer,
+            rotation: Int,
+            options: SnapshotOptions,
+        ): VideoFrame.I420Buffer {
+            val quarterTurn = I420ArgbConverter.normalizeRotation(rotation) % 180 != 0
+            val width = if (quarterTurn) options.height else options.width
+            val height = if (quarterTurn) options.width else options.height
+            if (width <= 0 || height <= 0 ||
+                (width == i420Buffer.width && height == i420Buffer.height)
+            ) {
+                i420Buffer.retain()
+                return i420Buffer
+            }
+            val crop = I420ArgbConverter.centerCrop(i420Buffer.width, i420Buffer.height, width, height)
+            val scaled = i420Buffer.cropAndScale(crop[0], crop[1], crop[2], crop[3], width, height)
+            val scaledI420 = scaled.toI420()
+            scaled.release()
+            return scaledI420
+        }
+
+        private fun toJpeg(i420Buffer: VideoFrame.I420Buffer, quality: Int): ByteArray {
+            val yuvImage = i420ToYuvImage(i420Buffer, i420Buffer.width, i420Buffer.height)
+            val stream = ByteArrayOutputStream()
+            yuvImage.compressToJpeg(Rect(0, 0, yuvImage.width, yuvImage.height), quality, stream)
+            FrameBufferPool.shared.release(yuvImage.yuvData)
+            return stream.toByteArray()
+        }
+
+        private fun copyI420(
+            source: VideoFrame.I420Buffer,
+            allocateI420: (Int, Int) -> VideoFrame.I420Buffer,
+        ): VideoFrame.I420Buffer {
+            val copy = allocateI420(source.width, source.height)
+            val chromaWidth = (source.width + 1) / 2
+            val chromaHeight = (source.height + 1) / 2
+            copyPlane(source.dataY, source.strideY, copy.dataY, copy.strideY, source.width, source.height)
+            copyPlane(source.dataU, source.strideU, copy.dataU, copy.strideU, chromaWidth, chromaHeight)
+            copyPlane(source.dataV, source.strideV, copy.dataV, copy.strideV, chromaWidth, chromaHeight)
+            return copy
+        }
+
+        private fun copyPlane(
+            src: ByteBuffer,
+            srcStride: Int,
+            dst: ByteBuffer,
+            dstStride: Int,
+            width: Int,
+            height: Int,
+        ) {
+            val source = src.duplicate()
+            val destination = dst.duplicate()
+            for (row in 0 until height) {
+                source.limit(row * srcStride + width).position(row * srcStride)
+                destination.position(row * dstStride)
+                destination.put(source)
+            }
+        }
+    }
+}
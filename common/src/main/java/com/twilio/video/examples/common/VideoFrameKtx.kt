@@ -1,74 +1,152 @@
 package com.twilio.video.examples.common
 
 import android.graphics.Bitmap
-import android.graphics.BitmapFactory
-import android.graphics.ImageDecoder
 import android.graphics.ImageFormat
-import android.graphics.Matrix
-import android.graphics.Rect
 import android.graphics.YuvImage
-import android.os.Build
 import tvi.webrtc.VideoFrame
-import tvi.webrtc.YuvConverter
-import java.io.ByteArrayOutputStream
-import java.io.IOException
 import java.nio.ByteBuffer
 
 /**
  * Converts a [tvi.webrtc.VideoFrame] to a Bitmap. This method must be called from a thread with a
- * valid EGL context when the frame buffer is a [VideoFrame.TextureBuffer].
+ * valid EGL context when the frame buffer is a [VideoFrame.TextureBuffer]. Texture conversions use
+ * the converter cached for the calling thread, see [YuvConverterCache].
  */
 fun VideoFrame.toBitmap(): Bitmap? {
-    // Construct yuv image from image data
-    val yuvImage = if (buffer is VideoFrame.TextureBuffer) {
-        val yuvConverter = YuvConverter()
-        val i420Buffer = yuvConverter.convert(buffer as VideoFrame.TextureBuffer)
-        yuvConverter.release()
-        i420ToYuvImage(i420Buffer!!, i420Buffer.width, i420Buffer.height)
+    val i420Buffer = toI420Buffer() ?: return null
+    val bitmap = i420Buffer.toBitmap(rotation)
+    i420Buffer.release()
+    return bitmap
+}
+
+/**
+ * Converts a [VideoFrame.I420Buffer] to a Bitmap without an intermediate JPEG encode. The
+ * provided rotation is applied during conversion. When [reuseBitmap] is mutable and matches the
+ * rotated dimensions, the pixels are written into it instead of allocating a new Bitmap.
+ */
+fun VideoFrame.I420Buffer.toBitmap(
+    rotation: Int = 0,
+    reuseBitmap: Bitmap? = null,
+): Bitmap {
+    val outWidth = I420ArgbConverter.rotatedWidth(width, height, rotation)
+    val outHeight = I420ArgbConverter.rotatedHeight(width, height, rotation)
+    val scratch = argbScratch.get()
+    val pixels = scratch.pixels(outWidth * outHeight)
+    scratch.converter.convert(
+        dataY,
+        strideY,
+        dataU,
+        strideU,
+        dataV,
+        strideV,
+        width,
+        height,
+        rotation,
+        pixels,
+    )
+    return pixelsToBitmap(pixels, outWidth, outHeight, reuseBitmap)
+}
+
+/**
+ * Converts a [tvi.webrtc.VideoFrame] to a Bitmap of [targetWidth] x [targetHeight] pixels. The
+ * target size describes the rotated image. The frame is center cropped to the target aspect
+ * ratio and downscaled with a box filter while sampling the I420 planes, so the full resolution
+ * image is never materialized. This method must be called from a thread with a valid EGL context
+ * when the frame buffer is a [VideoFrame.TextureBuffer].
+ */
+fun VideoFrame.toBitmap(targetWidth: Int, targetHeight: Int): Bitmap? {
+    val i420Buffer = toI420Buffer() ?: return null
+    val bitmap = i420Buffer.toScaledBitmap(targetWidth, targetHeight, rotation)
+    i420Buffer.release()
+    return bitmap
+}
+
+/**
+ * Converts a [VideoFrame.I420Buffer] to a center cropped and box filtered Bitmap of
+ * [targetWidth] x [targetHeight] pixels, see [VideoFrame.toBitmap].
+ */
+fun VideoFrame.I420Buffer.toScaledBitmap(
+    targetWidth: Int,
+    targetHeight: Int,
+    rotation: Int = 0,
+    reuseBitmap: Bitmap? = null,
+): Bitmap {
+    val scratch = argbScratch.get()
+    val pixels = scratch.pixels(targetWidth * targetHeight)
+    scratch.converter.convertScaled(
+        dataY,
+        strideY,
+        dataU,
+        strideU,
+        dataV,
+        strideV,
+        width,
+        height,
+        rotation,
+        targetWidth,
+        targetHeight,
+        pixels,
+    )
+    return pixelsToBitmap(pixels, targetWidth, targetHeight, reuseBitmap)
+}
+
+private fun pixelsToBitmap(pixels: IntArray, width: Int, height: Int, reuseBitmap: Bitmap?): Bitmap {
+    val bitmap = if (reuseBitmap != null &&
+        reuseBitmap.isMutable &&
+        reuseBitmap.width == width &&
+        reuseBitmap.height == height &&
+        reuseBitmap.config == Bitmap.Config.ARGB_8888
+    ) {
+        reuseBitmap
     } else {
-        val i420Buffer = buffer.toI420()
-        val returnImage = i420ToYuvImage(i420Buffer!!, i420Buffer.width, i420Buffer.height)
-        i420Buffer.release()
-        returnImage
+        Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
     }
-    val stream = ByteArrayOutputStream()
-    val rect = Rect(0, 0, yuvImage.width, yuvImage.height)
-
-    // Compress YuvImage to jpeg
-    yuvImage.compressToJpeg(rect, 100, stream)
-
-    // Convert jpeg to Bitmap
-    val imageBytes = stream.toByteArray()
-    var bitmap = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-        val buffer = ByteBuffer.wrap(imageBytes)
-        val src =
-            ImageDecoder.createSource(buffer)
-        try {
-            ImageDecoder.decodeBitmap(src)
-        } catch (e: IOException) {
-            e.printStackTrace()
-            return null
-        }
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+    return bitmap
+}
+
+/**
+ * Converts a [tvi.webrtc.VideoFrame] to an unrotated NV21 [YuvImage], which can be used to
+ * encode the frame with [YuvImage.compressToJpeg]. This method must be called from a thread with
+ * a valid EGL context when the frame buffer is a [VideoFrame.TextureBuffer].
+ *
+ * The image data is borrowed from [FrameBufferPool.shared]. Callers that convert frames
+ * repeatedly should hand [YuvImage.getYuvData] back to the pool once the image is no longer used.
+ */
+fun VideoFrame.toYuvImage(): YuvImage? {
+    val i420Buffer = toI420Buffer() ?: return null
+    val yuvImage = i420ToYuvImage(i420Buffer, i420Buffer.width, i420Buffer.height)
+    i420Buffer.release()
+    return yuvImage
+}
+
+private fun VideoFrame.toI420Buffer(): VideoFrame.I420Buffer? {
+    return if (buffer is VideoFrame.TextureBuffer) {
+        YuvConverterCache.convert(buffer as VideoFrame.TextureBuffer)
     } else {
-        BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.size)
+        buffer.toI420()
     }
-    val matrix = Matrix()
-
-    // Apply any needed rotation
-    matrix.postRotate(rotation.toFloat())
-    bitmap = Bitmap.createBitmap(
-        bitmap!!,
-        0,
-        0,
-        bitmap.width,
-        bitmap.height,
-        matrix,
-        true,
-    )
-    return bitmap
 }
 
-private fun i420ToYuvImage(i420Buffer: VideoFrame.I420Buffer, width: Int, height: Int): YuvImage {
+/**
+ * Per thread converter and pixel storage so repeated conversions do not allocate.
+ */
+private class ArgbScratch {
+    val converter = I420ArgbConverter()
+    private var pixels = IntArray(0)
+
+    fun pixels(size: Int): IntArray {
+        if (pixels.size < size) {
+            pixels = IntArray(size)
+        }
+        return pixels
+    }
+}
+
+private val argbScratch = object : ThreadLocal<ArgbScratch>() {
+    override fun initialValue() = ArgbScratch()
+}
+
+internal fun i420ToYuvImage(i420Buffer: VideoFrame.I420Buffer, width: Int, height: Int): YuvImage {
     val yuvPlanes = arrayOf(
         i420Buffer.dataY,
         i420Buffer.dataU,
@@ -79,63 +157,94 @@ private fun i420ToYuvImage(i420Buffer: VideoFrame.I420Buffer, width: Int, height
         i420Buffer.strideU,
         i420Buffer.strideV,
     )
-    if (yuvStrides[0] != width) {
-        return fastI420ToYuvImage(yuvPlanes, yuvStrides, width, height)
-    }
-    if (yuvStrides[1] != width / 2) {
-        return fastI420ToYuvImage(yuvPlanes, yuvStrides, width, height)
-    }
-    if (yuvStrides[2] != width / 2) {
-        return fastI420ToYuvImage(yuvPlanes, yuvStrides, width, height)
-    }
-    val bytes = ByteArray(
-        yuvStrides[0] * height + yuvStrides[1] * height / 2 + yuvStrides[2] * height / 2,
-    )
-    var tmp = ByteBuffer.wrap(bytes, 0, width * height)
-    copyPlane(yuvPlanes[0], tmp)
-    val tmpBytes = ByteArray(width / 2 * height / 2)
-    tmp = ByteBuffer.wrap(tmpBytes, 0, width / 2 * height / 2)
-    copyPlane(yuvPlanes[2], tmp)
-    for (row in 0 until height / 2) {
-        for (col in 0 until width / 2) {
-            bytes[width * height + row * width + col * 2] =
-                tmpBytes[row * width / 2 + col]
-        }
-    }
-    copyPlane(yuvPlanes[1], tmp)
-    for (row in 0 until height / 2) {
-        for (col in 0 until width / 2) {
-            bytes[width * height + row * width + col * 2 + 1] =
-                tmpBytes[row * width / 2 + col]
-        }
+    val chromaWidth = (width + 1) / 2
+    val contiguous = yuvStrides[0] == width &&
+        yuvStrides[1] == chromaWidth &&
+        yuvStrides[2] == chromaWidth
+    val bytes = if (contiguous) {
+        i420ToNv21(yuvPlanes, width, height)
+    } else {
+        fastI420ToNv21(yuvPlanes, yuvStrides, width, height)
     }
-    return YuvImage(bytes, ImageFormat.NV21, width, height, null)
+    return YuvImage(bytes, ImageFormat.NV21, width, height, intArrayOf(width, chromaWidth * 2))
+}
+
+/**
+ * Returns the size in bytes of an NV21 image with the provided dimensions. Odd dimensions round
+ * the chroma planes up so the last column and row keep their chroma samples.
+ */
+internal fun nv21Size(width: Int, height: Int): Int {
+    return width * height + (width + 1) / 2 * ((height + 1) / 2) * 2
 }
 
-private fun fastI420ToYuvImage(
+/**
+ * Packs I420 planes without row padding into NV21. The luma plane is copied with a single bulk
+ * get and V/U are interleaved in one pass over both chroma planes.
+ */
+internal fun i420ToNv21(
+    yuvPlanes: Array<ByteBuffer>,
+    width: Int,
+    height: Int,
+): ByteArray {
+    val lumaSize = width * height
+    val chromaSize = (width + 1) / 2 * ((height + 1) / 2)
+    val bytes = FrameBufferPool.shared.acquireByteArray(nv21Size(width, height))
+    yuvPlanes[0].duplicate().apply { rewind() }.get(bytes, 0, lumaSize)
+
+    val planeU = FrameBufferPool.shared.acquireByteArray(chromaSize)
+    val planeV = FrameBufferPool.shared.acquireByteArray(chromaSize)
+    yuvPlanes[1].duplicate().apply { rewind() }.get(planeU, 0, chromaSize)
+    yuvPlanes[2].duplicate().apply { rewind() }.get(planeV, 0, chromaSize)
+    interleaveVu(planeV, planeU, chromaSize, bytes, lumaSize)
+    FrameBufferPool.shared.release(planeU)
+    FrameBufferPool.shared.release(planeV)
+    return bytes
+}
+
+/**
+ * Packs I420 planes with arbitrary strides into NV21. Each luma row is copied with a single bulk
+ * get and each chroma row pair is read in bulk before being interleaved as V/U.
+ */
+internal fun fastI420ToNv21(
     yuvPlanes: Array<ByteBuffer>,
     yuvStrides: IntArray,
     width: Int,
     height: Int,
-): YuvImage {
-    val bytes = ByteArray(width * height * 3 / 2)
-    var i = 0
+): ByteArray {
+    val bytes = FrameBufferPool.shared.acquireByteArray(nv21Size(width, height))
+    val planeY = yuvPlanes[0].duplicate()
     for (row in 0 until height) {
-        for (col in 0 until width) {
-            bytes[i++] = yuvPlanes[0].get(col + row * yuvStrides[0])
-        }
+        planeY.position(row * yuvStrides[0])
+        planeY.get(bytes, row * width, width)
     }
-    for (row in 0 until height / 2) {
-        for (col in 0 until width / 2) {
-            bytes[i++] = yuvPlanes[2].get(col + row * yuvStrides[2])
-            bytes[i++] = yuvPlanes[1].get(col + row * yuvStrides[1])
-        }
+
+    val chromaWidth = (width + 1) / 2
+    val rowU = FrameBufferPool.shared.acquireByteArray(chromaWidth)
+    val rowV = FrameBufferPool.shared.acquireByteArray(chromaWidth)
+    val planeU = yuvPlanes[1].duplicate()
+    val planeV = yuvPlanes[2].duplicate()
+    var i = width * height
+    for (row in 0 until (height + 1) / 2) {
+        planeU.position(row * yuvStrides[1])
+        planeU.get(rowU, 0, chromaWidth)
+        planeV.position(row * yuvStrides[2])
+        planeV.get(rowV, 0, chromaWidth)
+        i = interleaveVu(rowV, rowU, chromaWidth, bytes, i)
     }
-    return YuvImage(bytes, ImageFormat.NV21, width, height, null)
+    FrameBufferPool.shared.release(rowU)
+    FrameBufferPool.shared.release(rowV)
+    return bytes
 }
 
-private fun copyPlane(src: ByteBuffer, dst: ByteBuffer) {
-    src.position(0).limit(src.capacity())
-    dst.put(src)
-    dst.position(0).limit(dst.capacity())
+/**
+ * Writes [count] V/U pairs into [dst] starting at [offset] and returns the next write offset.
+ */
+private fun interleaveVu(v: ByteArray, u: ByteArray, count: Int, dst: ByteArray, offset: Int): Int {
+    var i = offset
+    for (col in 0 until count) {
+        dst[i] = v[col]
+        dst[i + 1] = u[col]
+        i += 2
+    }
+    return i
 }
@@ -0,0 +1,21 @@
+package com.twilio.video.examples.common
+
+/**
+ * YUV to RGB matrices supported by [I420ArgbConverter].
+ *
+ * [BT601_FULL] matches the colors produced by the previous JPEG based conversion, since
+ * [android.graphics.YuvImage.compressToJpeg] treats the frame data as full range JFIF YCbCr.
+ * [BT601] and [BT709] are the limited (studio swing) range variants used by libyuv.
+ */
+enum class YuvColorSpace(
+    internal val yScale: Double,
+    internal val yOffset: Int,
+    internal val vToR: Double,
+    internal val uToG: Double,
+    internal val vToG: Double,
+    internal val uToB: Double,
+) {
+    BT601_FULL(1.0, 0, 1.402, 0.344136, 0.714136, 1.772),
+    BT601(255.0 / 219.0, 16, 1.596027, 0.391762, 0.812968, 2.017232),
+    BT709(255.0 / 219.0, 16, 1.792741, 0.213249, 0.532909, 2.112402),
+}
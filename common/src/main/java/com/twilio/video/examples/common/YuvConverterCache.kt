@@ -0,0 +1,56 @@
+package com.twilio.video.examples.common
+
+import tvi.webrtc.VideoFrame
+import tvi.webrtc.YuvConverter
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * YuvConverterCache keeps one [YuvConverter] per EGL thread so repeated texture conversions do
+ * not compile shaders and allocate framebuffers for every frame.
+ *
+ * A converter is bound to the EGL context of the thread that created it. Call
+ * [releaseForCurrentThread] from that same thread before the context is torn down, for example
+ * from [tvi.webrtc.VideoProcessor.onCapturerStopped].
+ */
+object YuvConverterCache {
+    private val converters = ThreadLocal<YuvConverter?>()
+    private val createdConverters = AtomicLong()
+
+    /**
+     * Latency of each [convert] call, including converter creation when it happens.
+     */
+    @JvmStatic
+    val conversionStats = LatencyStats()
+
+    /**
+     * Total number of converters created since the process started.
+     */
+    @JvmStatic
+    val creationCount: Long
+        get() = createdConverters.get()
+
+    /**
+     * Converts a texture buffer to I420 using the converter cached for the calling thread. Must
+     * be called from a thread with a valid EGL context.
+     */
+    @JvmStatic
+    fun convert(textureBuffer: VideoFrame.TextureBuffer): VideoFrame.I420Buffer? {
+        val startNs = System.nanoTime()
+        val converter = converters.get() ?: YuvConverter().also {
+            converters.set(it)
+            createdConverters.incrementAndGet()
+        }
+        val i420Buffer = converter.convert(textureBuffer)
+        conversionStats.record(System.nanoTime() - startNs)
+        return i420Buffer
+    }
+
+    /**
+     * Releases the converter cached for the calling thread, if any.
+     */
+    @JvmStatic
+    fun releaseForCurrentThread() {
+        converters.get()?.release()
+        converters.remove()
+    }
+}
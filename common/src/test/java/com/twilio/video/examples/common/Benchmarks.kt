@@ -0,0 +1,23 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assume.assumeTrue
+
+/**
+ * Wall clock measurements depend on the machine and its load, so they are kept out of the unit
+ * tests. Benchmarks only run with `./gradlew test -Pbenchmark` and report their results instead
+ * of asserting on them.
+ */
+internal object Benchmarks {
+    private val isEnabled = java.lang.Boolean.getBoolean("benchmark")
+
+    /**
+     * Skips the calling test unless benchmarks were requested.
+     */
+    fun assumeEnabled() {
+        assumeTrue("Benchmarks run with -Pbenchmark", isEnabled)
+    }
+
+    fun report(name: String, result: String) {
+        println("$name: $result")
+    }
+}
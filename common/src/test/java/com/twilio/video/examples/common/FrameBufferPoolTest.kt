@@ -0,0 +1,68 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FrameBufferPoolTest {
+    @Test
+    fun `released arrays are reused for the same size`() {
+        val pool = FrameBufferPool(1024)
+        val first = pool.acquireByteArray(100)
+        pool.release(first)
+
+        assertSame(first, pool.acquireByteArray(100))
+        assertNotSame(first, pool.acquireByteArray(100))
+        assertEquals(1, pool.hits)
+        assertEquals(2, pool.misses)
+    }
+
+    @Test
+    fun `arrays and direct buffers do not share entries`() {
+        val pool = FrameBufferPool(1024)
+        pool.release(pool.acquireByteArray(64))
+
+        val buffer = pool.acquireDirectBuffer(64)
+        assertTrue(buffer.isDirect)
+        assertEquals(64, buffer.capacity())
+        assertEquals(0, pool.hits)
+    }
+
+    @Test
+    fun `direct buffers are returned cleared`() {
+        val pool = FrameBufferPool(1024)
+        val buffer = pool.acquireDirectBuffer(16)
+        buffer.position(8).limit(12)
+        pool.release(buffer)
+
+        val reused = pool.acquireDirectBuffer(16)
+        assertSame(buffer, reused)
+        assertEquals(0, reused.position())
+        assertEquals(16, reused.limit())
+    }
+
+    @Test
+    fun `least recently used sizes are evicted first`() {
+        val pool = FrameBufferPool(300)
+        val small = pool.acquireByteArray(100)
+        val medium = pool.acquireByteArray(150)
+        val large = pool.acquireByteArray(200)
+        pool.release(small)
+        pool.release(medium)
+        pool.release(large)
+
+        assertEquals(200, pool.idleBytes())
+        assertEquals(2, pool.evictions)
+        assertSame(large, pool.acquireByteArray(200))
+    }
+
+    @Test
+    fun `oversized entries are not retained`() {
+        val pool = FrameBufferPool(10)
+        pool.release(ByteArray(11))
+
+        assertEquals(0, pool.idleBytes())
+    }
+}
@@ -0,0 +1,151 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.random.Random
+
+/**
+ * Verifies [I420ArgbConverter] against a floating point model of the previous NV21 to JPEG to
+ * Bitmap path, which decoded the frame as full range BT.601.
+ */
+class I420ArgbConverterTest {
+    @Test
+    fun `conversion matches floating point reference`() {
+        val frame = I420TestFrame.random(64, 48, Random(1))
+        for (colorSpace in YuvColorSpace.values()) {
+            val out = IntArray(frame.width * frame.height)
+            frame.convert(I420ArgbConverter(colorSpace), 0, out)
+            for (row in 0 until frame.height) {
+                for (col in 0 until frame.width) {
+                    assertPixelEquals(
+                        frame.reference(colorSpace, col, row),
+                        out[row * frame.width + col],
+                    )
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `conversion honours padded strides and odd dimensions`() {
+        val frame = I420TestFrame.random(37, 21, Random(2), padding = 13)
+        val out = IntArray(frame.width * frame.height)
+        frame.convert(I420ArgbConverter(), 0, out)
+        for (row in 0 until frame.height) {
+            for (col in 0 until frame.width) {
+                assertPixelEquals(
+                    frame.reference(YuvColorSpace.BT601_FULL, col, row),
+                    out[row * frame.width + col],
+                )
+            }
+        }
+    }
+
+    @Test
+    fun `rotation is folded into the write`() {
+        val frame = I420TestFrame.random(6, 4, Random(3))
+        val converter = I420ArgbConverter()
+        val upright = IntArray(24)
+        frame.convert(converter, 0, upright)
+        for (rotation in intArrayOf(90, 180, 270, -90)) {
+            val rotated = IntArray(24)
+            frame.convert(converter, rotation, rotated)
+            assertArrayEquals(rotate(upright, 6, 4, rotation), rotated)
+        }
+    }
+
+    @Test
+    fun `rotated dimensions swap for quarter turns`() {
+        assertEquals(480, I420ArgbConverter.rotatedWidth(640, 480, 90))
+        assertEquals(640, I420ArgbConverter.rotatedHeight(640, 480, 270))
+        assertEquals(640, I420ArgbConverter.rotatedWidth(640, 480, 180))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `unsupported rotation is rejected`() {
+        I420ArgbConverter.rotatedWidth(640, 480, 45)
+    }
+
+    @Test
+    fun `scaled conversion averages each source box`() {
+        val frame = I420TestFrame.filled(8, 4, 90, 200) { col, row -> col * 20 + row * 7 }
+        val out = IntArray(8)
+        frame.convertScaled(I420ArgbConverter(), 0, 4, 2, out)
+        for (row in 0 until 2) {
+            for (col in 0 until 4) {
+                var sum = 0
+                for (y in row * 2 until row * 2 + 2) {
+                    for (x in col * 2 until col * 2 + 2) {
+                        sum += frame.dataY.get(y * 8 + x).toInt() and 0xff
+                    }
+                }
+                val averaged = I420TestFrame.filled(1, 1, 90, 200) { _, _ -> (sum + 2) / 4 }
+                assertPixelEquals(averaged.reference(YuvColorSpace.BT601_FULL, 0, 0), out[row * 4 + col])
+            }
+        }
+    }
+
+    @Test
+    fun `scaled conversion center crops to the target aspect ratio`() {
+        // Black left and right quarters around a uniform center square
+        val frame = I420TestFrame.filled(64, 32, 128, 128) { col, _ ->
+            if (col < 16 || col >= 48) 0 else 180
+        }
+        val out = IntArray(16 * 16)
+        frame.convertScaled(I420ArgbConverter(), 0, 16, 16, out)
+        val center = frame.reference(YuvColorSpace.BT601_FULL, 32, 16)
+        out.forEach { assertPixelEquals(center, it) }
+        assertArrayEquals(intArrayOf(16, 0, 32, 32), I420ArgbConverter.centerCrop(64, 32, 16, 16))
+        assertArrayEquals(intArrayOf(0, 7, 64, 18), I420ArgbConverter.centerCrop(64, 32, 160, 45))
+    }
+
+    @Test
+    fun `scaled conversion applies rotation to the target size`() {
+        val frame = I420TestFrame.random(16, 8, Random(8))
+        val converter = I420ArgbConverter()
+        val upright = IntArray(32)
+        frame.convertScaled(converter, 0, 8, 4, upright)
+        for (rotation in intArrayOf(90, 180, 270)) {
+            val rotated = IntArray(32)
+            val quarterTurn = rotation % 180 != 0
+            frame.convertScaled(
+                converter,
+                rotation,
+                if (quarterTurn) 4 else 8,
+                if (quarterTurn) 8 else 4,
+                rotated,
+            )
+            assertArrayEquals(rotate(upright, 8, 4, rotation), rotated)
+        }
+    }
+
+    private fun assertPixelEquals(expected: Int, actual: Int) {
+        for (shift in intArrayOf(24, 16, 8, 0)) {
+            val difference = abs((expected shr shift and 0xff) - (actual shr shift and 0xff))
+            assertTrue(
+                "Expected ${Integer.toHexString(expected)} but was ${Integer.toHexString(actual)}",
+                difference <= 1,
+            )
+        }
+    }
+
+    private fun rotate(pixels: IntArray, width: Int, height: Int, rotation: Int): IntArray {
+        val rotated = IntArray(pixels.size)
+        val normalized = ((rotation % 360) + 360) % 360
+        for (row in 0 until height) {
+            for (col in 0 until width) {
+                val index = when (normalized) {
+                    90 -> col * height + (height - 1 - row)
+                    180 -> (height - 1 - row) * width + (width - 1 - col)
+                    270 -> (width - 1 - col) * height + row
+                    else -> row * width + col
+                }
+                rotated[index] = pixels[row * width + col]
+            }
+        }
+        return rotated
+    }
+}
@@ -0,0 +1,158 @@
+package com.twilio.video.examples.common
+
+import java.nio.ByteBuffer
+import kotlin.math.roundToInt
+import kotlin.random.Random
+
+/**
+ * I420 test frame with optional row padding on every plane.
+ */
+internal class I420TestFrame(
+    val width: Int,
+    val height: Int,
+    val dataY: ByteBuffer,
+    val strideY: Int,
+    val dataU: ByteBuffer,
+    val strideU: Int,
+    val dataV: ByteBuffer,
+    val strideV: Int,
+) {
+    fun convert(converter: I420ArgbConverter, rotation: Int, out: IntArray) {
+        converter.convert(
+            dataY,
+            strideY,
+            dataU,
+            strideU,
+            dataV,
+            strideV,
+            width,
+            height,
+            rotation,
+            out,
+        )
+    }
+
+    val planes: Array<ByteBuffer>
+        get() = arrayOf(dataY, dataU, dataV)
+
+    val strides: IntArray
+        get() = intArrayOf(strideY, strideU, strideV)
+
+    /**
+     * Packs the frame into NV21 one byte at a time using absolute reads.
+     */
+    fun referenceNv21(): ByteArray {
+        val chromaWidth = (width + 1) / 2
+        val chromaHeight = (height + 1) / 2
+        val nv21 = ByteArray(width * height + 2 * chromaWidth * chromaHeight)
+        var i = 0
+        for (row in 0 until height) {
+            for (col in 0 until width) {
+                nv21[i++] = dataY.get(row * strideY + col)
+            }
+        }
+        for (row in 0 until chromaHeight) {
+            for (col in 0 until chromaWidth) {
+                nv21[i++] = dataV.get(row * strideV + col)
+                nv21[i++] = dataU.get(row * strideU + col)
+            }
+        }
+        return nv21
+    }
+
+    fun convertScaled(
+        converter: I420ArgbConverter,
+        rotation: Int,
+        outWidth: Int,
+        outHeight: Int,
+        out: IntArray,
+    ) {
+        converter.convertScaled(
+            dataY,
+            strideY,
+            dataU,
+            strideU,
+            dataV,
+            strideV,
+            width,
+            height,
+            rotation,
+            outWidth,
+            outHeight,
+            out,
+        )
+    }
+
+    fun reference(colorSpace: YuvColorSpace, col: Int, row: Int): Int {
+        val y = dataY.get(row * strideY + col).toInt() and 0xff
+        val u = (dataU.get(row / 2 * strideU + col / 2).toInt() and 0xff) - 128
+        val v = (dataV.get(row / 2 * strideV + col / 2).toInt() and 0xff) - 128
+        val luma = colorSpace.yScale * (y - colorSpace.yOffset)
+        val r = channel(luma + colorSpace.vToR * v)
+        val g = channel(luma - colorSpace.uToG * u - colorSpace.vToG * v)
+        val b = channel(luma + colorSpace.uToB * u)
+        return (0xff shl 24) or (r shl 16) or (g shl 8) or b
+    }
+
+    private fun channel(value: Double): Int {
+        return value.roundToInt().coerceIn(0, 255)
+    }
+
+    companion object {
+        fun random(width: Int, height: Int, random: Random, padding: Int = 0): I420TestFrame {
+            val chromaWidth = (width + 1) / 2
+            val chromaHeight = (height + 1) / 2
+            val strideY = width + padding
+            val strideUv = chromaWidth + padding
+            return I420TestFrame(
+                width,
+                height,
+                randomPlane(strideY * height, random),
+                strideY,
+                randomPlane(strideUv * chromaHeight, random),
+                strideUv,
+                randomPlane(strideUv * chromaHeight, random),
+                strideUv,
+            )
+        }
+
+        /**
+         * Creates a frame whose luma is produced by [luma] and whose chroma is constant.
+         */
+        fun filled(width: Int, height: Int, u: Int, v: Int, luma: (Int, Int) -> Int): I420TestFrame {
+            val chromaWidth = (width + 1) / 2
+            val chromaSize = chromaWidth * ((height + 1) / 2)
+            val dataY = ByteBuffer.allocateDirect(width * height)
+            for (row in 0 until height) {
+                for (col in 0 until width) {
+                    dataY.put(luma(col, row).toByte())
+                }
+            }
+            dataY.rewind()
+            return I420TestFrame(
+                width,
+                height,
+                dataY,
+                width,
+                filledPlane(chromaSize, u),
+                chromaWidth,
+                filledPlane(chromaSize, v),
+                chromaWidth,
+            )
+        }
+
+        private fun filledPlane(size: Int, value: Int): ByteBuffer {
+            val plane = ByteBuffer.allocateDirect(size)
+            repeat(size) { plane.put(value.toByte()) }
+            plane.rewind()
+            return plane
+        }
+
+        private fun randomPlane(size: Int, random: Random): ByteBuffer {
+            val plane = ByteBuffer.allocateDirect(size)
+            plane.put(random.nextBytes(size))
+            plane.rewind()
+            return plane
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.twilio.video.examples.common
+
+import org.junit.Before
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * Compares the byte-at-a-time NV21 packing that fastI420ToYuvImage used to do with
+ * [fastI420ToNv21] on frames with padded strides.
+ */
+class I420ToNv21Benchmark {
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+    }
+
+    @Test
+    fun `byte at a time vs bulk rows with padded strides`() {
+        val random = Random(8)
+        for ((width, height) in listOf(640 to 360, 1280 to 720, 1920 to 1080)) {
+            val frame = I420TestFrame.random(width, height, random, padding = 32)
+            val byteAtATimeNs = timePerFrame { frame.referenceNv21() }
+            val bulkRowsNs = timePerFrame {
+                val nv21 = fastI420ToNv21(frame.planes, frame.strides, width, height)
+                FrameBufferPool.shared.release(nv21)
+            }
+            Benchmarks.report(
+                "I420 to NV21 ${width}x$height",
+                "byte at a time ${byteAtATimeNs / 1000}us, bulk rows ${bulkRowsNs / 1000}us, " +
+                    String.format("%.1fx", byteAtATimeNs.toDouble() / bulkRowsNs),
+            )
+        }
+    }
+
+    private inline fun timePerFrame(convert: () -> Unit): Long {
+        // Warm up the JIT before timing
+        repeat(WARM_UP_FRAMES) { convert() }
+        val startNs = System.nanoTime()
+        repeat(TIMED_FRAMES) { convert() }
+        return (System.nanoTime() - startNs) / TIMED_FRAMES
+    }
+
+    companion object {
+        private const val WARM_UP_FRAMES = 50
+        private const val TIMED_FRAMES = 200
+    }
+}
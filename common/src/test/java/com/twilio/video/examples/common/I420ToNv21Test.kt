@@ -0,0 +1,60 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import kotlin.random.Random
+
+class I420ToNv21Test {
+    @Test
+    fun `fast path matches reference for common resolutions`() {
+        val random = Random(4)
+        for ((width, height) in listOf(640 to 360, 1280 to 720, 1920 to 1080)) {
+            for (padding in intArrayOf(0, 32)) {
+                val frame = I420TestFrame.random(width, height, random, padding)
+                val nv21 = fastI420ToNv21(frame.planes, frame.strides, width, height)
+                assertArrayEquals(frame.referenceNv21(), nv21)
+            }
+        }
+    }
+
+    @Test
+    fun `contiguous path matches reference for arbitrary dimensions`() {
+        val random = Random(6)
+        repeat(200) {
+            val width = random.nextInt(1, 65)
+            val height = random.nextInt(1, 65)
+            val frame = I420TestFrame.random(width, height, random)
+            val nv21 = i420ToNv21(frame.planes, width, height)
+            assertEquals("${width}x$height", nv21Size(width, height), nv21.size)
+            assertArrayEquals("${width}x$height", frame.referenceNv21(), nv21)
+        }
+    }
+
+    @Test
+    fun `fast path matches reference for arbitrary dimensions and strides`() {
+        val random = Random(7)
+        repeat(200) {
+            val width = random.nextInt(1, 65)
+            val height = random.nextInt(1, 65)
+            val frame = I420TestFrame.random(width, height, random, random.nextInt(1, 17))
+            val nv21 = fastI420ToNv21(frame.planes, frame.strides, width, height)
+            assertArrayEquals("${width}x$height", frame.referenceNv21(), nv21)
+        }
+    }
+
+    @Test
+    fun `odd dimensions keep the last chroma column and row`() {
+        assertEquals(15 + 2 * 3 * 2, nv21Size(5, 3))
+        assertEquals(640 * 360 * 3 / 2, nv21Size(640, 360))
+    }
+
+    @Test
+    fun `fast path leaves plane positions untouched`() {
+        val frame = I420TestFrame.random(16, 8, Random(5), padding = 3)
+        fastI420ToNv21(frame.planes, frame.strides, 16, 8)
+        for (plane in frame.planes) {
+            assertArrayEquals(intArrayOf(0, plane.capacity()), intArrayOf(plane.position(), plane.limit()))
+        }
+    }
+}
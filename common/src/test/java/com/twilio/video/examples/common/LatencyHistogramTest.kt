@@ -0,0 +1,43 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class LatencyHistogramTest {
+    @Test
+    fun `durations land in power of two millisecond buckets`() {
+        assertEquals(0, LatencyHistogram.bucketFor(TimeUnit.MICROSECONDS.toNanos(900)))
+        assertEquals(1, LatencyHistogram.bucketFor(millis(1)))
+        assertEquals(2, LatencyHistogram.bucketFor(millis(3)))
+        assertEquals(5, LatencyHistogram.bucketFor(millis(16)))
+        assertEquals(10, LatencyHistogram.bucketFor(millis(512)))
+        assertEquals(10, LatencyHistogram.bucketFor(millis(60_000)))
+    }
+
+    @Test
+    fun `percentiles report the bucket upper bound`() {
+        val histogram = LatencyHistogram()
+        repeat(90) { histogram.record(TimeUnit.MICROSECONDS.toNanos(500)) }
+        repeat(10) { histogram.record(millis(20)) }
+
+        assertEquals(100, histogram.count())
+        assertEquals(1, histogram.percentileMs(50.0))
+        assertEquals(1, histogram.percentileMs(90.0))
+        assertEquals(32, histogram.percentileMs(99.0))
+    }
+
+    @Test
+    fun `reset clears every bucket`() {
+        val histogram = LatencyHistogram()
+        histogram.record(millis(5))
+        histogram.reset()
+
+        assertEquals(0, histogram.count())
+        assertEquals(0, histogram.percentileMs(99.0))
+        assertArrayEquals(LongArray(11), histogram.buckets())
+    }
+
+    private fun millis(ms: Long) = TimeUnit.MILLISECONDS.toNanos(ms)
+}
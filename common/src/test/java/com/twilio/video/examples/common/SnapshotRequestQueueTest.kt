@@ -0,0 +1,186 @@
+package com.twilio.video.examples.common
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import tvi.webrtc.VideoFrame
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class SnapshotRequestQueueTest {
+    private val allocated = ArrayList<FakeI420Buffer>()
+    private val allocate: (Int, Int) -> VideoFrame.I420Buffer = { width, height ->
+        FakeI420Buffer.allocate(width, height).also { allocated.add(it) }
+    }
+
+    @Test
+    fun `every I420 receiver gets its own copy made before any callback`() {
+        val source = FakeI420Buffer.random(37, 21, Random(1))
+        val frame = VideoFrame(source, 0, 0)
+        val queue = SnapshotRequestQueue()
+        val options = SnapshotOptions(SnapshotFormat.I420)
+        var first: VideoFrame.I420Buffer? = null
+        var second: VideoFrame.I420Buffer? = null
+        queue.enqueue(options) { snapshot ->
+            first = snapshot!!.i420Buffer
+            first!!.release()
+        }
+        queue.enqueue(options) { snapshot ->
+            second = snapshot!!.i420Buffer
+            assertPlanesEqual(source, second!!)
+        }
+
+        SnapshotRequestQueue.fulfil(frame, queue.drain(), false, allocate)
+
+        assertNotNull(second)
+        assertNotSame(first, second)
+        assertEquals(2, allocated.size)
+        assertEquals(1, source.refCount)
+        second!!.release()
+        assertTrue(allocated.all { it.refCount == 0 })
+    }
+
+    @Test
+    fun `a throwing receiver does not skip the others or leak the frame`() {
+        val source = FakeI420Buffer.random(16, 16, Random(2))
+        val frame = VideoFrame(source, 0, 0)
+        val queue = SnapshotRequestQueue()
+        val options = SnapshotOptions(SnapshotFormat.I420)
+        var delivered = 0
+        queue.enqueue(options) { throw IllegalStateException("receiver failed") }
+        queue.enqueue(options) { snapshot ->
+            delivered++
+            snapshot!!.i420Buffer!!.release()
+        }
+
+        try {
+            SnapshotRequestQueue.fulfil(frame, queue.drain(), false, allocate)
+            fail("Expected the receiver failure to be rethrown")
+        } catch (e: IllegalStateException) {
+            assertEquals("receiver failed", e.message)
+        }
+
+        assertEquals(1, delivered)
+        assertEquals(1, source.refCount)
+    }
+
+    @Test
+    fun `cancelled requests are not converted`() {
+        val source = FakeI420Buffer.random(8, 8, Random(3))
+        val queue = SnapshotRequestQueue()
+        val handle = queue.enqueue(SnapshotOptions(SnapshotFormat.I420)) {
+            fail("Cancelled request invoked")
+        }
+        handle.cancel()
+
+        SnapshotRequestQueue.fulfil(VideoFrame(source, 0, 0), queue.drain(), false, allocate)
+
+        assertTrue(allocated.isEmpty())
+        assertEquals(1, source.refCount)
+    }
+
+    private fun assertPlanesEqual(expected: VideoFrame.I420Buffer, actual: VideoFrame.I420Buffer) {
+        assertEquals(expected.width, actual.width)
+        assertEquals(expected.height, actual.height)
+        val chromaWidth = (expected.width + 1) / 2
+        val chromaHeight = (expected.height + 1) / 2
+        val expectedPlanes = arrayOf(expected.dataY, expected.dataU, expected.dataV)
+        val expectedStrides = intArrayOf(expected.strideY, expected.strideU, expected.strideV)
+        val actualPlanes = arrayOf(actual.dataY, actual.dataU, actual.dataV)
+        val actualStrides = intArrayOf(actual.strideY, actual.strideU, actual.strideV)
+        for (plane in 0 until 3) {
+            assertPlaneEquals(
+                expectedPlanes[plane],
+                expectedStrides[plane],
+                actualPlanes[plane],
+                actualStrides[plane],
+                if (plane == 0) expected.width else chromaWidth,
+                if (plane == 0) expected.height else chromaHeight,
+            )
+        }
+    }
+
+    private fun assertPlaneEquals(
+        expected: ByteBuffer,
+        expectedStride: Int,
+        actual: ByteBuffer,
+        actualStride: Int,
+        width: Int,
+        height: Int,
+    ) {
+        for (row in 0 until height) {
+            for (col in 0 until width) {
+                assertEquals(
+                    expected.get(row * expectedStride + col),
+                    actual.get(row * actualStride + col),
+                )
+            }
+        }
+    }
+
+    /**
+     * Reference counted I420 buffer whose planes can no longer be read once it is released, like
+     * the native memory of [tvi.webrtc.JavaI420Buffer].
+     */
+    private class FakeI420Buffer(private val frame: I420TestFrame) : VideoFrame.I420Buffer {
+        var refCount = 1
+            private set
+
+        override fun getWidth(): Int = frame.width
+        override fun getHeight(): Int = frame.height
+        override fun getDataY(): ByteBuffer = plane(frame.dataY)
+        override fun getDataU(): ByteBuffer = plane(frame.dataU)
+        override fun getDataV(): ByteBuffer = plane(frame.dataV)
+        override fun getStrideY(): Int = frame.strideY
+        override fun getStrideU(): Int = frame.strideU
+        override fun getStrideV(): Int = frame.strideV
+
+        override fun toI420(): VideoFrame.I420Buffer {
+            retain()
+            return this
+        }
+
+        override fun retain() {
+            checkAlive()
+            refCount++
+        }
+
+        override fun release() {
+            checkAlive()
+            refCount--
+        }
+
+        override fun cropAndScale(
+            cropX: Int,
+            cropY: Int,
+            cropWidth: Int,
+            cropHeight: Int,
+            scaleWidth: Int,
+            scaleHeight: Int,
+        ): VideoFrame.Buffer {
+            throw UnsupportedOperationException()
+        }
+
+        private fun plane(data: ByteBuffer): ByteBuffer {
+            checkAlive()
+            return data
+        }
+
+        private fun checkAlive() {
+            check(refCount > 0) { "Buffer used after it was released" }
+        }
+
+        companion object {
+            fun allocate(width: Int, height: Int): FakeI420Buffer {
+                return FakeI420Buffer(I420TestFrame.filled(width, height, 0, 0) { _, _ -> 0 })
+            }
+
+            fun random(width: Int, height: Int, random: Random): FakeI420Buffer {
+                return FakeI420Buffer(I420TestFrame.random(width, height, random, padding = 3))
+            }
+        }
+    }
+}
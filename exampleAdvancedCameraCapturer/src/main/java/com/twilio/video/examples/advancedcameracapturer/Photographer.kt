@@ -2,22 +2,32 @@ package com.twilio.video.examples.advancedcameracapturer
 
 import android.graphics.Bitmap
 import com.twilio.video.VideoView
-import com.twilio.video.examples.common.toBitmap
+import com.twilio.video.examples.common.SnapshotCallback
+import com.twilio.video.examples.common.SnapshotHandle
+import com.twilio.video.examples.common.SnapshotOptions
+import com.twilio.video.examples.common.SnapshotRequestQueue
+import com.twilio.video.examples.common.YuvConverterCache
 import tvi.webrtc.VideoFrame
 import tvi.webrtc.VideoProcessor
 import tvi.webrtc.VideoSink
-import java.util.concurrent.atomic.AtomicReference
 
 typealias PictureListener = (Bitmap?) -> Unit
 
 class Photographer(private val videoView: VideoView) : VideoProcessor {
-    private val pictureRequest = AtomicReference<PictureListener?>(null)
+    private val pictureRequests = SnapshotRequestQueue()
+
+    /**
+     * Frames are converted on the capturer thread, so release the converter cached for that
+     * thread once capturing stops.
+     */
+    override fun onCapturerStopped() {
+        YuvConverterCache.releaseForCurrentThread()
+    }
 
     /**
      * These methods are part of the [tvi.webrtc.VideoProcessor] API, but are not required to be
      * implemented for this example.
      */
-    override fun onCapturerStopped() {}
     override fun onCapturerStarted(success: Boolean) {}
     override fun setSink(videoSink: VideoSink?) {}
     override fun onFrameCaptured(frame: VideoFrame?) {}
@@ -35,23 +45,40 @@ class Photographer(private val videoView: VideoView) : VideoProcessor {
         requireNotNull(videoFrame)
         videoFrame.retain()
 
-        /**
-         * Get the picture request and then capture the current frame to a Bitmap. The
-         * picture request is cleared for subsequent calls to [takePicture].
-         */
-        pictureRequest.getAndSet(null)?.invoke(videoFrame.toBitmap())
-
-        /**
-         * Adapt the current frame and forward to the video view.
-         */
-        VideoProcessor.applyFrameAdaptationParameters(videoFrame, parameters)?.let {
-            videoView.onFrame(it)
-            it.release()
-        } ?: videoView.onFrame(videoFrame)
-        videoFrame.release()
+        try {
+            /**
+             * Drain the pending picture requests and capture the current frame for all of them at
+             * once. Requests made after this point are fulfilled with the next frame.
+             */
+            if (pictureRequests.hasPending) {
+                SnapshotRequestQueue.fulfil(
+                    videoFrame,
+                    pictureRequests.drain(),
+                    convertTexturesOnCurrentThread = true,
+                )
+            }
+        } finally {
+            /**
+             * Adapt the current frame and forward to the video view, even if a picture callback
+             * failed, so the preview keeps running and the frame is released.
+             */
+            VideoProcessor.applyFrameAdaptationParameters(videoFrame, parameters)?.let {
+                videoView.onFrame(it)
+                it.release()
+            } ?: videoView.onFrame(videoFrame)
+            videoFrame.release()
+        }
     }
 
-    fun takePicture(pictureListener: PictureListener) {
-        this.pictureRequest.set(pictureListener)
+    fun takePicture(pictureListener: PictureListener): SnapshotHandle {
+        return takePicture(SnapshotOptions()) { pictureListener(it?.bitmap) }
+    }
+
+    /**
+     * Requests a picture of the next captured frame in the provided format. The callback is
+     * invoked on the capturer thread.
+     */
+    fun takePicture(options: SnapshotOptions, callback: SnapshotCallback): SnapshotHandle {
+        return pictureRequests.enqueue(options, callback)
     }
 }
@@ -0,0 +1,38 @@
+package com.twilio.exampleaudiosink;
+
+import android.media.MediaCodec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The encoder and muxer calls made by {@link AacFileWriter}. {@link MediaCodecAacEncoder} backs
+ * them with {@link MediaCodec} and {@link android.media.MediaMuxer}, and tests replace them to
+ * check how buffers are queued and drained without a device.
+ */
+interface AacEncoder {
+    /** Creates the MP4 file at the given path, replacing an existing file. */
+    void createMuxer(String path) throws IOException;
+
+    /** Configures and starts an AAC-LC encoder for 16 bit PCM in the given format. */
+    void startCodec(int sampleRate, int channels, int bitrate) throws IOException;
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /** Adds a track with the current output format of the encoder and starts the muxer. */
+    void startMuxer();
+
+    void writeSampleData(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo);
+
+    /** Stops and releases the encoder and the muxer. Errors are logged, not thrown. */
+    void release();
+}
@@ -0,0 +1,264 @@
+package com.twilio.exampleaudiosink;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+import android.os.Debug;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Encodes PCM samples to AAC-LC and streams them into an MP4 file with {@link MediaCodec} and
+ * {@link MediaMuxer}. Samples are encoded as they are written, so memory use does not grow with
+ * the length of the recording. At 64 kbps a minute of audio takes about 480 KB, compared to about
+ * 10 MB of 44.1kHz stereo PCM in a WAV file.
+ *
+ * <p>The encoder is configured with the format of the first samples. Only 16 bit PCM is
+ * supported. The CPU time spent encoding is measured on the writing thread and logged when the
+ * file is finished as the cost per minute of audio.
+ */
+public class AacFileWriter implements RecordingFileWriter {
+    private static final String TAG = "AacFileWriter";
+
+    public static final int DEFAULT_BITRATE = 64000;
+    static final int MIN_BITRATE = 8000;
+    static final int MAX_BITRATE = 320000;
+
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    // The encoder gets this long to return the last frames after the end of the stream
+    private static final int END_OF_STREAM_ATTEMPTS = 100;
+    private static final long MICROS_PER_SECOND = 1000000;
+    private static final long MICROS_PER_MINUTE = 60 * MICROS_PER_SECOND;
+
+    private final String fullFilePath;
+    private final int bitrate;
+    private final AacEncoder encoder;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private File outputFile;
+    private boolean isCodecStarted;
+    private boolean isMuxerStarted;
+    private int sampleRate;
+    private int frameSize;
+    private long pcmBytes;
+    private long encodedBytes;
+    private long encodeCpuNs;
+
+    /**
+     * @param fullFilePath The path of the MP4 file, usually ending in .m4a
+     * @param bitrate The AAC bitrate in bits per second for all channels together
+     */
+    public AacFileWriter(String fullFilePath, int bitrate) {
+        this(fullFilePath, bitrate, new MediaCodecAacEncoder());
+    }
+
+    AacFileWriter(String fullFilePath, int bitrate, AacEncoder encoder) {
+        if (bitrate < MIN_BITRATE || bitrate > MAX_BITRATE) {
+            throw new IllegalArgumentException("Unsupported bitrate: " + bitrate);
+        }
+        this.fullFilePath = fullFilePath;
+        this.bitrate = bitrate;
+        this.encoder = encoder;
+    }
+
+    @Override
+    public void createFile() throws IOException {
+        outputFile = new File(fullFilePath);
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+        encoder.createMuxer(fullFilePath);
+        isCodecStarted = false;
+        isMuxerStarted = false;
+        pcmBytes = 0;
+        encodedBytes = 0;
+        encodeCpuNs = 0;
+    }
+
+    /**
+     * Queues the remaining bytes of the first {@code count} buffers to the encoder and writes the
+     * frames it has ready to the file. Blocks while the encoder has no free input buffer.
+     */
+    @Override
+    public long writeBuffers(
+            ByteBuffer[] buffers, int count, int encoding, int sampleRate, int channels)
+            throws IOException {
+        if (encoding != AudioFormat.ENCODING_PCM_16BIT) {
+            throw new IOException("AAC recordings need 16 bit PCM, got encoding " + encoding);
+        }
+        long startCpuNs = Debug.threadCpuTimeNanos();
+        long written = 0;
+        try {
+            if (!isCodecStarted) {
+                startCodec(sampleRate, channels);
+            }
+            for (int i = 0; i < count; i++) {
+                written += queueInput(buffers[i]);
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // MediaCodec.CodecException is an IllegalStateException
+            throw new IOException("Encoding failed", e);
+        } finally {
+            encodeCpuNs += Debug.threadCpuTimeNanos() - startCpuNs;
+        }
+        return written;
+    }
+
+    /**
+     * Signals the end of the stream, writes the last frames and closes the file.
+     *
+     * @throws IOException if the encoder failed or did not return its last frames in time
+     */
+    @Override
+    public void finish() throws IOException {
+        long startCpuNs = Debug.threadCpuTimeNanos();
+        try {
+            if (isCodecStarted) {
+                signalEndOfStream();
+                drainEncoder(true);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Finishing encoding failed", e);
+        } finally {
+            encodeCpuNs += Debug.threadCpuTimeNanos() - startCpuNs;
+            encoder.release();
+            isCodecStarted = false;
+            outputFile.setReadable(true);
+            Log.d(TAG, toString());
+        }
+    }
+
+    @Override
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /** Returns the duration of the audio queued to the encoder in microseconds. */
+    public long getDurationUs() {
+        return frameSize == 0 ? 0 : presentationTimeUs(pcmBytes / frameSize, sampleRate);
+    }
+
+    /** Returns the size of the encoded frames written to the file. */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /** Returns the CPU time the writing thread spent in the encoder. */
+    public long getEncodeCpuNs() {
+        return encodeCpuNs;
+    }
+
+    /** Returns the encoder CPU time in milliseconds for each minute of recorded audio. */
+    public double getCpuMsPerMinute() {
+        long durationUs = getDurationUs();
+        return durationUs == 0 ? 0 : encodeCpuNs / 1e6 * MICROS_PER_MINUTE / durationUs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "AacFileWriter: bitrate=%dkbps duration=%.1fs encoded=%dKB "
+                        + "cpu=%.1fms per minute of audio",
+                bitrate / 1000,
+                getDurationUs() / (double) MICROS_PER_SECOND,
+                encodedBytes / 1024,
+                getCpuMsPerMinute());
+    }
+
+    static long presentationTimeUs(long frames, int sampleRate) {
+        return frames * MICROS_PER_SECOND / sampleRate;
+    }
+
+    private void startCodec(int sampleRate, int channels) throws IOException {
+        encoder.startCodec(sampleRate, channels, bitrate);
+        isCodecStarted = true;
+        this.sampleRate = sampleRate;
+        this.frameSize = 2 * channels;
+    }
+
+    private long queueInput(ByteBuffer buffer) throws IOException {
+        long queued = 0;
+        while (buffer.hasRemaining()) {
+            int index = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index < 0) {
+                // Free input buffers by taking the frames the encoder has ready
+                drainEncoder(false);
+                continue;
+            }
+            ByteBuffer input = encoder.getInputBuffer(index);
+            input.clear();
+            int length = Math.min(buffer.remaining(), input.remaining());
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(chunk.position() + length);
+            input.put(chunk);
+            buffer.position(buffer.position() + length);
+            encoder.queueInputBuffer(
+                    index, length, presentationTimeUs(pcmBytes / frameSize, sampleRate), 0);
+            pcmBytes += length;
+            queued += length;
+            drainEncoder(false);
+        }
+        return queued;
+    }
+
+    private void signalEndOfStream() throws IOException {
+        for (int attempt = 0; attempt < END_OF_STREAM_ATTEMPTS; attempt++) {
+            int index = encoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index >= 0) {
+                encoder.queueInputBuffer(
+                        index,
+                        0,
+                        presentationTimeUs(pcmBytes / frameSize, sampleRate),
+                        MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                return;
+            }
+            drainEncoder(false);
+        }
+        throw new IOException("Encoder did not accept the end of the stream");
+    }
+
+    /*
+     * Writes the encoded frames the codec has ready to the muxer. At the end of the stream this
+     * waits until the codec returns its last frame.
+     */
+    private void drainEncoder(boolean endOfStream) throws IOException {
+        int attempts = 0;
+        while (true) {
+            int index =
+                    encoder.dequeueOutputBuffer(bufferInfo, endOfStream ? CODEC_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                if (++attempts == END_OF_STREAM_ATTEMPTS) {
+                    throw new IOException("Encoder did not return the end of the stream");
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                encoder.startMuxer();
+                isMuxerStarted = true;
+            } else if (index >= 0) {
+                boolean isCodecConfig =
+                        (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!isCodecConfig && bufferInfo.size > 0 && isMuxerStarted) {
+                    ByteBuffer output = encoder.getOutputBuffer(index);
+                    output.position(bufferInfo.offset);
+                    output.limit(bufferInfo.offset + bufferInfo.size);
+                    encoder.writeSampleData(output, bufferInfo);
+                    encodedBytes += bufferInfo.size;
+                }
+                encoder.releaseOutputBuffer(index);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
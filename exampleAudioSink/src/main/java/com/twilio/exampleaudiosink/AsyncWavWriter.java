@@ -0,0 +1,413 @@
+package com.twilio.exampleaudiosink;
+
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records audio samples to a {@link RecordingFileWriter}, such as a {@link WavFileHelper}, without
+ * doing any IO on the thread that delivers them. Each sample is copied into a pre-allocated ring
+ * of direct buffers, and a writer thread drains every filled buffer to the file in one call.
+ * Samples that arrive while the ring is full are dropped and counted rather than blocking the
+ * audio thread. Written and dropped audio are both counted in ring buffers, so the counters can
+ * be compared.
+ *
+ * <p>By default each writer has its own writer thread. Writers created with an IO executor
+ * instead submit a drain task to it whenever a batch is ready, so many writers can share a few
+ * threads. The owner of the executor must then call {@link #requestDrain} periodically so that
+ * partial batches are flushed.
+ *
+ * <p>There must be a single thread calling {@link #write}, such as the SDK audio thread calling
+ * an AudioSink. The counters can be read from any thread.
+ */
+public class AsyncWavWriter {
+    private static final String TAG = "AsyncWavWriter";
+    private static final String WRITER_THREAD_NAME = "AsyncWavWriterThread";
+
+    // 128 buffers hold a little over a second of 48kHz stereo audio delivered every 10ms
+    static final int DEFAULT_SLOT_COUNT = 128;
+    static final int DEFAULT_SLOT_SIZE = 4096;
+
+    // The writer waits for this many filled buffers so that writes are large, or for half of a
+    // smaller ring so that the audio thread always has room while a batch is written
+    private static final int BATCH_SLOTS = 16;
+
+    // Filled buffers are written at least this often even if a batch is not complete
+    private static final long FLUSH_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long THREAD_JOIN_TIMEOUT_MS = 2000;
+
+    private final RecordingFileWriter fileWriter;
+    private final Executor ioExecutor;
+    private final AtomicBoolean isDraining = new AtomicBoolean();
+    private final Object drainLock = new Object();
+    private final ByteBuffer[] slots;
+    private final ByteBuffer[] batch;
+    private final int slotSize;
+    private final int slotMask;
+    private final int batchSlots;
+
+    /*
+     * Total number of buffers filled by the audio thread and drained by the writer thread. The
+     * difference is the queue depth. Each index is only advanced by its own thread.
+     */
+    private final AtomicLong writeIndex = new AtomicLong();
+    private final AtomicLong readIndex = new AtomicLong();
+
+    // The format of the first sample, which is the format of the whole file
+    private volatile int encoding;
+    private volatile int sampleRate;
+    private volatile int channels;
+    private volatile long firstSampleNs;
+    private boolean hasFormat;
+
+    private volatile boolean isRecording;
+    private volatile Thread writerThread;
+    private volatile IOException writeError;
+
+    // Ring buffers of audio that were dropped, counting the buffers a rejected sample would fill
+    private final AtomicLong droppedBuffers = new AtomicLong();
+    private volatile long maxQueueDepth;
+    private volatile long writtenBuffers;
+    private volatile long bytesWritten;
+    private volatile long writeCount;
+    private volatile long totalWriteNs;
+    private volatile long maxWriteNs;
+    private volatile long lastWriteNs;
+
+    public AsyncWavWriter(RecordingFileWriter fileWriter) {
+        this(fileWriter, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param slotCount The number of buffers in the ring, a power of two
+     * @param slotSize The capacity of each buffer in bytes. Larger samples span several buffers
+     */
+    public AsyncWavWriter(RecordingFileWriter fileWriter, int slotCount, int slotSize) {
+        this(fileWriter, slotCount, slotSize, null);
+    }
+
+    /**
+     * @param slotCount The number of buffers in the ring, a power of two
+     * @param slotSize The capacity of each buffer in bytes. Larger samples span several buffers
+     * @param ioExecutor The executor that drains the ring, or null to use a dedicated thread
+     */
+    public AsyncWavWriter(
+            RecordingFileWriter fileWriter, int slotCount, int slotSize, Executor ioExecutor) {
+        if (slotCount <= 0 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        }
+        if (slotSize <= 0) {
+            throw new IllegalArgumentException("Invalid slot size: " + slotSize);
+        }
+        this.fileWriter = fileWriter;
+        this.ioExecutor = ioExecutor;
+        this.slotSize = slotSize;
+        this.slotMask = slotCount - 1;
+        this.batchSlots = Math.max(1, Math.min(BATCH_SLOTS, slotCount / 2));
+        this.slots = new ByteBuffer[slotCount];
+        this.batch = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+    }
+
+    /**
+     * Creates a new recording file and starts the writer thread if there is no IO executor.
+     *
+     * @throws IOException if the file could not be created
+     */
+    public synchronized void start() throws IOException {
+        if (isRecording) {
+            throw new IllegalStateException("Recording already started");
+        }
+        fileWriter.createFile();
+        writeIndex.set(0);
+        readIndex.set(0);
+        hasFormat = false;
+        firstSampleNs = 0;
+        writeError = null;
+        droppedBuffers.set(0);
+        maxQueueDepth = 0;
+        writtenBuffers = 0;
+        bytesWritten = 0;
+        writeCount = 0;
+        totalWriteNs = 0;
+        maxWriteNs = 0;
+        lastWriteNs = 0;
+        isRecording = true;
+        if (ioExecutor == null) {
+            Thread thread = new Thread(this::drain, WRITER_THREAD_NAME);
+            writerThread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of {@code sample} into the ring without modifying its position.
+     * Never blocks.
+     *
+     * @return false if the sample was dropped because the ring is full, the format differs from
+     *     the first sample, or recording is not in progress
+     */
+    public boolean write(ByteBuffer sample, int encoding, int sampleRate, int channels) {
+        if (!isRecording) {
+            return false;
+        }
+        int length = sample.remaining();
+        int slotsNeeded = (length + slotSize - 1) / slotSize;
+        if (!hasFormat) {
+            firstSampleNs = System.nanoTime();
+            this.encoding = encoding;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            hasFormat = true;
+        } else if (encoding != this.encoding
+                || sampleRate != this.sampleRate
+                || channels != this.channels) {
+            droppedBuffers.addAndGet(slotsNeeded);
+            return false;
+        }
+        if (length == 0) {
+            return true;
+        }
+        long tail = writeIndex.get();
+        long depth = tail - readIndex.get();
+        if (depth + slotsNeeded > slots.length) {
+            droppedBuffers.addAndGet(slotsNeeded);
+            return false;
+        }
+        ByteBuffer source = sample.duplicate();
+        for (int i = 0; i < slotsNeeded; i++) {
+            ByteBuffer slot = slots[(int) ((tail + i) & slotMask)];
+            slot.clear();
+            int end = Math.min(source.position() + slotSize, sample.limit());
+            source.limit(end);
+            slot.put(source);
+            slot.flip();
+        }
+        // Publish the filled buffers to the writer thread
+        writeIndex.lazySet(tail + slotsNeeded);
+        depth += slotsNeeded;
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        if (depth >= batchSlots) {
+            requestDrain();
+        }
+        return true;
+    }
+
+    /**
+     * Wakes the writer thread, or submits a drain task to the IO executor unless one is already
+     * pending. Safe to call from any thread.
+     */
+    void requestDrain() {
+        if (ioExecutor == null) {
+            Thread thread = writerThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        } else if (isDraining.compareAndSet(false, true)) {
+            ioExecutor.execute(this::runDrainTask);
+        }
+    }
+
+    /**
+     * Stops accepting samples, waits for the writer thread to drain the ring and completes the
+     * file.
+     *
+     * @throws IOException if writing failed at any point during the recording
+     */
+    public synchronized void finish() throws IOException {
+        if (!isRecording) {
+            return;
+        }
+        isRecording = false;
+        if (ioExecutor == null) {
+            Thread thread = writerThread;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(THREAD_JOIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                Log.e(TAG, "Join of writer thread timed out");
+            }
+            writerThread = null;
+        } else {
+            // Write what is left on this thread. A drain task that is still queued finds nothing
+            // to do, so finishing never waits on the executor.
+            synchronized (drainLock) {
+                drainAvailable();
+            }
+        }
+        fileWriter.finish();
+        Log.d(TAG, toString());
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    public boolean isRecording() {
+        return isRecording;
+    }
+
+    /** Returns the sample rate of the recording, or 0 before the first sample. */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Returns the channel count of the recording, or 0 before the first sample. */
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Returns the {@link System#nanoTime()} of the first sample, or 0 before it arrives. */
+    public long getFirstSampleNs() {
+        return firstSampleNs;
+    }
+
+    /** Returns the number of filled buffers waiting to be written. */
+    public long getQueueDepth() {
+        return writeIndex.get() - readIndex.get();
+    }
+
+    /** Returns the largest queue depth seen during the recording. */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Returns the number of ring buffers of audio dropped because the ring was full, the format
+     * changed or writing failed. A dropped sample counts as the buffers it would have filled.
+     */
+    public long getDroppedBuffers() {
+        return droppedBuffers.get();
+    }
+
+    /** Returns the number of buffers written to the file. */
+    public long getWrittenBuffers() {
+        return writtenBuffers;
+    }
+
+    /** Returns the number of audio bytes written to the file. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the number of batched writes. */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /** Returns the average duration of a batched write in nanoseconds. */
+    public long getAverageWriteNs() {
+        long count = writeCount;
+        return count == 0 ? 0 : totalWriteNs / count;
+    }
+
+    /** Returns the longest duration of a batched write in nanoseconds. */
+    public long getMaxWriteNs() {
+        return maxWriteNs;
+    }
+
+    /** Returns the duration of the most recent batched write in nanoseconds. */
+    public long getLastWriteNs() {
+        return lastWriteNs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "queued=%d maxQueued=%d dropped=%d written=%d bytes=%d writes=%d "
+                        + "avgWrite=%dus maxWrite=%dus",
+                getQueueDepth(),
+                maxQueueDepth,
+                droppedBuffers.get(),
+                writtenBuffers,
+                bytesWritten,
+                writeCount,
+                TimeUnit.NANOSECONDS.toMicros(getAverageWriteNs()),
+                TimeUnit.NANOSECONDS.toMicros(maxWriteNs));
+    }
+
+    /*
+     * Runs on the writer thread until recording stops and every filled buffer is written.
+     */
+    private void drain() {
+        while (true) {
+            boolean recording = isRecording;
+            long available = getQueueDepth();
+            if (available == 0 && !recording) {
+                break;
+            }
+            if (available < batchSlots && recording) {
+                LockSupport.parkNanos(this, FLUSH_INTERVAL_NS);
+            }
+            drainAvailable();
+        }
+    }
+
+    /*
+     * Runs on the IO executor. Buffers filled while draining may have missed the request, so
+     * the task requests another drain if a batch is ready again.
+     */
+    private void runDrainTask() {
+        synchronized (drainLock) {
+            if (isRecording) {
+                drainAvailable();
+            }
+        }
+        isDraining.set(false);
+        if (isRecording && getQueueDepth() >= batchSlots) {
+            requestDrain();
+        }
+    }
+
+    /*
+     * Writes every filled buffer. Only one thread drains at a time.
+     */
+    private void drainAvailable() {
+        long head = readIndex.get();
+        int count = (int) (writeIndex.get() - head);
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            batch[i] = slots[(int) ((head + i) & slotMask)];
+        }
+        if (writeError == null) {
+            writeBatch(count);
+        } else {
+            droppedBuffers.addAndGet(count);
+        }
+        // Hand the buffers back to the audio thread
+        readIndex.lazySet(head + count);
+    }
+
+    private void writeBatch(int count) {
+        long startNs = System.nanoTime();
+        try {
+            bytesWritten += fileWriter.writeBuffers(batch, count, encoding, sampleRate, channels);
+            writtenBuffers += count;
+        } catch (IOException e) {
+            Log.e(TAG, "Writing recording failed: " + e.getMessage());
+            writeError = e;
+            droppedBuffers.addAndGet(count);
+            return;
+        }
+        long durationNs = System.nanoTime() - startNs;
+        writeCount++;
+        totalWriteNs += durationNs;
+        lastWriteNs = durationNs;
+        if (durationNs > maxWriteNs) {
+            maxWriteNs = durationNs;
+        }
+    }
+}
@@ -28,21 +28,29 @@ import com.twilio.exampleaudiosink.dialog.Dialog;
 import com.twilio.video.AudioSink;
 import com.twilio.video.ConnectOptions;
 import com.twilio.video.LocalAudioTrack;
+import com.twilio.video.RemoteAudioTrack;
+import com.twilio.video.RemoteAudioTrackPublication;
+import com.twilio.video.RemoteDataTrack;
+import com.twilio.video.RemoteDataTrackPublication;
 import com.twilio.video.RemoteParticipant;
+import com.twilio.video.RemoteVideoTrack;
+import com.twilio.video.RemoteVideoTrackPublication;
 import com.twilio.video.Room;
 import com.twilio.video.TwilioException;
 import com.twilio.video.Video;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class AudioSinkActivity extends AppCompatActivity {
-    private static final int MAX_PARTICIPANTS = 2;
     private static final int MIC_PERMISSION_REQUEST_CODE = 5;
     private static final String TAG = "AudioSinkActivity";
-    private static final String UNSUPPORTED_PARTICIPANT_COUNT_MSG =
-            "This example only supports %d participants";
+    private static final String RECORDING_DIRECTORY = "multitrack";
 
     /*
      * Audio and video tracks can be created with names. This feature is useful for categorizing
@@ -82,27 +90,15 @@ public class AudioSinkActivity extends AppCompatActivity {
     private AlertDialog connectDialog;
     private AudioManager audioManager;
 
-    private WavFileHelper wavFileHelper;
+    /*
+     * Every remote audio track is recorded to its own file. Samples are copied and written on a
+     * small pool of IO threads so that storage stalls never block audio rendering.
+     */
+    private MultitrackRecorder recorder;
     private MediaPlayerHelper mediaPlayerHelper;
-    private AudioSink audioSink =
-            new AudioSink() {
-                @Override
-                public void renderSample(
-                        @NonNull ByteBuffer audioSample,
-                        int encoding,
-                        int sampleRate,
-                        int channels) {
-                    try {
-                        wavFileHelper.writeBytesToFile(audioSample, encoding, sampleRate, channels);
-                    } catch (IOException e) {
-                        Log.e(
-                                TAG,
-                                String.format(
-                                        "A fatal error has occurred. Stacktrace %s",
-                                        e.getLocalizedMessage()));
-                    }
-                }
-            };
+
+    // Tracks with an attached sink by track SID
+    private final Map<String, RemoteAudioTrack> recordedTracks = new HashMap<>();
 
     private int previousAudioMode;
     private boolean previousMicrophoneMute;
@@ -163,6 +159,11 @@ public class AudioSinkActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
+        // Finish the recording while the tracks are still available
+        if (recorder.isRecording()) {
+            stopRecording();
+        }
+
         /*
          * Always disconnect from the room before leaving the Activity to
          * ensure any memory allocated to the Room resource is freed.
@@ -181,14 +182,6 @@ public class AudioSinkActivity extends AppCompatActivity {
             localAudioTrack = null;
         }
 
-        if (wavFileHelper.isFileWriteInProgress()) {
-            try {
-                wavFileHelper.finish();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
         super.onDestroy();
     }
 
@@ -212,7 +205,16 @@ public class AudioSinkActivity extends AppCompatActivity {
     }
 
     private void initializeHelpers() {
-        wavFileHelper = new WavFileHelper(AudioSinkActivity.this);
+        File recordingDirectory = new File(getFilesDir(), RECORDING_DIRECTORY);
+        /*
+         * Repair the headers of recordings that were interrupted by the app being killed. The
+         * headers are only a few bytes, so this is quick enough to do before recording again.
+         */
+        for (File file : MultitrackRecorder.recoverRecordings(recordingDirectory)) {
+            Log.d(TAG, "Recovered " + file.getName());
+        }
+        recorder = new MultitrackRecorder(recordingDirectory);
+        recorder.setAacBitrate(BuildConfig.RECORDING_AAC_BITRATE);
         mediaPlayerHelper = new MediaPlayerHelper();
     }
 
@@ -349,6 +351,9 @@ public class AudioSinkActivity extends AppCompatActivity {
             public void onConnected(@NonNull Room room) {
                 audioSinkStatusText.setText(String.format("Connected to %s", room.getName()));
                 setTitle(room.getName());
+                for (RemoteParticipant remoteParticipant : room.getRemoteParticipants()) {
+                    remoteParticipant.setListener(remoteParticipantListener());
+                }
                 if (hasNecessaryParticipants(room)) {
                     audioSinkStatusText.setText(getString(R.string.status_capture_ready));
                     enableAudioSinkButton(true);
@@ -381,11 +386,8 @@ public class AudioSinkActivity extends AppCompatActivity {
                 audioSinkStatusText.setText(String.format("Disconnected from %s", room.getName()));
                 AudioSinkActivity.this.room = null;
                 enableAudioSinkButton(false);
-                if (wavFileHelper.isFileWriteInProgress()) {
-                    finish();
-                    enablePlayFileButton(
-                            wavFileHelper.doesFileExist()
-                                    && !wavFileHelper.isFileWriteInProgress());
+                if (recorder.isRecording()) {
+                    stopRecording();
                 }
                 // Only reinitialize the UI if disconnect was not called from onDestroy()
                 if (!disconnectedFromOnDestroy) {
@@ -397,6 +399,7 @@ public class AudioSinkActivity extends AppCompatActivity {
             @Override
             public void onParticipantConnected(
                     @NonNull Room room, @NonNull RemoteParticipant remoteParticipant) {
+                remoteParticipant.setListener(remoteParticipantListener());
                 if (hasNecessaryParticipants(room)) {
                     audioSinkStatusText.setText(getString(R.string.status_capture_ready));
                     enableAudioSinkButton(true);
@@ -406,18 +409,18 @@ public class AudioSinkActivity extends AppCompatActivity {
             @Override
             public void onParticipantDisconnected(
                     @NonNull Room room, @NonNull RemoteParticipant remoteParticipant) {
+                for (RemoteAudioTrackPublication publication :
+                        remoteParticipant.getRemoteAudioTracks()) {
+                    RemoteAudioTrack remoteAudioTrack = publication.getRemoteAudioTrack();
+                    if (remoteAudioTrack != null) {
+                        detachSink(remoteAudioTrack);
+                    }
+                }
                 if (!hasNecessaryParticipants(room)) {
                     audioSinkStatusText.setText(getString(R.string.status_two_particpants_needed));
                     enableAudioSinkButton(false);
-                    if (wavFileHelper.isFileWriteInProgress()) {
-                        try {
-                            wavFileHelper.finish();
-                            enablePlayFileButton(
-                                    wavFileHelper.doesFileExist()
-                                            && !wavFileHelper.isFileWriteInProgress());
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                    if (recorder.isRecording()) {
+                        stopRecording();
                     }
                 }
             }
@@ -442,31 +445,190 @@ public class AudioSinkActivity extends AppCompatActivity {
         };
     }
 
+    /*
+     * Remote participant events listener. Tracks subscribed while recording are added to the
+     * recording, so participants can join and leave at any time.
+     */
+    private RemoteParticipant.Listener remoteParticipantListener() {
+        return new RemoteParticipant.Listener() {
+            @Override
+            public void onAudioTrackPublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication) {}
+
+            @Override
+            public void onAudioTrackUnpublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication) {}
+
+            @Override
+            public void onDataTrackPublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteDataTrackPublication remoteDataTrackPublication) {}
+
+            @Override
+            public void onDataTrackUnpublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteDataTrackPublication remoteDataTrackPublication) {}
+
+            @Override
+            public void onVideoTrackPublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication) {}
+
+            @Override
+            public void onVideoTrackUnpublished(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication) {}
+
+            @Override
+            public void onAudioTrackSubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication,
+                    @NonNull RemoteAudioTrack remoteAudioTrack) {
+                if (recorder.isRecording()) {
+                    attachSink(remoteParticipant, remoteAudioTrack);
+                }
+            }
+
+            @Override
+            public void onAudioTrackUnsubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication,
+                    @NonNull RemoteAudioTrack remoteAudioTrack) {
+                detachSink(remoteAudioTrack);
+            }
+
+            @Override
+            public void onAudioTrackSubscriptionFailed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication,
+                    @NonNull TwilioException twilioException) {}
+
+            @Override
+            public void onDataTrackSubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteDataTrackPublication remoteDataTrackPublication,
+                    @NonNull RemoteDataTrack remoteDataTrack) {}
+
+            @Override
+            public void onDataTrackUnsubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteDataTrackPublication remoteDataTrackPublication,
+                    @NonNull RemoteDataTrack remoteDataTrack) {}
+
+            @Override
+            public void onDataTrackSubscriptionFailed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteDataTrackPublication remoteDataTrackPublication,
+                    @NonNull TwilioException twilioException) {}
+
+            @Override
+            public void onVideoTrackSubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication,
+                    @NonNull RemoteVideoTrack remoteVideoTrack) {}
+
+            @Override
+            public void onVideoTrackUnsubscribed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication,
+                    @NonNull RemoteVideoTrack remoteVideoTrack) {}
+
+            @Override
+            public void onVideoTrackSubscriptionFailed(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication,
+                    @NonNull TwilioException twilioException) {}
+
+            @Override
+            public void onAudioTrackEnabled(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication) {}
+
+            @Override
+            public void onAudioTrackDisabled(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteAudioTrackPublication remoteAudioTrackPublication) {}
+
+            @Override
+            public void onVideoTrackEnabled(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication) {}
+
+            @Override
+            public void onVideoTrackDisabled(
+                    @NonNull RemoteParticipant remoteParticipant,
+                    @NonNull RemoteVideoTrackPublication remoteVideoTrackPublication) {}
+        };
+    }
+
     public boolean hasNecessaryParticipants(@NonNull Room room) {
-        if (room.getRemoteParticipants().size() > 1)
-            throw new RuntimeException(
-                    String.format(UNSUPPORTED_PARTICIPANT_COUNT_MSG, MAX_PARTICIPANTS));
         return room.getRemoteParticipants().size() > 0;
     }
 
-    private void attachSink() {
-        room.getRemoteParticipants()
-                .get(0)
-                .getRemoteAudioTracks()
-                .get(0)
-                .getRemoteAudioTrack()
-                .addSink(audioSink);
+    private void startRecording() throws IOException {
+        recorder.start();
+        for (RemoteParticipant remoteParticipant : room.getRemoteParticipants()) {
+            for (RemoteAudioTrackPublication publication :
+                    remoteParticipant.getRemoteAudioTracks()) {
+                RemoteAudioTrack remoteAudioTrack = publication.getRemoteAudioTrack();
+                if (publication.isTrackSubscribed() && remoteAudioTrack != null) {
+                    attachSink(remoteParticipant, remoteAudioTrack);
+                }
+            }
+        }
         toggleAudioSinkButton.setColorFilter(Color.GRAY);
     }
 
-    private void detachSink() {
-        room.getRemoteParticipants()
-                .get(0)
-                .getRemoteAudioTracks()
-                .get(0)
-                .getRemoteAudioTrack()
-                .removeSink(audioSink);
+    private void stopRecording() {
+        // Detach first so that no samples arrive after the recordings are finished
+        for (RemoteAudioTrack remoteAudioTrack : new ArrayList<>(recordedTracks.values())) {
+            detachSink(remoteAudioTrack);
+        }
+        try {
+            recorder.stop();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         toggleAudioSinkButton.setColorFilter(Color.WHITE);
+        enablePlayFileButton(getRecordedFile() != null);
+    }
+
+    private void attachSink(
+            @NonNull RemoteParticipant remoteParticipant,
+            @NonNull RemoteAudioTrack remoteAudioTrack) {
+        try {
+            AudioSink audioSink =
+                    recorder.addTrack(remoteParticipant.getIdentity(), remoteAudioTrack.getSid());
+            if (audioSink != null) {
+                remoteAudioTrack.addSink(audioSink);
+                recordedTracks.put(remoteAudioTrack.getSid(), remoteAudioTrack);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void detachSink(@NonNull RemoteAudioTrack remoteAudioTrack) {
+        // Detach before finishing so that no samples arrive while the file is finished
+        AudioSink audioSink = recorder.getSink(remoteAudioTrack.getSid());
+        if (audioSink != null) {
+            remoteAudioTrack.removeSink(audioSink);
+            recorder.removeTrack(remoteAudioTrack.getSid());
+        }
+        recordedTracks.remove(remoteAudioTrack.getSid());
+    }
+
+    /*
+     * Returns the file of the first recorded track, or null if nothing has been recorded.
+     */
+    private File getRecordedFile() {
+        List<MultitrackRecorder.TrackRecording> tracks = recorder.getTracks();
+        if (tracks.isEmpty() || recorder.isRecording() || !tracks.get(0).file.exists()) {
+            return null;
+        }
+        return tracks.get(0).file;
     }
 
     private void initializeUI() {
@@ -478,7 +640,7 @@ public class AudioSinkActivity extends AppCompatActivity {
         toggleAudioSinkButton.setColorFilter(Color.WHITE);
 
         togglePlayAudioButton = findViewById(R.id.toggle_play_file);
-        togglePlayAudioButton.setEnabled(wavFileHelper.doesFileExist());
+        togglePlayAudioButton.setEnabled(getRecordedFile() != null);
         togglePlayAudioButton.setOnClickListener(playAudioClickListener());
 
         connectActionFab = findViewById(R.id.connect_action_fab);
@@ -524,16 +686,11 @@ public class AudioSinkActivity extends AppCompatActivity {
     private View.OnClickListener audioSinkClickListener() {
         return v -> {
             try {
-                if (wavFileHelper.isFileWriteInProgress()) {
-                    wavFileHelper.finish();
-                    detachSink();
-                    enablePlayFileButton(
-                            wavFileHelper.doesFileExist()
-                                    && !wavFileHelper.isFileWriteInProgress());
+                if (recorder.isRecording()) {
+                    stopRecording();
                     audioSinkStatusText.setText(getString(R.string.status_finished_capturing));
                 } else {
-                    wavFileHelper.createFile();
-                    attachSink();
+                    startRecording();
                     audioSinkStatusText.setText(getString(R.string.status_capturing));
                 }
             } catch (IOException e) {
@@ -549,7 +706,8 @@ public class AudioSinkActivity extends AppCompatActivity {
                 togglePlayAudioButton.setImageDrawable(
                         getResources().getDrawable(android.R.drawable.ic_media_play));
             } else {
-                if (!wavFileHelper.doesFileExist()) {
+                File recordedFile = getRecordedFile();
+                if (recordedFile == null) {
                     Snackbar.make(
                                     connectActionFab,
                                     "Couldn't find AudioSink Recording",
@@ -561,7 +719,7 @@ public class AudioSinkActivity extends AppCompatActivity {
                 }
                 try {
                     mediaPlayerHelper.playFile(
-                            wavFileHelper.getFullFilePath(),
+                            recordedFile.getPath(),
                             mp -> {
                                 if (!mediaPlayerHelper.isPlaying()) {
                                     togglePlayAudioButton.setImageDrawable(
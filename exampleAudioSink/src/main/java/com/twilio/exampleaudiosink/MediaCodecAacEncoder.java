@@ -0,0 +1,111 @@
+package com.twilio.exampleaudiosink;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** An {@link AacEncoder} backed by {@link MediaCodec} and an MPEG-4 {@link MediaMuxer}. */
+class MediaCodecAacEncoder implements AacEncoder {
+    private static final String TAG = "MediaCodecAacEncoder";
+
+    private MediaMuxer muxer;
+    private MediaCodec codec;
+    private int trackIndex;
+    private boolean isMuxerStarted;
+
+    @Override
+    public void createMuxer(String path) throws IOException {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        isMuxerStarted = false;
+    }
+
+    @Override
+    public void startCodec(int sampleRate, int channels, int bitrate) throws IOException {
+        MediaFormat format =
+                MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+        format.setInteger(
+                MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            encoder.release();
+            throw e;
+        }
+        codec = encoder;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+        return codec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void startMuxer() {
+        // The output format carries the codec specific data the muxer needs
+        trackIndex = muxer.addTrack(codec.getOutputFormat());
+        muxer.start();
+        isMuxerStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+        muxer.writeSampleData(trackIndex, buffer, bufferInfo);
+    }
+
+    @Override
+    public void release() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Stopping encoder failed: " + e.getMessage());
+            }
+            codec.release();
+            codec = null;
+        }
+        if (muxer != null) {
+            try {
+                if (isMuxerStarted) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                // Thrown when no frames were written
+                Log.e(TAG, "Stopping muxer failed: " + e.getMessage());
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.twilio.exampleaudiosink;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.twilio.video.AudioSink;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records every remote audio track of a Room to its own WAV or AAC file. Each track gets an {@link
+ * AudioSink} backed by an {@link AsyncWavWriter}, and all writers share a small pool of IO
+ * threads, so the number of threads does not grow with the number of participants. Memory is
+ * bounded by the fixed ring of each writer.
+ *
+ * <p>Tracks can be added and removed while recording, for participants that join or leave. A
+ * track that is added again after it was removed, for example when it is resubscribed, is
+ * recorded to a new segment file. The time between the start of the recording and the first
+ * sample of each segment is kept so the files can be aligned. When the recording stops, it is
+ * written with the file names to a {@code tracks.csv} manifest next to the recordings.
+ */
+public class MultitrackRecorder {
+    private static final String TAG = "MultitrackRecorder";
+    private static final String MANIFEST_FILE_NAME = "tracks.csv";
+    private static final String IO_THREAD_NAME = "MultitrackRecorderIo-";
+    private static final String WAV_EXTENSION = ".wav";
+    private static final String AAC_EXTENSION = ".m4a";
+
+    static final int DEFAULT_IO_THREADS = 2;
+
+    // 64 buffers of 2KB hold 640ms of 48kHz stereo audio, 128KB for each track
+    static final int DEFAULT_SLOT_COUNT = 64;
+    static final int DEFAULT_SLOT_SIZE = 2048;
+
+    private static final long FLUSH_INTERVAL_MS = 200;
+
+    // Total time stop() waits for all files to be finished, however many tracks there are
+    private static final long FINISH_TIMEOUT_MS = 5000;
+
+    private final File directory;
+    private final int ioThreads;
+    private final int slotCount;
+    private final int slotSize;
+
+    // Every segment in the order it was added, only accessed while synchronized
+    private final List<TrackRecording> recordings = new ArrayList<>();
+
+    // Number of segments recorded for each track SID, only accessed while synchronized
+    private final Map<String, Integer> segmentCounts = new HashMap<>();
+
+    // Recordings still receiving samples, iterated by the flush task without locking
+    private final List<TrackRecording> activeRecordings = new CopyOnWriteArrayList<>();
+    private final List<Future<?>> pendingFinishes = new ArrayList<>();
+
+    private int aacBitrate;
+    private ScheduledExecutorService ioExecutor;
+    private ScheduledFuture<?> flushTask;
+    private long startNs;
+
+    public MultitrackRecorder(File directory) {
+        this(directory, DEFAULT_IO_THREADS, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    MultitrackRecorder(File directory, int ioThreads, int slotCount, int slotSize) {
+        this.directory = directory;
+        this.ioThreads = ioThreads;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Encodes tracks added afterwards to AAC at the given bitrate in bits per second, which takes
+     * a small fraction of the storage of WAV files. A bitrate of 0 records WAV files.
+     */
+    public synchronized void setAacBitrate(int aacBitrate) {
+        if (aacBitrate != 0
+                && (aacBitrate < AacFileWriter.MIN_BITRATE
+                        || aacBitrate > AacFileWriter.MAX_BITRATE)) {
+            throw new IllegalArgumentException("Unsupported bitrate: " + aacBitrate);
+        }
+        this.aacBitrate = aacBitrate;
+    }
+
+    /** Starts a new recording. Tracks are recorded once they are added. */
+    public synchronized void start() throws IOException {
+        if (isRecording()) {
+            throw new IllegalStateException("Recording already started");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        recordings.clear();
+        segmentCounts.clear();
+        pendingFinishes.clear();
+        AtomicInteger threadCount = new AtomicInteger();
+        ioExecutor =
+                Executors.newScheduledThreadPool(
+                        ioThreads,
+                        runnable ->
+                                new Thread(
+                                        runnable,
+                                        IO_THREAD_NAME + threadCount.incrementAndGet()));
+        // Flush partial batches so quiet periods do not leave audio sitting in memory
+        flushTask =
+                ioExecutor.scheduleWithFixedDelay(
+                        this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        startNs = System.nanoTime();
+    }
+
+    public synchronized boolean isRecording() {
+        return ioExecutor != null;
+    }
+
+    /**
+     * Starts recording a track to a new file and returns the sink to attach to it. Returns null
+     * if the track is already being recorded. A track that was removed before is recorded to a
+     * new file with the segment number appended to its name.
+     */
+    @Nullable
+    public synchronized AudioSink addTrack(
+            @NonNull String participantIdentity, @NonNull String trackSid) throws IOException {
+        if (!isRecording()) {
+            throw new IllegalStateException("Recording not started");
+        }
+        if (findActive(trackSid) != null) {
+            return null;
+        }
+        Integer previousSegments = segmentCounts.get(trackSid);
+        int segment = previousSegments == null ? 1 : previousSegments + 1;
+        String extension = aacBitrate == 0 ? WAV_EXTENSION : AAC_EXTENSION;
+        File file =
+                new File(directory, fileName(participantIdentity, trackSid, segment, extension));
+        RecordingFileWriter fileWriter =
+                aacBitrate == 0
+                        ? new WavFileHelper(file.getPath())
+                        : new AacFileWriter(file.getPath(), aacBitrate);
+        AsyncWavWriter writer = new AsyncWavWriter(fileWriter, slotCount, slotSize, ioExecutor);
+        writer.start();
+        TrackRecording recording = new TrackRecording(participantIdentity, trackSid, file, writer);
+        segmentCounts.put(trackSid, segment);
+        recordings.add(recording);
+        activeRecordings.add(recording);
+        return recording.sink;
+    }
+
+    /** Returns the sink of a track that is being recorded, or null if it is not. */
+    @Nullable
+    public synchronized AudioSink getSink(@NonNull String trackSid) {
+        TrackRecording recording = findActive(trackSid);
+        return recording == null ? null : recording.sink;
+    }
+
+    /**
+     * Finishes the file of a track on the IO threads and returns its sink. The sink should be
+     * detached from the track first, so that no samples arrive while the file is finished.
+     * Returns null if the track is not being recorded.
+     */
+    @Nullable
+    public synchronized AudioSink removeTrack(@NonNull String trackSid) {
+        TrackRecording recording = findActive(trackSid);
+        if (recording == null) {
+            return null;
+        }
+        activeRecordings.remove(recording);
+        pendingFinishes.add(ioExecutor.submit(() -> finishRecording(recording)));
+        return recording.sink;
+    }
+
+    /**
+     * Finishes every file, waits for all writes to complete and writes the manifest. Sinks
+     * should be detached before stopping. Waiting is bounded by one deadline for all tracks, so
+     * stopping a recording with many tracks does not block the calling thread for long.
+     *
+     * @throws IOException if writing any of the files failed
+     */
+    public synchronized void stop() throws IOException {
+        if (!isRecording()) {
+            return;
+        }
+        flushTask.cancel(false);
+        for (TrackRecording recording : activeRecordings) {
+            pendingFinishes.add(ioExecutor.submit(() -> finishRecording(recording)));
+        }
+        activeRecordings.clear();
+        IOException error = null;
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FINISH_TIMEOUT_MS);
+        for (Future<?> finish : pendingFinishes) {
+            try {
+                finish.get(Math.max(0, deadlineNs - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error =
+                            e.getCause() instanceof IOException
+                                    ? (IOException) e.getCause()
+                                    : new IOException(e.getCause());
+                }
+            } catch (InterruptedException | TimeoutException e) {
+                if (error == null) {
+                    error = new IOException("Finishing recordings did not complete", e);
+                }
+            }
+        }
+        pendingFinishes.clear();
+        ioExecutor.shutdown();
+        ioExecutor = null;
+        writeManifest();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Returns the track segments of the current or most recent recording in the order they were
+     * added.
+     */
+    public synchronized List<TrackRecording> getTracks() {
+        return Collections.unmodifiableList(new ArrayList<>(recordings));
+    }
+
+    public File getManifestFile() {
+        return new File(directory, MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Repairs the WAV files in a recording directory that were not finished, for example because
+     * the process died while recording. Call this at startup before starting a new recording.
+     *
+     * @return The repaired files
+     */
+    public static List<File> recoverRecordings(File directory) {
+        List<File> recovered = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(WAV_EXTENSION));
+        if (files == null) {
+            return recovered;
+        }
+        for (File file : files) {
+            try {
+                if (WavFileHelper.recoverWavFile(file)) {
+                    recovered.add(file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Recovering " + file + " failed: " + e.getMessage());
+            }
+        }
+        return recovered;
+    }
+
+    @Nullable
+    private TrackRecording findActive(String trackSid) {
+        for (TrackRecording recording : activeRecordings) {
+            if (recording.trackSid.equals(trackSid)) {
+                return recording;
+            }
+        }
+        return null;
+    }
+
+    private void flush() {
+        for (TrackRecording recording : activeRecordings) {
+            if (recording.writer.getQueueDepth() > 0) {
+                recording.writer.requestDrain();
+            }
+        }
+    }
+
+    private Void finishRecording(TrackRecording recording) throws IOException {
+        recording.writer.finish();
+        Log.d(TAG, recording.toString());
+        return null;
+    }
+
+    /*
+     * Writes one line per track segment with the offset of its first sample from the start of
+     * the recording. Silence of that length before each file lines the tracks up.
+     */
+    private void writeManifest() throws IOException {
+        try (Writer manifest = new FileWriter(getManifestFile())) {
+            manifest.write(
+                    "participant,track,file,start_offset_ms,sample_rate,channels,pcm_bytes,"
+                            + "file_bytes,dropped_buffers\n");
+            for (TrackRecording recording : recordings) {
+                AsyncWavWriter writer = recording.writer;
+                long offsetNs = recording.getStartOffsetNs();
+                // Tracks that never received a sample have no offset
+                String offsetMs =
+                        offsetNs < 0 ? "" : String.format(Locale.US, "%.3f", offsetNs / 1e6);
+                manifest.write(
+                        String.format(
+                                Locale.US,
+                                "%s,%s,%s,%s,%d,%d,%d,%d,%d\n",
+                                recording.participantIdentity,
+                                recording.trackSid,
+                                recording.file.getName(),
+                                offsetMs,
+                                writer.getSampleRate(),
+                                writer.getChannels(),
+                                writer.getBytesWritten(),
+                                recording.file.length(),
+                                writer.getDroppedBuffers()));
+            }
+        }
+    }
+
+    static String fileName(
+            String participantIdentity, String trackSid, int segment, String extension) {
+        String name = participantIdentity + "-" + trackSid;
+        if (segment > 1) {
+            name += "-" + segment;
+        }
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + extension;
+    }
+
+    /** The recording of a remote audio track from when it was added until it was removed. */
+    public class TrackRecording {
+        public final String participantIdentity;
+        public final String trackSid;
+        public final File file;
+        public final AsyncWavWriter writer;
+        private final AudioSink sink;
+
+        TrackRecording(
+                String participantIdentity, String trackSid, File file, AsyncWavWriter writer) {
+            this.participantIdentity = participantIdentity;
+            this.trackSid = trackSid;
+            this.file = file;
+            this.writer = writer;
+            this.sink =
+                    (audioSample, encoding, sampleRate, channels) ->
+                            writer.write(audioSample, encoding, sampleRate, channels);
+        }
+
+        public boolean isActive() {
+            return activeRecordings.contains(this);
+        }
+
+        /**
+         * Returns the time from the start of the recording to the first sample of this track, or
+         * -1 if no samples have arrived.
+         */
+        public long getStartOffsetNs() {
+            long firstSampleNs = writer.getFirstSampleNs();
+            return firstSampleNs == 0 ? -1 : firstSampleNs - startNs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.US,
+                    "%s %s offset=%dms %s",
+                    participantIdentity,
+                    trackSid,
+                    TimeUnit.NANOSECONDS.toMillis(getStartOffsetNs()),
+                    writer);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.twilio.exampleaudiosink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the PCM samples drained by {@link AsyncWavWriter} to a file, either as is or encoded.
+ * The methods are only called from one thread at a time.
+ */
+public interface RecordingFileWriter {
+    /** Creates the file, replacing any previous recording at the same path. */
+    void createFile() throws IOException;
+
+    /**
+     * Writes the remaining bytes of the first {@code count} buffers. The format is the same for
+     * every call of a recording. The position of each buffer is advanced.
+     *
+     * @return The number of PCM bytes written
+     */
+    long writeBuffers(ByteBuffer[] buffers, int count, int encoding, int sampleRate, int channels)
+            throws IOException;
+
+    /** Completes the file. No buffers are written afterwards. */
+    void finish() throws IOException;
+
+    File getOutputFile();
+}
@@ -2,186 +2,204 @@ package com.twilio.exampleaudiosink;
 
 import android.content.Context;
 import android.media.AudioFormat;
+import android.util.Log;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
-public class WavFileHelper {
-
+public class WavFileHelper implements RecordingFileWriter {
+    private static final String TAG = "WavFileHelper";
     private static final String fileName = "/audio_sink.wav";
+
+    /*
+     * The header reserves a JUNK chunk for the ds64 chunk of RF64, so that a recording that grows
+     * past 4 GB can be converted in place:
+     *
+     *   0 RIFF or RF64, RIFF size
+     *  12 JUNK or ds64, 28 byte chunk with the 64 bit RIFF size, data size and sample count
+     *  48 fmt chunk
+     *  72 data chunk header, followed by the samples
+     */
+    static final int HEADER_SIZE = 80;
+    private static final int DS64_OFFSET = 12;
+    private static final int DS64_SIZE = 28;
+    private static final long MAX_CHUNK_SIZE = 0xFFFFFFFFL;
+
+    // The sizes in the header are updated at least this often while recording
+    static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 2000;
+
     private boolean didWriteWavHeader;
     private boolean didCompleteWavHeader;
     private final String fullFilePath;
-    private FileOutputStream fileOutputStream;
+    private final long checkpointIntervalNs;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
     private File outputFile;
+    private short channels;
+    private int sampleRate;
+    private short bitDepth;
+    private long dataBytes;
+    private long lastCheckpointNs;
 
     WavFileHelper(Context context) {
-        fullFilePath = context.getFilesDir().getPath() + fileName;
+        this(context.getFilesDir().getPath() + fileName);
+    }
+
+    WavFileHelper(String fullFilePath) {
+        this(fullFilePath, DEFAULT_CHECKPOINT_INTERVAL_MS);
     }
 
     /**
-     * Writes the proper 44-byte RIFF/WAVE header to/for the given stream Two size fields are left
-     * empty/null since we do not yet know the final stream size
-     *
-     * @param out The stream to write the header to
-     * @param channelMask An AudioFormat.CHANNEL_* mask
-     * @param sampleRate The sample rate in hertz
-     * @param encoding An AudioFormat.ENCODING_PCM_* value
-     * @throws IOException
+     * @param checkpointIntervalMs How often the sizes in the header are updated while recording,
+     *     which bounds how much of the recording a process death leaves outside of the header.
+     *     0 updates the header after every write.
      */
-    private static void writeWavHeader(
-            OutputStream out, int channelMask, int sampleRate, int encoding) throws IOException {
-        short channels;
-        switch (channelMask) {
-            case AudioFormat.CHANNEL_IN_MONO:
-                channels = 1;
-                break;
-            case AudioFormat.CHANNEL_IN_STEREO:
-                channels = 2;
-                break;
-            default:
-                throw new IllegalArgumentException("Unacceptable channel mask");
+    WavFileHelper(String fullFilePath, long checkpointIntervalMs) {
+        if (checkpointIntervalMs < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid checkpoint interval: " + checkpointIntervalMs);
         }
-
-        short bitDepth;
-        switch (encoding) {
-            case AudioFormat.ENCODING_PCM_8BIT:
-                bitDepth = 8;
-                break;
-            case AudioFormat.ENCODING_PCM_16BIT:
-                bitDepth = 16;
-                break;
-            case AudioFormat.ENCODING_PCM_FLOAT:
-                bitDepth = 32;
-                break;
-            default:
-                throw new IllegalArgumentException("Unacceptable encoding");
-        }
-
-        writeWavHeader(out, channels, sampleRate, bitDepth);
+        this.fullFilePath = fullFilePath;
+        this.checkpointIntervalNs = TimeUnit.MILLISECONDS.toNanos(checkpointIntervalMs);
     }
 
     /**
-     * Writes the proper 44-byte RIFF/WAVE header to/for the given stream Two size fields are left
-     * empty/null since we do not yet know the final stream size
+     * Creates the 80-byte RF64 capable RIFF/WAVE header for the given format and data size. The
+     * header is plain RIFF with a JUNK chunk unless the file is larger than 4 GB, in which case
+     * the 32 bit sizes are set to 0xFFFFFFFF and the 64 bit sizes are written to a ds64 chunk.
      *
-     * @param out The stream to write the header to
      * @param channels The number of channels
      * @param sampleRate The sample rate in hertz
      * @param bitDepth The bit depth
-     * @throws IOException
+     * @param dataBytes The number of bytes of samples following the header
      */
-    private static void writeWavHeader(
-            OutputStream out, short channels, int sampleRate, short bitDepth) throws IOException {
-        // Convert the multi-byte integers to raw bytes in little endian format as required by the
-        // spec
-        byte[] littleBytes =
-                ByteBuffer.allocate(14)
-                        .order(ByteOrder.LITTLE_ENDIAN)
-                        .putShort(channels)
-                        .putInt(sampleRate)
-                        .putInt(sampleRate * channels * (bitDepth / 8))
-                        .putShort((short) (channels * (bitDepth / 8)))
-                        .putShort(bitDepth)
-                        .array();
-
-        // Not necessarily the best, but it's very easy to visualize this way
-        out.write(
-                new byte[] {
-                    // RIFF header
-                    'R',
-                    'I',
-                    'F',
-                    'F', // ChunkID
-                    0,
-                    0,
-                    0,
-                    0, // ChunkSize (must be updated later)
-                    'W',
-                    'A',
-                    'V',
-                    'E', // Format
-                    // fmt subchunk
-                    'f',
-                    'm',
-                    't',
-                    ' ', // Subchunk1ID
-                    16,
-                    0,
-                    0,
-                    0, // Subchunk1Size
-                    1,
-                    0, // AudioFormat
-                    littleBytes[0],
-                    littleBytes[1], // NumChannels
-                    littleBytes[2],
-                    littleBytes[3],
-                    littleBytes[4],
-                    littleBytes[5], // SampleRate
-                    littleBytes[6],
-                    littleBytes[7],
-                    littleBytes[8],
-                    littleBytes[9], // ByteRate
-                    littleBytes[10],
-                    littleBytes[11], // BlockAlign
-                    littleBytes[12],
-                    littleBytes[13], // BitsPerSample
-                    // data subchunk
-                    'd',
-                    'a',
-                    't',
-                    'a', // Subchunk2ID
-                    0,
-                    0,
-                    0,
-                    0, // Subchunk2Size (must be updated later)
-                });
+    static ByteBuffer createWavHeader(
+            short channels, int sampleRate, short bitDepth, long dataBytes) {
+        long riffSize = HEADER_SIZE - 8 + dataBytes;
+        boolean isRf64 = riffSize > MAX_CHUNK_SIZE;
+        short blockAlign = (short) (channels * (bitDepth / 8));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        // RIFF header
+        header.put(ascii(isRf64 ? "RF64" : "RIFF"));
+        header.putInt(isRf64 ? (int) MAX_CHUNK_SIZE : (int) riffSize);
+        header.put(ascii("WAVE"));
+
+        // ds64 chunk, or a JUNK chunk of the same size holding its place
+        header.put(ascii(isRf64 ? "ds64" : "JUNK"));
+        header.putInt(DS64_SIZE);
+        if (isRf64) {
+            header.putLong(riffSize);
+            header.putLong(dataBytes);
+            header.putLong(dataBytes / blockAlign);
+            header.putInt(0); // Table length
+        } else {
+            header.position(header.position() + DS64_SIZE);
+        }
+
+        // fmt subchunk
+        header.put(ascii("fmt "));
+        header.putInt(16);
+        header.putShort((short) 1); // AudioFormat
+        header.putShort(channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign); // ByteRate
+        header.putShort(blockAlign);
+        header.putShort(bitDepth);
+
+        // data subchunk
+        header.put(ascii("data"));
+        header.putInt(isRf64 ? (int) MAX_CHUNK_SIZE : (int) dataBytes);
+
+        header.flip();
+        return header;
     }
 
     /**
-     * Updates the given wav file's header to include the final chunk sizes
+     * Repairs the sizes in the header of a WAV file that was not finished, for example because
+     * the process died while recording. The data size is taken from the length of the file,
+     * dropping a partial sample frame at the end. Files written before the JUNK chunk was
+     * reserved are repaired as well, but cannot be converted to RF64.
      *
-     * @param wav The wav file to update
+     * @param wav The wav file to repair
+     * @return true if the header was repaired, false if the file is complete or not a WAV file
      * @throws IOException
      */
-    private static void updateWavHeader(File wav) throws IOException {
-        byte[] sizes =
-                ByteBuffer.allocate(8)
-                        .order(ByteOrder.LITTLE_ENDIAN)
-                        // There are probably a bunch of different/better ways to calculate
-                        // these two given your circumstances. Cast should be safe since if the WAV
-                        // is
-                        // > 4 GB we've already made a terrible mistake.
-                        .putInt((int) (wav.length() - 8)) // ChunkSize
-                        .putInt((int) (wav.length() - 44)) // Subchunk2Size
-                        .array();
-
-        RandomAccessFile accessWave = null;
-        //noinspection CaughtExceptionImmediatelyRethrown
-        try {
-            accessWave = new RandomAccessFile(wav, "rw");
-            // ChunkSize
-            accessWave.seek(4);
-            accessWave.write(sizes, 0, 4);
-
-            // Subchunk2Size
-            accessWave.seek(40);
-            accessWave.write(sizes, 4, 4);
-        } catch (IOException ex) {
-            // Rethrow but we still close accessWave in our finally
-            throw ex;
-        } finally {
-            if (accessWave != null) {
-                try {
-                    accessWave.close();
-                } catch (IOException ex) {
-                    //
+    static boolean recoverWavFile(File wav) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(wav, "rw")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer chunk = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            if (!readFully(channel, chunk, 0)) {
+                return false;
+            }
+            String riffId = ascii(chunk, 0);
+            if (!("RIFF".equals(riffId) || "RF64".equals(riffId))
+                    || !"WAVE".equals(ascii(chunk, 8))) {
+                return false;
+            }
+
+            // Walk the chunks up to the data chunk, whose size may not have been written yet
+            long position = 12;
+            ByteBuffer format = null;
+            long dataOffset = -1;
+            while (dataOffset < 0) {
+                chunk.clear().limit(8);
+                if (!readFully(channel, chunk, position)) {
+                    return false;
                 }
+                String id = ascii(chunk, 0);
+                long size = chunk.getInt(4) & MAX_CHUNK_SIZE;
+                if ("fmt ".equals(id)) {
+                    format = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                    if (size < 16 || !readFully(channel, format, position + 8)) {
+                        return false;
+                    }
+                } else if ("data".equals(id)) {
+                    dataOffset = position + 8;
+                }
+                position += 8 + size + (size & 1);
+            }
+            if (format == null) {
+                return false;
+            }
+            short channels = format.getShort(2);
+            int sampleRate = format.getInt(4);
+            short blockAlign = format.getShort(12);
+            short bitDepth = format.getShort(14);
+            if (blockAlign <= 0) {
+                return false;
+            }
+
+            long dataBytes = file.length() - dataOffset;
+            dataBytes -= dataBytes % blockAlign;
+            boolean isRepaired;
+            if (dataOffset == HEADER_SIZE && hasDs64Slot(channel)) {
+                ByteBuffer header = createWavHeader(channels, sampleRate, bitDepth, dataBytes);
+                isRepaired = writeIfChanged(channel, header, 0);
+            } else {
+                // Only the 32 bit sizes can be patched
+                long riffSize = Math.min(dataOffset - 8 + dataBytes, MAX_CHUNK_SIZE);
+                isRepaired = writeIfChanged(channel, uint32(riffSize), 4);
+                isRepaired |=
+                        writeIfChanged(
+                                channel,
+                                uint32(Math.min(dataBytes, MAX_CHUNK_SIZE)),
+                                dataOffset - 4);
             }
+            if (file.length() != dataOffset + dataBytes) {
+                // Drop the partial sample frame at the end
+                channel.truncate(dataOffset + dataBytes);
+                isRepaired = true;
+            }
+            if (isRepaired) {
+                Log.d(TAG, "Recovered " + wav + " with " + dataBytes + " bytes of samples");
+            }
+            return isRepaired;
         }
     }
 
@@ -203,33 +221,105 @@ public class WavFileHelper {
     }
 
     /*
-     * The following wav header helper functions are from this gist: https://gist.github.com/kmark/d8b1b01fb0d2febf5770
+     * The original wav header helper functions are from this gist: https://gist.github.com/kmark/d8b1b01fb0d2febf5770
      */
 
-    void createFile() throws IOException {
+    @Override
+    public void createFile() throws IOException {
         outputFile = new File(fullFilePath);
         if (outputFile.exists()) {
             outputFile.delete();
         }
-        outputFile.createNewFile();
-        fileOutputStream = new FileOutputStream(outputFile, true);
+        randomAccessFile = new RandomAccessFile(outputFile, "rw");
+        fileChannel = randomAccessFile.getChannel();
         didWriteWavHeader = false;
         didCompleteWavHeader = false;
+        dataBytes = 0;
     }
 
+    /**
+     * Writes the bytes between the position and the limit of the given buffer, writing the WAV
+     * header first if needed. Heap, direct and read-only buffers are all written through the file
+     * channel without an intermediate copy. The position of the buffer is not modified.
+     */
     void writeBytesToFile(ByteBuffer byteBuffer, int encoding, int sampleRate, int channels)
             throws IOException {
+        writeWavHeaderIfNeeded(encoding, sampleRate, channels);
+        ByteBuffer source = byteBuffer.duplicate();
+        while (source.hasRemaining()) {
+            dataBytes += fileChannel.write(source);
+        }
+        checkpointIfDue();
+    }
+
+    /**
+     * Writes the remaining bytes of the first {@code count} buffers with a single gathering write,
+     * writing the WAV header first if needed. The position of each buffer is advanced.
+     *
+     * @return The number of bytes written
+     */
+    @Override
+    public long writeBuffers(
+            ByteBuffer[] buffers, int count, int encoding, int sampleRate, int channels)
+            throws IOException {
+        writeWavHeaderIfNeeded(encoding, sampleRate, channels);
+        long remaining = 0;
+        for (int i = 0; i < count; i++) {
+            remaining += buffers[i].remaining();
+        }
+        long written = 0;
+        // A gathering write may return before every buffer is written
+        while (written < remaining) {
+            written += fileChannel.write(buffers, 0, count);
+        }
+        dataBytes += written;
+        checkpointIfDue();
+        return written;
+    }
+
+    private void writeWavHeaderIfNeeded(int encoding, int sampleRate, int channels)
+            throws IOException {
         if (!didWriteWavHeader) {
-            writeWavHeader(fileOutputStream, getChannelMask(channels), sampleRate, encoding);
+            this.channels = getChannelCount(getChannelMask(channels));
+            this.sampleRate = sampleRate;
+            this.bitDepth = getBitDepth(encoding);
+            writeFully(fileChannel, createWavHeader(this.channels, sampleRate, bitDepth, 0), 0);
+            fileChannel.position(HEADER_SIZE);
+            lastCheckpointNs = System.nanoTime();
             didWriteWavHeader = true;
         }
-        fileOutputStream.write(byteBuffer.array());
     }
 
-    void finish() throws IOException {
-        fileOutputStream.close();
+    /*
+     * Updates the sizes in the header with a positional write, leaving the position of the
+     * channel at the end of the samples. A process death after this leaves a playable file with
+     * at most one checkpoint interval of samples outside of the header.
+     */
+    private void checkpointIfDue() throws IOException {
+        long nowNs = System.nanoTime();
+        if (nowNs - lastCheckpointNs >= checkpointIntervalNs) {
+            updateWavHeader();
+            lastCheckpointNs = nowNs;
+        }
+    }
+
+    private void updateWavHeader() throws IOException {
+        writeFully(fileChannel, createWavHeader(channels, sampleRate, bitDepth, dataBytes), 0);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (didCompleteWavHeader) {
+            return;
+        }
+        try {
+            if (didWriteWavHeader) {
+                updateWavHeader();
+            }
+        } finally {
+            randomAccessFile.close();
+        }
         outputFile.setReadable(true);
-        updateWavHeader(outputFile);
         didCompleteWavHeader = true;
     }
 
@@ -242,4 +332,93 @@ public class WavFileHelper {
         }
         return AudioFormat.CHANNEL_IN_STEREO;
     }
+
+    /**
+     * @param channelMask An AudioFormat.CHANNEL_* mask
+     */
+    private static short getChannelCount(int channelMask) {
+        switch (channelMask) {
+            case AudioFormat.CHANNEL_IN_MONO:
+                return 1;
+            case AudioFormat.CHANNEL_IN_STEREO:
+                return 2;
+            default:
+                throw new IllegalArgumentException("Unacceptable channel mask");
+        }
+    }
+
+    /**
+     * @param encoding An AudioFormat.ENCODING_PCM_* value
+     */
+    private static short getBitDepth(int encoding) {
+        switch (encoding) {
+            case AudioFormat.ENCODING_PCM_8BIT:
+                return 8;
+            case AudioFormat.ENCODING_PCM_16BIT:
+                return 16;
+            case AudioFormat.ENCODING_PCM_FLOAT:
+                return 32;
+            default:
+                throw new IllegalArgumentException("Unacceptable encoding");
+        }
+    }
+
+    private static boolean hasDs64Slot(FileChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, chunk, DS64_OFFSET)) {
+            return false;
+        }
+        String id = ascii(chunk, 0);
+        return ("JUNK".equals(id) || "ds64".equals(id)) && chunk.getInt(4) == DS64_SIZE;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean writeIfChanged(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        ByteBuffer current = ByteBuffer.allocate(buffer.remaining());
+        if (readFully(channel, current, position)) {
+            current.flip();
+            if (current.equals(buffer)) {
+                return false;
+            }
+        }
+        writeFully(channel, buffer, position);
+        return true;
+    }
+
+    private static ByteBuffer uint32(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, (int) value);
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static byte[] ascii(String id) {
+        return id.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String ascii(ByteBuffer buffer, int index) {
+        byte[] id = new byte[4];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = buffer.get(index + i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
 }
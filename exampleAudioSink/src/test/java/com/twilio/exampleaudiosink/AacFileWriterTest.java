@@ -0,0 +1,298 @@
+package com.twilio.exampleaudiosink;
+
+import static com.twilio.exampleaudiosink.WavFileHelperTest.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AacFileWriterTest {
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeAacEncoder encoder;
+    private AacFileWriter writer;
+
+    @Before
+    public void setUp() {
+        encoder = new FakeAacEncoder(100);
+        writer =
+                new AacFileWriter(
+                        new File(folder.getRoot(), "test.m4a").getPath(),
+                        AacFileWriter.DEFAULT_BITRATE,
+                        encoder);
+    }
+
+    @Test
+    public void writeBuffers_splitsBuffersAcrossEncoderInputs() throws IOException {
+        writer.createFile();
+        ByteBuffer[] buffers = {ByteBuffer.wrap(bytes(0, 240)), ByteBuffer.wrap(bytes(240, 40))};
+
+        assertEquals(280, writer.writeBuffers(buffers, 2, ENCODING, 48000, 2));
+
+        assertEquals("startCodec 48000 2 64000", encoder.events.get(1));
+        assertEquals(Arrays.asList(100, 100, 40, 40), encoder.inputSizes());
+        // 4 byte stereo frames at 48kHz: 0, 25, 50 and 60 frames in
+        assertEquals(Arrays.asList(0L, 520L, 1041L, 1250L), encoder.inputTimesUs());
+        assertArrayEquals(bytes(0, 280), encoder.pcm.toByteArray());
+        assertFalse(buffers[0].hasRemaining());
+        assertFalse(buffers[1].hasRemaining());
+        assertTrue(encoder.busyInputs > 0);
+        assertEquals(1458, writer.getDurationUs());
+    }
+
+    @Test
+    public void writeBuffers_startsMuxerBeforeWritingFrames() throws IOException {
+        writer.createFile();
+        writer.writeBuffers(
+                new ByteBuffer[] {ByteBuffer.wrap(bytes(0, 16))}, 1, ENCODING, 48000, 1);
+
+        List<String> events = encoder.events;
+        int muxerStart = events.indexOf("startMuxer");
+        assertTrue(muxerStart > 0);
+        assertEquals(muxerStart + 1, events.indexOf("write " + FakeAacEncoder.FRAME_SIZE));
+        // The codec specific data goes to the muxer through the output format, not as a frame
+        assertFalse(events.contains("write " + FakeAacEncoder.CODEC_CONFIG_SIZE));
+        assertEquals(FakeAacEncoder.FRAME_SIZE, writer.getEncodedBytes());
+    }
+
+    @Test
+    public void finish_signalsEndOfStreamAndWritesLastFrames() throws IOException {
+        writer.createFile();
+        writer.writeBuffers(
+                new ByteBuffer[] {ByteBuffer.wrap(bytes(0, 48))}, 1, ENCODING, 48000, 1);
+        encoder.holdOutput = true;
+        writer.writeBuffers(
+                new ByteBuffer[] {ByteBuffer.wrap(bytes(48, 48))}, 1, ENCODING, 48000, 1);
+        encoder.holdOutput = false;
+
+        writer.finish();
+
+        long[] endOfStream = encoder.inputs.get(encoder.inputs.size() - 1);
+        assertEquals(0, endOfStream[0]);
+        assertEquals(1000, endOfStream[1]);
+        assertEquals(MediaCodec.BUFFER_FLAG_END_OF_STREAM, endOfStream[2]);
+        // The frame the encoder held back is written while finishing
+        assertEquals(2 * FakeAacEncoder.FRAME_SIZE, writer.getEncodedBytes());
+        assertEquals("release", encoder.events.get(encoder.events.size() - 1));
+    }
+
+    @Test
+    public void finish_endOfStreamNeverReturned_throwsAndReleases() throws IOException {
+        writer.createFile();
+        writer.writeBuffers(
+                new ByteBuffer[] {ByteBuffer.wrap(bytes(0, 48))}, 1, ENCODING, 48000, 1);
+        encoder.returnsEndOfStream = false;
+
+        try {
+            writer.finish();
+            fail("Expected finish to fail");
+        } catch (IOException e) {
+            assertEquals("Encoder did not return the end of the stream", e.getMessage());
+        }
+        assertEquals("release", encoder.events.get(encoder.events.size() - 1));
+    }
+
+    @Test
+    public void finish_withoutSamples_onlyReleases() throws IOException {
+        writer.createFile();
+        writer.finish();
+
+        assertEquals(Arrays.asList("createMuxer", "release"), encoder.events);
+        assertEquals(0, writer.getDurationUs());
+    }
+    @Test
+    public void presentationTimeUs_isFramesOverSampleRate() {
+        assertEquals(0, AacFileWriter.presentationTimeUs(0, 48000));
+        assertEquals(10000, AacFileWriter.presentationTimeUs(480, 48000));
+        assertEquals(60000000, AacFileWriter.presentationTimeUs(60 * 44100, 44100));
+        // Long recordings do not overflow
+        assertEquals(
+                24L * 3600 * 1000000, AacFileWriter.presentationTimeUs(24L * 3600 * 48000, 48000));
+    }
+
+    @Test
+    public void constructor_bitrateInRange_isKept() {
+        assertEquals(
+                AacFileWriter.DEFAULT_BITRATE,
+                new AacFileWriter("test.m4a", AacFileWriter.DEFAULT_BITRATE).getBitrate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_bitrateTooLow_throws() {
+        new AacFileWriter("test.m4a", AacFileWriter.MIN_BITRATE - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_bitrateTooHigh_throws() {
+        new AacFileWriter("test.m4a", AacFileWriter.MAX_BITRATE + 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void writeBuffers_floatPcm_throws() throws IOException {
+        new AacFileWriter("test.m4a", AacFileWriter.DEFAULT_BITRATE)
+                .writeBuffers(
+                        new ByteBuffer[] {ByteBuffer.allocate(8)},
+                        1,
+                        AudioFormat.ENCODING_PCM_FLOAT,
+                        48000,
+                        2);
+    }
+
+    /*
+     * Encodes every queued input to a frame of FRAME_SIZE bytes. The format change and the codec
+     * config buffer come before the first frame, as with MediaCodec, and every other input request
+     * finds the encoder busy.
+     */
+    private static class FakeAacEncoder implements AacEncoder {
+        static final int FRAME_SIZE = 8;
+        static final int CODEC_CONFIG_SIZE = 2;
+
+        final List<String> events = new ArrayList<>();
+        final List<long[]> inputs = new ArrayList<>();
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        int busyInputs;
+        boolean holdOutput;
+        boolean returnsEndOfStream = true;
+
+        private final ByteBuffer inputBuffer;
+        private final Deque<long[]> pending = new ArrayDeque<>();
+        private int inputRequests;
+        private boolean isFormatReported;
+        private boolean isConfigReported;
+        private boolean isMuxerStarted;
+
+        FakeAacEncoder(int inputCapacity) {
+            inputBuffer = ByteBuffer.allocate(inputCapacity);
+        }
+
+        List<Integer> inputSizes() {
+            List<Integer> sizes = new ArrayList<>();
+            for (long[] input : inputs) {
+                sizes.add((int) input[0]);
+            }
+            return sizes;
+        }
+
+        List<Long> inputTimesUs() {
+            List<Long> times = new ArrayList<>();
+            for (long[] input : inputs) {
+                times.add(input[1]);
+            }
+            return times;
+        }
+
+        @Override
+        public void createMuxer(String path) {
+            events.add("createMuxer");
+        }
+
+        @Override
+        public void startCodec(int sampleRate, int channels, int bitrate) {
+            events.add("startCodec " + sampleRate + " " + channels + " " + bitrate);
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            if (inputRequests++ % 2 == 1) {
+                busyInputs++;
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            return 0;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return inputBuffer;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+            pcm.write(inputBuffer.array(), 0, size);
+            long[] input = {size, presentationTimeUs, flags};
+            inputs.add(input);
+            pending.add(input);
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+            if (pending.isEmpty()) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            if (!isFormatReported) {
+                isFormatReported = true;
+                return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            if (!isConfigReported) {
+                isConfigReported = true;
+                fill(bufferInfo, CODEC_CONFIG_SIZE, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                return 0;
+            }
+            long[] input = pending.peek();
+            boolean isEndOfStream = input[2] == MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+            if ((holdOutput && !isEndOfStream) || (isEndOfStream && !returnsEndOfStream)) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            pending.remove();
+            if (isEndOfStream) {
+                fill(bufferInfo, 0, input[1], MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                fill(bufferInfo, FRAME_SIZE, input[1], 0);
+            }
+            return 1;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return ByteBuffer.allocate(FRAME_SIZE);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {}
+
+        @Override
+        public void startMuxer() {
+            events.add("startMuxer");
+            isMuxerStarted = true;
+        }
+
+        @Override
+        public void writeSampleData(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+            if (!isMuxerStarted) {
+                throw new IllegalStateException("Muxer not started");
+            }
+            events.add("write " + buffer.remaining());
+        }
+
+        @Override
+        public void release() {
+            events.add("release");
+        }
+
+        private static void fill(
+                MediaCodec.BufferInfo bufferInfo, int size, long presentationTimeUs, int flags) {
+            bufferInfo.offset = 0;
+            bufferInfo.size = size;
+            bufferInfo.presentationTimeUs = presentationTimeUs;
+            bufferInfo.flags = flags;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.twilio.exampleaudiosink;
+
+import static com.twilio.exampleaudiosink.WavFileHelperTest.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncWavWriterTest {
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private WavFileHelper wavFileHelper;
+
+    @Before
+    public void setUp() {
+        wavFileHelper = new WavFileHelper(new File(folder.getRoot(), "test.wav").getPath());
+    }
+
+    @Test
+    public void write_beforeStart_isRejected() {
+        AsyncWavWriter writer = new AsyncWavWriter(wavFileHelper, 4, 16);
+        assertFalse(writer.write(ByteBuffer.wrap(bytes(0, 8)), ENCODING, 48000, 2));
+        assertFalse(writer.isRecording());
+    }
+
+    @Test
+    public void finish_writesEverySampleInOrder() throws IOException {
+        AsyncWavWriter writer = new AsyncWavWriter(wavFileHelper, 64, 16);
+        writer.start();
+        // Samples larger than a slot span several slots
+        for (int i = 0; i < 32; i++) {
+            ByteBuffer sample = ByteBuffer.wrap(bytes(i * 24, 24));
+            assertTrue(writer.write(sample, ENCODING, 48000, 2));
+            assertEquals(0, sample.position());
+            while (writer.getQueueDepth() > 32) {
+                Thread.yield();
+            }
+        }
+        writer.finish();
+
+        assertFalse(writer.isRecording());
+        assertEquals(0, writer.getDroppedBuffers());
+        assertEquals(64, writer.getWrittenBuffers());
+        assertEquals(32 * 24, writer.getBytesWritten());
+        assertEquals(0, writer.getQueueDepth());
+        assertTrue(writer.getWriteCount() > 0);
+        assertArrayEquals(bytes(0, 32 * 24), readPayload());
+    }
+
+    @Test
+    public void finish_withExecutor_writesEverySampleInOrder() throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AsyncWavWriter writer = new AsyncWavWriter(wavFileHelper, 64, 16, executor);
+        writer.start();
+        for (int i = 0; i < 32; i++) {
+            assertTrue(writer.write(ByteBuffer.wrap(bytes(i * 24, 24)), ENCODING, 48000, 2));
+            while (writer.getQueueDepth() > 32) {
+                Thread.yield();
+            }
+        }
+        writer.finish();
+        executor.shutdown();
+
+        assertEquals(0, writer.getDroppedBuffers());
+        assertEquals(64, writer.getWrittenBuffers());
+        assertArrayEquals(bytes(0, 32 * 24), readPayload());
+    }
+
+    @Test
+    public void write_formatChange_isDropped() throws IOException {
+        AsyncWavWriter writer = new AsyncWavWriter(wavFileHelper, 4, 16);
+        writer.start();
+        assertTrue(writer.write(ByteBuffer.wrap(bytes(0, 8)), ENCODING, 48000, 2));
+        assertFalse(writer.write(ByteBuffer.wrap(bytes(8, 8)), ENCODING, 44100, 2));
+        writer.finish();
+
+        assertEquals(1, writer.getDroppedBuffers());
+        assertArrayEquals(bytes(0, 8), readPayload());
+    }
+
+    @Test
+    public void write_fullRing_dropsWithoutBlocking() throws IOException {
+        AsyncWavWriter writer = new AsyncWavWriter(wavFileHelper, 4, 16);
+        writer.start();
+        // A sample needing more slots than the ring holds can never fit
+        assertFalse(writer.write(ByteBuffer.wrap(bytes(0, 80)), ENCODING, 48000, 2));
+        writer.finish();
+
+        // Counted as the five buffers it would have filled
+        assertEquals(5, writer.getDroppedBuffers());
+        assertEquals(0, writer.getWrittenBuffers());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_slotCountNotPowerOfTwo_throws() {
+        new AsyncWavWriter(wavFileHelper, 6, 16);
+    }
+
+    private byte[] readPayload() throws IOException {
+        byte[] wav = Files.readAllBytes(wavFileHelper.getOutputFile().toPath());
+        return Arrays.copyOfRange(wav, WavFileHelper.HEADER_SIZE, wav.length);
+    }
+}
@@ -0,0 +1,187 @@
+package com.twilio.exampleaudiosink;
+
+import static com.twilio.exampleaudiosink.WavFileHelperTest.bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import com.twilio.video.AudioSink;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultitrackRecorderTest {
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int TRACKS = 24;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private MultitrackRecorder recorder;
+
+    @Before
+    public void setUp() {
+        recorder = new MultitrackRecorder(new File(folder.getRoot(), "multitrack"), 2, 16, 32);
+    }
+
+    @Test
+    public void stop_writesEveryTrackToItsOwnFile() throws IOException {
+        recorder.start();
+        List<AudioSink> sinks = new ArrayList<>();
+        for (int i = 0; i < TRACKS; i++) {
+            sinks.add(recorder.addTrack("participant" + i, "MT" + i));
+        }
+        // More tracks than IO threads, each with its own content
+        for (int sample = 0; sample < 64; sample++) {
+            for (int i = 0; i < TRACKS; i++) {
+                sinks.get(i)
+                        .renderSample(
+                                ByteBuffer.wrap(bytes(i * 100 + sample * 16, 16)),
+                                ENCODING,
+                                48000,
+                                1);
+            }
+            waitForQueues();
+        }
+        recorder.stop();
+
+        assertFalse(recorder.isRecording());
+        List<MultitrackRecorder.TrackRecording> tracks = recorder.getTracks();
+        assertEquals(TRACKS, tracks.size());
+        for (int i = 0; i < TRACKS; i++) {
+            MultitrackRecorder.TrackRecording track = tracks.get(i);
+            assertEquals("MT" + i, track.trackSid);
+            assertEquals("participant" + i + "-MT" + i + ".wav", track.file.getName());
+            assertEquals(0, track.writer.getDroppedBuffers());
+            assertTrue(track.getStartOffsetNs() >= 0);
+            assertArrayEquals(bytes(i * 100, 64 * 16), readPayload(track.file));
+        }
+    }
+
+    @Test
+    public void removeTrack_finishesOnlyThatTrack() throws IOException {
+        recorder.start();
+        AudioSink first = recorder.addTrack("alice", "MT1");
+        AudioSink second = recorder.addTrack("bob", "MT2");
+        first.renderSample(ByteBuffer.wrap(bytes(0, 16)), ENCODING, 48000, 1);
+        second.renderSample(ByteBuffer.wrap(bytes(16, 16)), ENCODING, 48000, 1);
+
+        assertEquals(first, recorder.getSink("MT1"));
+        assertEquals(first, recorder.removeTrack("MT1"));
+        assertNull(recorder.getSink("MT1"));
+        assertNull(recorder.removeTrack("MT1"));
+        second.renderSample(ByteBuffer.wrap(bytes(32, 16)), ENCODING, 48000, 1);
+        recorder.stop();
+
+        List<MultitrackRecorder.TrackRecording> tracks = recorder.getTracks();
+        assertFalse(tracks.get(0).isActive());
+        assertArrayEquals(bytes(0, 16), readPayload(tracks.get(0).file));
+        assertArrayEquals(bytes(16, 32), readPayload(tracks.get(1).file));
+    }
+
+    @Test
+    public void addTrack_afterRemove_recordsNewSegment() throws IOException {
+        recorder.start();
+        AudioSink first = recorder.addTrack("alice", "MT1");
+        first.renderSample(ByteBuffer.wrap(bytes(0, 16)), ENCODING, 48000, 1);
+        assertEquals(first, recorder.removeTrack("MT1"));
+        // Resubscribing while the first segment may still be finishing on the IO threads
+        AudioSink second = recorder.addTrack("alice", "MT1");
+        assertNotNull(second);
+        assertNotSame(first, second);
+        second.renderSample(ByteBuffer.wrap(bytes(16, 32)), ENCODING, 48000, 1);
+        recorder.stop();
+
+        List<MultitrackRecorder.TrackRecording> tracks = recorder.getTracks();
+        assertEquals(2, tracks.size());
+        assertEquals("alice-MT1.wav", tracks.get(0).file.getName());
+        assertEquals("alice-MT1-2.wav", tracks.get(1).file.getName());
+        assertArrayEquals(bytes(0, 16), readPayload(tracks.get(0).file));
+        assertArrayEquals(bytes(16, 32), readPayload(tracks.get(1).file));
+
+        List<String> lines = Files.readAllLines(recorder.getManifestFile().toPath());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).startsWith("alice,MT1,alice-MT1.wav,"));
+        assertTrue(lines.get(2).startsWith("alice,MT1,alice-MT1-2.wav,"));
+    }
+
+    @Test
+    public void addTrack_sameTrackTwice_returnsNull() throws IOException {
+        recorder.start();
+        assertNotNull(recorder.addTrack("alice", "MT1"));
+        assertNull(recorder.addTrack("alice", "MT1"));
+        recorder.stop();
+    }
+
+    @Test
+    public void stop_writesManifest() throws IOException {
+        recorder.start();
+        recorder.addTrack("alice", "MT1")
+                .renderSample(ByteBuffer.wrap(bytes(0, 16)), ENCODING, 48000, 1);
+        recorder.addTrack("bob", "MT2");
+        recorder.stop();
+
+        List<String> lines = Files.readAllLines(recorder.getManifestFile().toPath());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("participant,track,file,start_offset_ms"));
+        assertTrue(lines.get(1).startsWith("alice,MT1,alice-MT1.wav,"));
+        assertTrue(lines.get(1).endsWith(",48000,1,16,96,0"));
+        // A track without samples has no offset
+        assertTrue(lines.get(2).startsWith("bob,MT2,bob-MT2.wav,,0,0,0,"));
+    }
+
+    @Test
+    public void recoverRecordings_repairsUnfinishedWavFiles() throws IOException {
+        File directory = folder.newFolder("recover");
+        WavFileHelper unfinished = new WavFileHelper(new File(directory, "a-MT1.wav").getPath());
+        unfinished.createFile();
+        unfinished.writeBytesToFile(ByteBuffer.wrap(bytes(0, 16)), ENCODING, 48000, 1);
+        Files.write(new File(directory, "notes.txt").toPath(), bytes(0, 16));
+
+        List<File> recovered = MultitrackRecorder.recoverRecordings(directory);
+        assertEquals(1, recovered.size());
+        assertEquals("a-MT1.wav", recovered.get(0).getName());
+        assertTrue(MultitrackRecorder.recoverRecordings(directory).isEmpty());
+    }
+
+    @Test
+    public void fileName_replacesUnsafeCharacters() {
+        assertEquals("a_b_c-MT1.wav", MultitrackRecorder.fileName("a/b c", "MT1", 1, ".wav"));
+        assertEquals("a_b_c-MT1-2.m4a", MultitrackRecorder.fileName("a/b c", "MT1", 2, ".m4a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setAacBitrate_outOfRange_throws() {
+        recorder.setAacBitrate(1000);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addTrack_beforeStart_throws() throws IOException {
+        recorder.addTrack("alice", "MT1");
+    }
+
+    private void waitForQueues() {
+        for (MultitrackRecorder.TrackRecording track : recorder.getTracks()) {
+            while (track.writer.getQueueDepth() > 8) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static byte[] readPayload(File file) throws IOException {
+        byte[] wav = Files.readAllBytes(file.toPath());
+        return Arrays.copyOfRange(wav, WavFileHelper.HEADER_SIZE, wav.length);
+    }
+}
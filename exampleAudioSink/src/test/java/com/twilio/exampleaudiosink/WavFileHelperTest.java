@@ -0,0 +1,239 @@
+package com.twilio.exampleaudiosink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.media.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WavFileHelperTest {
+    private static final int HEADER_SIZE = WavFileHelper.HEADER_SIZE;
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private WavFileHelper wavFileHelper;
+
+    @Before
+    public void setUp() throws IOException {
+        wavFileHelper = new WavFileHelper(new File(folder.getRoot(), "test.wav").getPath());
+        wavFileHelper.createFile();
+    }
+
+    @Test
+    public void writeBytesToFile_heapBuffer_writesOnlyRemainingBytes() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes(0, 16));
+        buffer.position(4).limit(12);
+
+        write(buffer);
+        assertArrayEquals(bytes(4, 8), finishAndReadPayload());
+        assertEquals(4, buffer.position());
+        assertEquals(12, buffer.limit());
+    }
+
+    @Test
+    public void writeBytesToFile_directBuffer_isWritten() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put(bytes(0, 16));
+        buffer.flip();
+        assertFalse(buffer.hasArray());
+
+        write(buffer);
+        assertArrayEquals(bytes(0, 16), finishAndReadPayload());
+    }
+
+    @Test
+    public void writeBytesToFile_slicedBuffer_startsAtSliceOffset() throws IOException {
+        ByteBuffer parent = ByteBuffer.wrap(bytes(0, 32));
+        parent.position(8);
+        ByteBuffer slice = parent.slice();
+        slice.limit(8);
+        assertEquals(8, slice.arrayOffset());
+
+        write(slice);
+        assertArrayEquals(bytes(8, 8), finishAndReadPayload());
+    }
+
+    @Test
+    public void writeBytesToFile_readOnlyBuffer_isWritten() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes(0, 16)).asReadOnlyBuffer();
+        assertFalse(buffer.hasArray());
+
+        write(buffer);
+        assertArrayEquals(bytes(0, 16), finishAndReadPayload());
+    }
+
+    @Test
+    public void writeBytesToFile_consecutiveBuffers_areAppended() throws IOException {
+        write(ByteBuffer.wrap(bytes(0, 8)));
+        ByteBuffer direct = ByteBuffer.allocateDirect(8);
+        direct.put(bytes(8, 8));
+        direct.flip();
+        write(direct);
+
+        assertArrayEquals(bytes(0, 16), finishAndReadPayload());
+    }
+
+    @Test
+    public void finish_completesHeader() throws IOException {
+        write(ByteBuffer.wrap(bytes(0, 40)));
+        assertTrue(wavFileHelper.isFileWriteInProgress());
+        wavFileHelper.finish();
+        assertFalse(wavFileHelper.isFileWriteInProgress());
+
+        ByteBuffer wav = readFile();
+        assertEquals("RIFF", id(wav, 0));
+        assertEquals(HEADER_SIZE + 40 - 8, wav.getInt(4));
+        assertEquals("JUNK", id(wav, 12));
+        assertEquals("fmt ", id(wav, 48));
+        assertEquals(CHANNELS, wav.getShort(58));
+        assertEquals(SAMPLE_RATE, wav.getInt(60));
+        assertEquals(SAMPLE_RATE * CHANNELS * 2, wav.getInt(64));
+        assertEquals(16, wav.getShort(70));
+        assertEquals("data", id(wav, 72));
+        assertEquals(40, wav.getInt(76));
+    }
+
+    @Test
+    public void checkpoint_updatesSizesWhileRecording() throws IOException {
+        File file = new File(folder.getRoot(), "checkpoint.wav");
+        wavFileHelper = new WavFileHelper(file.getPath(), 0);
+        wavFileHelper.createFile();
+        write(ByteBuffer.wrap(bytes(0, 40)));
+        write(ByteBuffer.wrap(bytes(40, 40)));
+
+        ByteBuffer wav = readFile();
+        assertEquals(HEADER_SIZE + 80 - 8, wav.getInt(4));
+        assertEquals(80, wav.getInt(76));
+        assertEquals(HEADER_SIZE + 80, wav.limit());
+        wavFileHelper.finish();
+    }
+
+    @Test
+    public void checkpoint_notDue_leavesSizesForFinish() throws IOException {
+        write(ByteBuffer.wrap(bytes(0, 40)));
+
+        assertEquals(0, readFile().getInt(76));
+        wavFileHelper.finish();
+        assertEquals(40, readFile().getInt(76));
+    }
+
+    @Test
+    public void createWavHeader_over4Gb_isRf64() {
+        long dataBytes = 5L * 1024 * 1024 * 1024;
+        ByteBuffer header =
+                WavFileHelper.createWavHeader((short) 2, SAMPLE_RATE, (short) 16, dataBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(HEADER_SIZE, header.remaining());
+        assertEquals("RF64", id(header, 0));
+        assertEquals(-1, header.getInt(4));
+        assertEquals("ds64", id(header, 12));
+        assertEquals(28, header.getInt(16));
+        assertEquals(HEADER_SIZE - 8 + dataBytes, header.getLong(20));
+        assertEquals(dataBytes, header.getLong(28));
+        assertEquals(dataBytes / 4, header.getLong(36));
+        assertEquals("fmt ", id(header, 48));
+        assertEquals(-1, header.getInt(76));
+    }
+
+    @Test
+    public void recoverWavFile_unfinishedFile_repairsSizes() throws IOException {
+        // Ends in the middle of a sample frame
+        write(ByteBuffer.wrap(bytes(0, 42)));
+
+        File wav = wavFileHelper.getOutputFile();
+        assertTrue(WavFileHelper.recoverWavFile(wav));
+        ByteBuffer repaired = readFile();
+        assertEquals(HEADER_SIZE + 40, repaired.limit());
+        assertEquals(HEADER_SIZE + 40 - 8, repaired.getInt(4));
+        assertEquals(40, repaired.getInt(76));
+        assertFalse(WavFileHelper.recoverWavFile(wav));
+    }
+
+    @Test
+    public void recoverWavFile_finishedFile_isUnchanged() throws IOException {
+        write(ByteBuffer.wrap(bytes(0, 40)));
+        wavFileHelper.finish();
+
+        assertFalse(WavFileHelper.recoverWavFile(wavFileHelper.getOutputFile()));
+        assertArrayEquals(bytes(0, 40), finishAndReadPayload());
+    }
+
+    @Test
+    public void recoverWavFile_44ByteHeader_repairsSizes() throws IOException {
+        ByteBuffer legacy = ByteBuffer.allocate(52).order(ByteOrder.LITTLE_ENDIAN);
+        legacy.put(ascii("RIFF")).putInt(0).put(ascii("WAVE"));
+        legacy.put(ascii("fmt ")).putInt(16).putShort((short) 1).putShort((short) 1);
+        legacy.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2);
+        legacy.putShort((short) 16);
+        legacy.put(ascii("data")).putInt(0).put(bytes(0, 8));
+        File wav = folder.newFile("legacy.wav");
+        Files.write(wav.toPath(), legacy.array());
+
+        assertTrue(WavFileHelper.recoverWavFile(wav));
+        ByteBuffer repaired =
+                ByteBuffer.wrap(Files.readAllBytes(wav.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(44, repaired.getInt(4));
+        assertEquals(8, repaired.getInt(40));
+    }
+
+    @Test
+    public void recoverWavFile_notWav_returnsFalse() throws IOException {
+        File text = folder.newFile("notes.txt");
+        Files.write(text.toPath(), bytes(0, 64));
+
+        assertFalse(WavFileHelper.recoverWavFile(text));
+        assertArrayEquals(bytes(0, 64), Files.readAllBytes(text.toPath()));
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        wavFileHelper.writeBytesToFile(
+                buffer, AudioFormat.ENCODING_PCM_16BIT, SAMPLE_RATE, CHANNELS);
+    }
+
+    private byte[] finishAndReadPayload() throws IOException {
+        wavFileHelper.finish();
+        byte[] wav = Files.readAllBytes(wavFileHelper.getOutputFile().toPath());
+        return Arrays.copyOfRange(wav, HEADER_SIZE, wav.length);
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(wavFileHelper.getOutputFile().toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String id(ByteBuffer buffer, int index) {
+        byte[] id = new byte[4];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = buffer.get(index + i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] ascii(String id) {
+        return id.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Returns {@code length} consecutive byte values starting at {@code first}. */
+    static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,94 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import com.twilio.video.examples.common.LatencyStats
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+
+/**
+ * AudioProcessingChain runs a sequence of [AudioProcessor] stages over 16 bit PCM buffers in
+ * place. The ShortBuffer view of a buffer is created once and reused for as long as the same
+ * buffer is passed in, so processing neither copies nor allocates. The time spent in each
+ * stage is recorded on the processing thread and can be read from any thread.
+ */
+class AudioProcessingChain(processors: List<AudioProcessor>) {
+    constructor(vararg processors: AudioProcessor) : this(processors.toList())
+
+    /**
+     * Stages in processing order, with the time spent in each.
+     */
+    val stages: List<Stage> = processors.map { Stage(it) }
+
+    /**
+     * Time spent processing each buffer by all stages together.
+     */
+    val totalTime = LatencyStats()
+
+    private var viewedBuffer: ByteBuffer? = null
+    private var view: ShortBuffer? = null
+
+    /**
+     * Prepares every stage for audio in the given format. Must be called before [process].
+     */
+    fun prepare(sampleRate: Int, channelCount: Int) {
+        require(sampleRate > 0 && channelCount > 0) { "Invalid format $sampleRate $channelCount" }
+        for (stage in stages) {
+            stage.processor.prepare(sampleRate, channelCount)
+            stage.time.reset()
+        }
+        totalTime.reset()
+    }
+
+    /**
+     * Runs every stage over the remaining bytes of [buffer], which holds samples in native byte
+     * order. The position and limit of [buffer] are not modified.
+     */
+    fun process(buffer: ByteBuffer) {
+        val samples = viewOf(buffer)
+        val startNs = System.nanoTime()
+        var stageStartNs = startNs
+        for (stage in stages) {
+            stage.processor.process(samples)
+            val endNs = System.nanoTime()
+            stage.time.record(endNs - stageStartNs)
+            stageStartNs = endNs
+        }
+        totalTime.record(stageStartNs - startNs)
+    }
+
+    /**
+     * Returns the stage running [processor].
+     */
+    fun stageOf(processor: AudioProcessor): Stage {
+        return stages.first { it.processor === processor }
+    }
+
+    override fun toString(): String {
+        return stages.joinToString(separator = ", ", postfix = ", total: $totalTime") {
+            "${it.processor.javaClass.simpleName}: ${it.time}"
+        }
+    }
+
+    private fun viewOf(buffer: ByteBuffer): ShortBuffer {
+        require(buffer.order() == ByteOrder.nativeOrder()) { "Samples must be in native byte order" }
+        var samples = view
+        if (samples == null || viewedBuffer !== buffer) {
+            // A duplicate starts out big endian, so restore the order before taking the view
+            val duplicate = buffer.duplicate().order(buffer.order())
+            duplicate.clear()
+            samples = duplicate.asShortBuffer()
+            viewedBuffer = buffer
+            view = samples
+        }
+        samples.clear()
+        samples.limit(buffer.limit() / 2).position(buffer.position() / 2)
+        return samples
+    }
+
+    /**
+     * A processor and the time spent in it.
+     */
+    class Stage internal constructor(val processor: AudioProcessor) {
+        val time = LatencyStats()
+    }
+}
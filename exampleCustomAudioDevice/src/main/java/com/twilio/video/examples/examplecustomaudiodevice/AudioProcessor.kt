@@ -0,0 +1,51 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ShortBuffer
+import kotlin.math.exp
+import kotlin.math.log10
+import kotlin.math.pow
+import kotlin.math.sqrt
+
+/**
+ * AudioProcessor is one stage of an [AudioProcessingChain]. Stages work in place on interleaved
+ * 16 bit samples and keep whatever state they need between buffers. A stage is only ever called
+ * from one thread at a time.
+ */
+interface AudioProcessor {
+    /**
+     * Resets all state for audio in the given format. Called before the first buffer.
+     */
+    fun prepare(sampleRate: Int, channelCount: Int)
+
+    /**
+     * Processes the remaining samples of [samples] in place. The position and limit of
+     * [samples] must be left unchanged.
+     */
+    fun process(samples: ShortBuffer)
+}
+
+// Level of full scale 16 bit samples, 0 dBFS
+internal const val FULL_SCALE = 32768.0
+
+internal fun dbToLevel(db: Double): Double = 10.0.pow(db / 20)
+
+internal fun levelToDb(level: Double): Double = 20 * log10(maxOf(level, 1e-10))
+
+/*
+ * Returns the per frame decay of a one pole smoother with the given time constant.
+ */
+internal fun smoothingCoefficient(timeConstantMs: Double, sampleRate: Int): Float {
+    return exp(-1000 / (timeConstantMs * sampleRate)).toFloat()
+}
+
+/*
+ * Returns the RMS level of the remaining samples in dBFS.
+ */
+internal fun rmsDb(samples: ShortBuffer): Double {
+    var sumOfSquares = 0.0
+    for (i in samples.position() until samples.limit()) {
+        val sample = samples.get(i).toDouble()
+        sumOfSquares += sample * sample
+    }
+    return levelToDb(sqrt(sumOfSquares / maxOf(1, samples.remaining())) / FULL_SCALE)
+}
@@ -0,0 +1,92 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+/**
+ * AudioTrackBufferTuner sizes the playback buffer of an AudioTrack from the underrun count it
+ * reports. The buffer grows by one burst whenever new underruns are seen. After a quiet period
+ * without underruns it shrinks by one burst to win back latency. If a shrink is followed by an
+ * underrun within the quiet period, the period doubles before the next attempt, so a device
+ * that cannot sustain a smaller buffer settles at the size it needs.
+ *
+ * The tuner only does the bookkeeping. The caller applies [bufferFrames] with
+ * AudioTrack.setBufferSizeInFrames and reports the size the track chose with
+ * [onBufferSizeApplied]. Instances are not thread safe.
+ */
+class AudioTrackBufferTuner(
+    val burstFrames: Int,
+    val minBufferFrames: Int,
+    val maxBufferFrames: Int,
+    initialBufferFrames: Int,
+    private val quietPeriodMs: Long = DEFAULT_QUIET_PERIOD_MS,
+) {
+    /**
+     * Buffer size in frames the track should use.
+     */
+    var bufferFrames = initialBufferFrames.coerceIn(minBufferFrames, maxBufferFrames)
+        private set
+
+    /**
+     * Underruns seen since the first call to [update].
+     */
+    var underruns = 0L
+        private set
+
+    private var lastUnderrunCount = -1
+    private var quietSinceMs = 0L
+    private var lastShrinkMs = NEVER
+    private var requiredQuietMs = quietPeriodMs
+
+    init {
+        require(burstFrames > 0) { "Invalid burst $burstFrames" }
+        require(minBufferFrames in 1..maxBufferFrames) {
+            "Invalid buffer range $minBufferFrames to $maxBufferFrames"
+        }
+    }
+
+    /**
+     * Updates the tuner with the cumulative underrun count of the track at [nowMs]. The first
+     * call only records a baseline, since tracks commonly underrun once while playback starts.
+     * Returns true if [bufferFrames] changed and should be applied to the track.
+     */
+    fun update(underrunCount: Int, nowMs: Long): Boolean {
+        if (lastUnderrunCount < 0 || underrunCount < lastUnderrunCount) {
+            lastUnderrunCount = underrunCount
+            quietSinceMs = nowMs
+            return false
+        }
+        val newUnderruns = underrunCount - lastUnderrunCount
+        lastUnderrunCount = underrunCount
+        val previousFrames = bufferFrames
+        if (newUnderruns > 0) {
+            underruns += newUnderruns
+            if (lastShrinkMs != NEVER && nowMs - lastShrinkMs < requiredQuietMs) {
+                // The last shrink was too aggressive, wait longer before trying again
+                requiredQuietMs = minOf(2 * requiredQuietMs, MAX_QUIET_PERIOD_MS)
+            }
+            lastShrinkMs = NEVER
+            quietSinceMs = nowMs
+            bufferFrames = minOf(bufferFrames + burstFrames, maxBufferFrames)
+        } else if (nowMs - quietSinceMs >= requiredQuietMs && bufferFrames > minBufferFrames) {
+            lastShrinkMs = nowMs
+            quietSinceMs = nowMs
+            bufferFrames = maxOf(bufferFrames - burstFrames, minBufferFrames)
+        }
+        return bufferFrames != previousFrames
+    }
+
+    /**
+     * Records the buffer size the track actually chose, which may be rounded by the platform.
+     */
+    fun onBufferSizeApplied(actualFrames: Int) {
+        if (actualFrames > 0) {
+            bufferFrames = actualFrames
+        }
+    }
+
+    companion object {
+        // Playback must run this long without underruns before the buffer shrinks.
+        const val DEFAULT_QUIET_PERIOD_MS = 10_000L
+
+        private const val MAX_QUIET_PERIOD_MS = 10 * 60 * 1000L
+        private const val NEVER = Long.MIN_VALUE
+    }
+}
@@ -0,0 +1,96 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ShortBuffer
+import kotlin.math.exp
+
+/**
+ * AutomaticGainControl steers the RMS level of the signal towards [targetDb] dBFS. The gain is
+ * kept between [minGainDb] and [maxGainDb] and is held while the level is below
+ * [noiseFloorDb], so pauses are not amplified. The gain falls with the [attackMs] time constant
+ * and rises with the slower [releaseMs] one. It ramps across each buffer, and peaks above the
+ * [PcmMixer] knee are soft clipped.
+ */
+class AutomaticGainControl(
+    private val targetDb: Double = DEFAULT_TARGET_DB,
+    private val minGainDb: Double = DEFAULT_MIN_GAIN_DB,
+    private val maxGainDb: Double = DEFAULT_MAX_GAIN_DB,
+    private val noiseFloorDb: Double = DEFAULT_NOISE_FLOOR_DB,
+    private val attackMs: Double = DEFAULT_ATTACK_MS,
+    private val releaseMs: Double = DEFAULT_RELEASE_MS,
+) : AudioProcessor {
+    private var sampleRate = 1
+    private var channelCount = 1
+    private var gain = 1.0
+
+    /**
+     * Gain applied at the end of the last buffer, in dB.
+     */
+    @Volatile
+    var gainDb = 0.0
+        private set
+
+    /**
+     * Number of samples that exceeded the soft clip knee after gain and were limited.
+     */
+    @Volatile
+    var limitedSamples = 0L
+        private set
+
+    init {
+        require(minGainDb <= maxGainDb) { "Invalid gain range $minGainDb to $maxGainDb" }
+    }
+
+    override fun prepare(sampleRate: Int, channelCount: Int) {
+        this.sampleRate = sampleRate
+        this.channelCount = channelCount
+        gain = 1.0
+        gainDb = 0.0
+        limitedSamples = 0
+    }
+
+    override fun process(samples: ShortBuffer) {
+        val start = samples.position()
+        val end = samples.limit()
+        if (start == end) {
+            return
+        }
+        val levelDb = rmsDb(samples)
+        var targetGain = gain
+        if (levelDb >= noiseFloorDb) {
+            val desiredGain = dbToLevel((targetDb - levelDb).coerceIn(minGainDb, maxGainDb))
+            val timeConstantMs = if (desiredGain < gain) attackMs else releaseMs
+            val bufferMs = 1000.0 * (end - start) / channelCount / sampleRate
+            targetGain += (desiredGain - gain) * (1 - exp(-bufferMs / timeConstantMs))
+        }
+
+        // Ramp from the current gain to the new one across the buffer
+        val frames = (end - start) / channelCount
+        val step = if (frames > 0) ((targetGain - gain) / frames).toFloat() else 0f
+        var frameGain = gain.toFloat()
+        var limited = 0
+        for (i in start until end) {
+            if ((i - start) % channelCount == 0) {
+                frameGain += step
+            }
+            val value = (samples.get(i) * frameGain).toInt()
+            if (value > PcmMixer.SOFT_CLIP_KNEE || value < -PcmMixer.SOFT_CLIP_KNEE) {
+                limited++
+                samples.put(i, PcmMixer.softClip(value).toShort())
+            } else {
+                samples.put(i, value.toShort())
+            }
+        }
+        gain = targetGain
+        gainDb = levelToDb(gain)
+        limitedSamples += limited
+    }
+
+    companion object {
+        const val DEFAULT_TARGET_DB = -20.0
+        const val DEFAULT_MIN_GAIN_DB = -12.0
+        const val DEFAULT_MAX_GAIN_DB = 24.0
+        const val DEFAULT_NOISE_FLOOR_DB = -50.0
+        const val DEFAULT_ATTACK_MS = 100.0
+        const val DEFAULT_RELEASE_MS = 1000.0
+    }
+}
@@ -2,85 +2,236 @@ package com.twilio.video.examples.examplecustomaudiodevice
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.media.AudioAttributes
 import android.media.AudioManager
 import android.media.AudioRecord
+import android.media.AudioTimestamp
 import android.media.AudioTrack
 import android.media.MediaRecorder
+import android.os.Build
 import android.os.Handler
 import android.os.HandlerThread
 import android.os.Process
+import android.os.SystemClock
 import android.util.Log
 import com.twilio.video.AudioDevice
 import com.twilio.video.AudioDeviceContext
 import com.twilio.video.AudioFormat
+import com.twilio.video.examples.common.LatencyStats
 import tvi.webrtc.ThreadUtils
-import java.io.DataInputStream
+import java.io.File
 import java.io.IOException
-import java.io.InputStream
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
 
-class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
+/*
+ * FileAndMicAudioDevice captures audio from a WAV file, the microphone, or both mixed together.
+ * By default the file is the "music" raw resource, a different WAV file can be provided with
+ * musicFile. On API 26 and above the renderer requests a low latency AudioTrack unless
+ * lowLatencyRendering is false.
+ */
+class FileAndMicAudioDevice(
+    private val context: Context,
+    private val musicFile: File? = null,
+    private val lowLatencyRendering: Boolean = true,
+) : AudioDevice {
     private var keepAliveRendererRunnable = true
 
     // Average number of callbacks per second.
     private val BUFFERS_PER_SECOND = 1000 / CALLBACK_BUFFER_SIZE_MS
-    private lateinit var fileWriteByteBuffer: ByteBuffer
+    private var musicSource: WavSource? = null
+    private var musicResampler: PcmResampler? = null
+    private lateinit var resampleByteBuffer: ByteBuffer
+    private lateinit var silenceByteBuffer: ByteBuffer
+    private lateinit var musicMixByteBuffer: ByteBuffer
     private var writeBufferSize = 0
-    private lateinit var inputStream: InputStream
-    private lateinit var dataInputStream: DataInputStream
     private lateinit var audioRecord: AudioRecord
     private lateinit var micWriteBuffer: ByteBuffer
     private lateinit var readByteBuffer: ByteBuffer
     private lateinit var audioTrack: AudioTrack
+    private var rendererTuner: AudioTrackBufferTuner? = null
+    private val rendererTimestamp = AudioTimestamp()
+    private var rendererSampleRate = 0
+    private var rendererFramesPerBuffer = 0
+    private var framesRendered = 0L
+    private lateinit var captureRingBuffer: PcmRingBuffer
+    private lateinit var pushByteBuffer: ByteBuffer
+
+    @Volatile
+    private var keepAlivePushThread = false
 
     // Handlers and Threads
     private lateinit var capturerHandler: Handler
     private lateinit var capturerThread: HandlerThread
+    private var capturePushThread: Thread? = null
     private lateinit var rendererHandler: Handler
     private lateinit var rendererThread: HandlerThread
     private lateinit var renderingAudioDeviceContext: AudioDeviceContext
     private lateinit var capturingAudioDeviceContext: AudioDeviceContext
 
+    // Clock of the file capturer, only accessed on the capturer thread
+    private var fileCaptureStartNs = 0L
+    private var fileBuffersCaptured = 0L
+
+    @Volatile
+    private var restartFileClock = true
+
+    /**
+     * How far each run of the file capturer was from its deadline.
+     */
+    val fileCaptureJitter = LatencyStats()
+
+    /**
+     * Number of additional buffers pushed by the file capturer to catch up after running late.
+     */
+    @Volatile
+    var fileCatchUpBuffers = 0L
+        private set
+
+    /**
+     * Number of buffers the file capturer skipped because it fell too far behind to catch up.
+     */
+    @Volatile
+    var fileSkippedBuffers = 0L
+        private set
+
     // By default music capturer is enabled
     var isMusicPlaying = false
         private set
 
+    /**
+     * True while the music file is mixed underneath the microphone, see [startMixing].
+     */
+    @Volatile
+    var isMixing = false
+        private set
+
+    /**
+     * Gain applied to the microphone while mixing.
+     */
+    @Volatile
+    var microphoneGain = 1f
+
+    /**
+     * Gain applied to the music file while mixing.
+     */
+    @Volatile
+    var musicGain = DEFAULT_MUSIC_GAIN
+
+    /**
+     * Number of mixed samples that exceeded the soft clip knee and were limited.
+     */
+    @Volatile
+    var mixClippedSamples = 0L
+        private set
+
+    /**
+     * Number of mixed buffers for which the music file could not provide a full buffer.
+     */
+    @Volatile
+    var mixMusicUnderruns = 0L
+        private set
+
+    /**
+     * Number of mixed buffers for which the microphone returned a short read.
+     */
+    @Volatile
+    var mixMicrophoneUnderruns = 0L
+        private set
+
+    /**
+     * Optional processing applied in place to each microphone buffer on the capturer thread,
+     * before music is mixed in. It can be replaced while capturing. The capturer thread prepares
+     * a new chain for the capturer format before its first buffer, so a chain is never prepared
+     * while it is processing.
+     */
+    @Volatile
+    var microphoneProcessing: AudioProcessingChain? = null
+
+    // The chain last prepared by the capturer thread, only accessed on that thread
+    private var preparedMicrophoneProcessing: AudioProcessingChain? = null
+
+    /**
+     * Estimated time from a buffer being written to the AudioTrack until it is played out. This
+     * is the renderer's share of the mouth to ear delay.
+     */
+    val rendererLatency = LatencyStats()
+
+    /**
+     * True if the platform granted the low latency performance mode to the AudioTrack.
+     */
+    @Volatile
+    var isLowLatencyRenderer = false
+        private set
+
+    /**
+     * Current size of the AudioTrack buffer in frames.
+     */
+    @Volatile
+    var rendererBufferSizeFrames = 0
+        private set
+
+    /**
+     * Number of AudioTrack underruns since rendering started. Only counted on API 24 and above.
+     */
+    @Volatile
+    var rendererUnderruns = 0L
+        private set
+
     /*
      * This Runnable reads a music file and provides the audio frames to the AudioDevice API via
-     * AudioDevice.audioDeviceWriteCaptureData(..) until there is no more data to be read, the
-     * capturer input switches to the microphone, or the call ends.
+     * the capture ring buffer until there is no more data to be read, the capturer input switches
+     * to the microphone, or the call ends.
+     *
+     * Each run is scheduled at an absolute deadline computed from the time file capture started,
+     * so processing time never accumulates as drift. A late run pushes the buffers it missed, up
+     * to MAX_CATCH_UP_BUFFERS, and skips any beyond that.
      */
-
     private val fileCapturerRunnable = object : Runnable {
         override fun run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
-            var bytesRead: Int
-            try {
-                if (dataInputStream.read(fileWriteByteBuffer.array(), 0, writeBufferSize).also { bytesRead = it } > -1) {
-                    if (bytesRead == fileWriteByteBuffer.capacity()) {
-                        AudioDevice.audioDeviceWriteCaptureData(
-                            capturingAudioDeviceContext,
-                            fileWriteByteBuffer,
-                        )
-                    } else {
-                        processRemaining(fileWriteByteBuffer, fileWriteByteBuffer.capacity())
-                        AudioDevice.audioDeviceWriteCaptureData(
-                            capturingAudioDeviceContext,
-                            fileWriteByteBuffer,
-                        )
-                    }
-                }
-            } catch (e: IOException) {
-                e.printStackTrace()
+            val nowNs = System.nanoTime()
+            if (restartFileClock) {
+                restartFileClock = false
+                fileCaptureStartNs = nowNs
+                fileBuffersCaptured = 0L
+                fileCaptureJitter.reset()
+                musicResampler?.reset()
+            }
+            val deadlineNs = fileCaptureStartNs + fileBuffersCaptured * BUFFER_DURATION_NS
+            fileCaptureJitter.record(Math.abs(nowNs - deadlineNs))
+
+            // Every buffer whose deadline has passed is due now
+            val dueBuffers = (nowNs - fileCaptureStartNs) / BUFFER_DURATION_NS + 1 - fileBuffersCaptured
+            if (dueBuffers > MAX_CATCH_UP_BUFFERS) {
+                fileSkippedBuffers += dueBuffers - MAX_CATCH_UP_BUFFERS
+                fileBuffersCaptured += dueBuffers - MAX_CATCH_UP_BUFFERS
             }
-            capturerHandler.postDelayed(this, CALLBACK_BUFFER_SIZE_MS.toLong())
+            val buffersToPush = minOf(dueBuffers, MAX_CATCH_UP_BUFFERS)
+            if (buffersToPush > 1) {
+                fileCatchUpBuffers += buffersToPush - 1
+            }
+            for (i in 0 until buffersToPush) {
+                readFileBuffer(null)
+                capturePushThread?.let { LockSupport.unpark(it) }
+                fileBuffersCaptured++
+            }
+
+            // Schedule the next run at its deadline on the uptime clock used by Handler, rounding
+            // up so the run is never early
+            val nextDeadlineNs = fileCaptureStartNs + fileBuffersCaptured * BUFFER_DURATION_NS
+            val delayMs = TimeUnit.NANOSECONDS.toMillis(nextDeadlineNs - System.nanoTime() + NANOS_PER_MILLI - 1)
+            capturerHandler.postAtTime(this, SystemClock.uptimeMillis() + maxOf(0L, delayMs))
         }
     }
 
     /*
      * This Runnable reads data from the microphone and provides the audio frames to the AudioDevice
-     * API via AudioDevice.audioDeviceWriteCaptureData(..) until the capturer input switches to
-     * microphone or the call ends.
+     * API via the capture ring buffer until the capturer input switches to the music file or the
+     * call ends. While mixing, each microphone buffer has the next 10ms of the music file mixed
+     * into it in place, so the microphone keeps its single buffer of latency.
      */
     private val microphoneCapturerRunnable = Runnable {
         Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
@@ -88,11 +239,21 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
             audioRecord.startRecording()
             while (true) {
                 val bytesRead = audioRecord.read(micWriteBuffer, micWriteBuffer.capacity())
-                if (bytesRead == micWriteBuffer.capacity()) {
-                    AudioDevice.audioDeviceWriteCaptureData(
-                        capturingAudioDeviceContext,
-                        micWriteBuffer,
-                    )
+                if (isMixing && bytesRead in 0 until micWriteBuffer.capacity()) {
+                    // Pad a short read with silence so the music keeps playing
+                    mixMicrophoneUnderruns++
+                    for (i in bytesRead until micWriteBuffer.capacity()) {
+                        micWriteBuffer.put(i, 0)
+                    }
+                    processMicrophone(micWriteBuffer)
+                    mixMusic(micWriteBuffer)
+                    writeCaptureData(micWriteBuffer)
+                } else if (bytesRead == micWriteBuffer.capacity()) {
+                    processMicrophone(micWriteBuffer)
+                    if (isMixing) {
+                        mixMusic(micWriteBuffer)
+                    }
+                    writeCaptureData(micWriteBuffer)
                 } else {
                     val errorMessage = "AudioRecord.read failed: $bytesRead"
                     Log.e(TAG, errorMessage)
@@ -106,6 +267,30 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
         }
     }
 
+    /*
+     * This Runnable is the only consumer of the capture ring buffer. It provides each 10ms buffer
+     * written by the file or microphone capturer to the AudioDevice API via
+     * AudioDevice.audioDeviceWriteCaptureData(..), so producers never block on the SDK.
+     */
+    private val capturePushRunnable = Runnable {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+        val bufferSize = pushByteBuffer.capacity()
+        while (keepAlivePushThread) {
+            // Wait until a producer signals a full buffer, giving up after two buffer durations
+            if (captureRingBuffer.availableBytes < bufferSize) {
+                LockSupport.parkNanos(this, PUSH_WAIT_TIMEOUT_NS)
+                if (!keepAlivePushThread) {
+                    break
+                }
+            }
+            pushByteBuffer.clear()
+            if (captureRingBuffer.read(pushByteBuffer, bufferSize)) {
+                pushByteBuffer.flip()
+                AudioDevice.audioDeviceWriteCaptureData(capturingAudioDeviceContext, pushByteBuffer)
+            }
+        }
+    }
+
     /*
      * This Runnable reads audio data from the callee perspective via AudioDevice.audioDeviceReadRenderData(...)
      * and plays out the audio data using AudioTrack.write().
@@ -128,6 +313,11 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
                     keepAliveRendererRunnable = false
                     break
                 }
+            } else {
+                framesRendered += rendererFramesPerBuffer
+                if (framesRendered % (RENDERER_TUNING_INTERVAL_BUFFERS * rendererFramesPerBuffer) == 0L) {
+                    tuneRenderer()
+                }
             }
             // The byte buffer must be rewinded since byteBuffer.position() is increased at each
             // call to AudioTrack.write(). If we don't do this, will fail the next  AudioTrack.write().
@@ -140,13 +330,33 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
      * @param playMusic
      */
     fun switchInput(playMusic: Boolean) {
+        val wasMixing = isMixing
+        isMixing = false
         isMusicPlaying = playMusic
         if (playMusic) {
-            initializeStreams()
+            musicSource?.seekToFrame(0)
             capturerHandler.removeCallbacks(microphoneCapturerRunnable)
             stopRecording()
-            capturerHandler.post(fileCapturerRunnable)
-        } else {
+            startFileCapture()
+        } else if (!wasMixing) {
+            capturerHandler.removeCallbacks(fileCapturerRunnable)
+            capturerHandler.post(microphoneCapturerRunnable)
+        }
+    }
+
+    /*
+     * Captures the microphone with the music file mixed underneath it. The microphone drives the
+     * timing, so the file capturer is stopped and music is pulled 10ms at a time by the
+     * microphone capturer. Use switchInput to return to a single input.
+     */
+    fun startMixing() {
+        if (isMixing) {
+            return
+        }
+        val wasMusicPlaying = isMusicPlaying
+        isMusicPlaying = true
+        isMixing = true
+        if (wasMusicPlaying) {
             capturerHandler.removeCallbacks(fileCapturerRunnable)
             capturerHandler.post(microphoneCapturerRunnable)
         }
@@ -178,7 +388,7 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
             channelConfig,
             android.media.AudioFormat.ENCODING_PCM_16BIT,
         )
-        micWriteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * framesPerBuffer)
+        micWriteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * framesPerBuffer).order(ByteOrder.nativeOrder())
         val tempMicWriteBuffer = micWriteBuffer
         val bufferSizeInBytes = Math.max(BUFFER_SIZE_FACTOR * minBufferSize, tempMicWriteBuffer.capacity())
         audioRecord = AudioRecord(
@@ -188,11 +398,21 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
             android.media.AudioFormat.ENCODING_PCM_16BIT,
             bufferSizeInBytes,
         )
-        fileWriteByteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * framesPerBuffer)
-        val testFileWriteByteBuffer = fileWriteByteBuffer
-        writeBufferSize = testFileWriteByteBuffer.capacity()
-        // Initialize the streams.
-        initializeStreams()
+        writeBufferSize = bytesPerFrame * framesPerBuffer
+        silenceByteBuffer = ByteBuffer.allocateDirect(writeBufferSize)
+        musicMixByteBuffer = ByteBuffer.allocateDirect(writeBufferSize).order(ByteOrder.nativeOrder())
+        resampleByteBuffer = ByteBuffer.allocateDirect(writeBufferSize).order(ByteOrder.nativeOrder())
+        pushByteBuffer = ByteBuffer.allocateDirect(writeBufferSize)
+        captureRingBuffer = PcmRingBuffer(CAPTURE_RING_BUFFERS * writeBufferSize)
+        // Map the music file once, it is reused for every capture session.
+        if (musicSource == null) {
+            try {
+                musicSource = openMusicSource()
+            } catch (e: IOException) {
+                Log.e(TAG, "Failed to open music file: " + e.message)
+                return false
+            }
+        }
         return true
     }
 
@@ -204,16 +424,25 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
         capturerThread.start()
         // Create the capturer handler that processes the capturer Runnables.
         capturerHandler = Handler(capturerThread.looper)
+        // Prepare the microphone processing again for this capture session
+        preparedMicrophoneProcessing = null
+        // Start the thread that pushes captured audio to the SDK
+        keepAlivePushThread = true
+        capturePushThread = Thread(capturePushRunnable, "CapturePushThread").apply { start() }
         isMusicPlaying = true
-        capturerHandler.post(fileCapturerRunnable)
+        startFileCapture()
         return true
     }
 
     override fun onStopCapturing(): Boolean {
-        if (isMusicPlaying) {
-            isMusicPlaying = false
-            closeStreams()
-        } else {
+        val wasMixing = isMixing
+        val wasMusicPlaying = isMusicPlaying
+        isMixing = false
+        isMusicPlaying = false
+        if (wasMusicPlaying) {
+            stopFileCapture()
+        }
+        if (wasMixing || !wasMusicPlaying) {
             stopRecording()
         }
         /*
@@ -226,6 +455,22 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
             Log.e(TAG, "Join of capturerThread timed out")
             return false
         }
+        keepAlivePushThread = false
+        capturePushThread?.let { pushThread ->
+            LockSupport.unpark(pushThread)
+            if (!ThreadUtils.joinUninterruptibly(pushThread, THREAD_JOIN_TIMEOUT_MS)) {
+                Log.e(TAG, "Join of capturePushThread timed out")
+                return false
+            }
+        }
+        capturePushThread = null
+        Log.d(TAG, "Capture ring buffer: $captureRingBuffer")
+        microphoneProcessing?.let { Log.d(TAG, "Microphone processing: $it") }
+        Log.d(
+            TAG,
+            "File capture jitter: $fileCaptureJitter, caught up $fileCatchUpBuffers buffers, " +
+                "skipped $fileSkippedBuffers buffers",
+        )
         return true
     }
 
@@ -241,17 +486,48 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
     }
 
     override fun onInitRenderer(): Boolean {
-        val bytesPerFrame = rendererFormat!!.channelCount * (BITS_PER_SAMPLE / 8)
-        readByteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * (rendererFormat!!.sampleRate / BUFFERS_PER_SECOND))
-        val channelConfig = channelCountToConfiguration(rendererFormat!!.channelCount)
-        val minBufferSize = AudioRecord.getMinBufferSize(rendererFormat!!.sampleRate, channelConfig, android.media.AudioFormat.ENCODING_PCM_16BIT)
-        audioTrack = AudioTrack(
-            AudioManager.STREAM_VOICE_CALL,
-            rendererFormat!!.sampleRate,
+        val format = rendererFormat!!
+        val bytesPerFrame = format.channelCount * (BITS_PER_SAMPLE / 8)
+        rendererSampleRate = format.sampleRate
+        rendererFramesPerBuffer = format.sampleRate / BUFFERS_PER_SECOND
+        readByteBuffer = ByteBuffer.allocateDirect(bytesPerFrame * rendererFramesPerBuffer)
+        val channelConfig = channelCountToOutputConfiguration(format.channelCount)
+        // Calculate the minimum buffer size required for the successful creation of
+        // an AudioTrack object, in byte units.
+        val minBufferSize = AudioTrack.getMinBufferSize(
+            format.sampleRate,
             channelConfig,
             android.media.AudioFormat.ENCODING_PCM_16BIT,
-            minBufferSize,
-            AudioTrack.MODE_STREAM,
+        )
+        if (minBufferSize <= 0) {
+            Log.e(TAG, "AudioTrack.getMinBufferSize failed: $minBufferSize")
+            return false
+        }
+        // Allocate room to grow, the part of the buffer in use is tuned while rendering
+        val bufferCapacity = Math.max(
+            BUFFER_SIZE_FACTOR * minBufferSize,
+            MAX_RENDERER_BUFFERS * readByteBuffer.capacity(),
+        )
+        try {
+            audioTrack = createAudioTrack(format.sampleRate, channelConfig, bufferCapacity)
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "AudioTrack creation failed: " + e.message)
+            return false
+        } catch (e: UnsupportedOperationException) {
+            Log.e(TAG, "AudioTrack creation failed: " + e.message)
+            return false
+        }
+        if (audioTrack.state != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "AudioTrack is not initialized")
+            audioTrack.release()
+            return false
+        }
+        isLowLatencyRenderer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+            audioTrack.performanceMode == AudioTrack.PERFORMANCE_MODE_LOW_LATENCY
+        initRendererTuner(minBufferSize / bytesPerFrame, bufferCapacity / bytesPerFrame)
+        Log.d(
+            TAG,
+            "AudioTrack buffer $rendererBufferSizeFrames frames, low latency: $isLowLatencyRenderer",
         )
         keepAliveRendererRunnable = true
         return true
@@ -270,6 +546,7 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
 
     override fun onStopRendering(): Boolean {
         stopAudioTrack()
+        Log.d(TAG, "Renderer latency: $rendererLatency, underruns: $rendererUnderruns")
         // Quit the rendererThread's looper to stop processing any further messages.
         rendererThread.quit()
         /*
@@ -285,32 +562,46 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
     }
 
     // Capturer helper methods
-    private fun initializeStreams() {
-        inputStream = context.resources.openRawResource(
-            context.resources.getIdentifier(
-                "music",
-                "raw",
-                context.packageName,
-            ),
-        )
-        dataInputStream = DataInputStream(inputStream)
-        try {
-            val bytes = dataInputStream.skipBytes(WAV_FILE_HEADER_SIZE)
-            Log.d(TAG, "Number of bytes skipped : $bytes")
-        } catch (e: IOException) {
-            e.printStackTrace()
+    private fun startFileCapture() {
+        restartFileClock = true
+        capturerHandler.post(fileCapturerRunnable)
+    }
+
+    private fun openMusicSource(): WavSource {
+        val source = if (musicFile != null) {
+            WavSource.fromFile(musicFile)
+        } else {
+            WavSource.fromRawResource(
+                context,
+                context.resources.getIdentifier(
+                    "music",
+                    "raw",
+                    context.packageName,
+                ),
+            )
+        }
+        // Files that do not match the capturer format are converted as they are read
+        val format = capturerFormat!!
+        if (source.sampleRate != format.sampleRate || source.channelCount != format.channelCount) {
+            Log.d(
+                TAG,
+                "Converting music file from ${source.sampleRate}Hz with ${source.channelCount} " +
+                    "channels to ${format.sampleRate}Hz with ${format.channelCount} channels",
+            )
+            musicResampler = PcmResampler(
+                source.sampleRate,
+                source.channelCount,
+                format.sampleRate,
+                format.channelCount,
+                format.sampleRate / BUFFERS_PER_SECOND,
+            )
         }
+        return source
     }
 
-    private fun closeStreams() {
+    private fun stopFileCapture() {
         Log.d(TAG, "Remove any pending posts of fileCapturerRunnable that are in the message queue ")
         capturerHandler.removeCallbacks(fileCapturerRunnable)
-        try {
-            dataInputStream.close()
-            inputStream.close()
-        } catch (e: IOException) {
-            e.printStackTrace()
-        }
     }
 
     private fun stopRecording() {
@@ -323,21 +614,213 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
         }
     }
 
+    /*
+     * Runs on the capturer thread. Applies the current microphone processing to the buffer,
+     * preparing the chain first if it was set since the last buffer.
+     */
+    private fun processMicrophone(buffer: ByteBuffer) {
+        val processing = microphoneProcessing ?: return
+        if (processing !== preparedMicrophoneProcessing) {
+            val format = capturerFormat!!
+            processing.prepare(format.sampleRate, format.channelCount)
+            preparedMicrophoneProcessing = processing
+        }
+        processing.process(buffer)
+    }
+
+    /*
+     * Reads the next 10ms of the music file. Without a mix buffer the audio is written straight
+     * from the mapped payload into the capture ring buffer, otherwise it is copied into the mix
+     * buffer. A buffer that spans the loop point is handled as two slices, and the last buffer
+     * of a file that does not loop is padded with silence. Returns the number of bytes read.
+     */
+    private fun readFileBuffer(mixBuffer: ByteBuffer?): Int {
+        val source = musicSource ?: return 0
+        musicResampler?.let {
+            return readResampledFileBuffer(source, it, mixBuffer)
+        }
+        var remaining = writeBufferSize
+        while (remaining > 0) {
+            val slice = source.nextSlice(remaining)
+            if (!slice.hasRemaining()) {
+                break
+            }
+            remaining -= slice.remaining()
+            emitFileData(slice, mixBuffer)
+        }
+        val bytesRead = writeBufferSize - remaining
+        if (remaining in 1 until writeBufferSize) {
+            silenceByteBuffer.clear().limit(remaining)
+            emitFileData(silenceByteBuffer, mixBuffer)
+        }
+        return bytesRead
+    }
+
+    /*
+     * Feeds the resampler exactly the file frames it needs to produce the next 10ms in the
+     * capturer format, then emits the converted buffer.
+     */
+    private fun readResampledFileBuffer(
+        source: WavSource,
+        resampler: PcmResampler,
+        mixBuffer: ByteBuffer?,
+    ): Int {
+        val framesPerBuffer = resampleByteBuffer.capacity() / (2 * resampler.outputChannels)
+        var remaining = resampler.inputFramesNeeded(framesPerBuffer) * source.bytesPerFrame
+        while (remaining > 0) {
+            val slice = source.nextSlice(remaining)
+            if (!slice.hasRemaining()) {
+                break
+            }
+            remaining -= slice.remaining()
+            resampler.write(slice)
+        }
+        resampleByteBuffer.clear()
+        if (!resampler.read(resampleByteBuffer, framesPerBuffer)) {
+            return 0
+        }
+        resampleByteBuffer.flip()
+        emitFileData(resampleByteBuffer, mixBuffer)
+        return resampleByteBuffer.capacity()
+    }
+
+    private fun emitFileData(data: ByteBuffer, mixBuffer: ByteBuffer?) {
+        if (mixBuffer == null) {
+            writeRingBuffer(data)
+        } else {
+            mixBuffer.put(data)
+        }
+    }
+
+    /*
+     * Mixes the next 10ms of the music file into a full microphone buffer in place.
+     */
+    private fun mixMusic(micBuffer: ByteBuffer) {
+        musicMixByteBuffer.clear()
+        if (readFileBuffer(musicMixByteBuffer) < musicMixByteBuffer.capacity()) {
+            mixMusicUnderruns++
+        }
+        musicMixByteBuffer.flip()
+        micBuffer.clear()
+        mixClippedSamples += PcmMixer.mix(micBuffer, microphoneGain, musicMixByteBuffer, musicGain)
+    }
+
+    /*
+     * Hands a full buffer from a capturer to the push thread. The buffer is cleared so it can be
+     * reused for the next read.
+     */
+    private fun writeCaptureData(byteBuffer: ByteBuffer) {
+        byteBuffer.rewind()
+        writeRingBuffer(byteBuffer)
+        byteBuffer.clear()
+        capturePushThread?.let { LockSupport.unpark(it) }
+    }
+
+    private fun writeRingBuffer(byteBuffer: ByteBuffer) {
+        if (!captureRingBuffer.write(byteBuffer)) {
+            Log.w(TAG, "Capture ring buffer overrun: $captureRingBuffer")
+        }
+    }
+
     private fun channelCountToConfiguration(channels: Int): Int {
         return if (channels == 1) android.media.AudioFormat.CHANNEL_IN_MONO else android.media.AudioFormat.CHANNEL_IN_STEREO
     }
 
-    private fun processRemaining(bb: ByteBuffer?, chunkSize: Int) {
-        bb!!.position(bb.limit()) // move at the end
-        bb.limit(chunkSize) // get ready to pad with longs
-        while (bb.position() < chunkSize) {
-            bb.putLong(0)
+    // Renderer helper methods
+    private fun channelCountToOutputConfiguration(channels: Int): Int {
+        return if (channels == 1) android.media.AudioFormat.CHANNEL_OUT_MONO else android.media.AudioFormat.CHANNEL_OUT_STEREO
+    }
+
+    /*
+     * Creates a voice communication track. On API 26 and above the track is built with the low
+     * latency performance mode unless it was disabled. The platform may still decline it, for
+     * example when the sample rate does not match the output device.
+     */
+    private fun createAudioTrack(sampleRate: Int, channelConfig: Int, bufferSizeInBytes: Int): AudioTrack {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return AudioTrack(
+                AudioManager.STREAM_VOICE_CALL,
+                sampleRate,
+                channelConfig,
+                android.media.AudioFormat.ENCODING_PCM_16BIT,
+                bufferSizeInBytes,
+                AudioTrack.MODE_STREAM,
+            )
+        }
+        val builder = AudioTrack.Builder()
+            .setAudioAttributes(
+                AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build(),
+            )
+            .setAudioFormat(
+                android.media.AudioFormat.Builder()
+                    .setEncoding(android.media.AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(sampleRate)
+                    .setChannelMask(channelConfig)
+                    .build(),
+            )
+            .setBufferSizeInBytes(bufferSizeInBytes)
+            .setTransferMode(AudioTrack.MODE_STREAM)
+        if (lowLatencyRendering) {
+            builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+        }
+        return builder.build()
+    }
+
+    /*
+     * Starts the track at the platform minimum buffer size. A low latency track may shrink to a
+     * single 10ms buffer, other tracks keep at least the platform minimum. Before API 24 the
+     * buffer size cannot be changed and the whole capacity is used.
+     */
+    private fun initRendererTuner(minBufferFrames: Int, capacityFrames: Int) {
+        framesRendered = 0
+        rendererUnderruns = 0
+        rendererLatency.reset()
+        rendererTuner = null
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            rendererBufferSizeFrames = capacityFrames
+            return
+        }
+        val maxFrames = audioTrack.bufferCapacityInFrames
+        val initialFrames = minOf(maxOf(minBufferFrames, rendererFramesPerBuffer), maxFrames)
+        val tuner = AudioTrackBufferTuner(
+            rendererFramesPerBuffer,
+            if (isLowLatencyRenderer) minOf(rendererFramesPerBuffer, maxFrames) else initialFrames,
+            maxFrames,
+            initialFrames,
+        )
+        tuner.onBufferSizeApplied(audioTrack.setBufferSizeInFrames(tuner.bufferFrames))
+        rendererBufferSizeFrames = tuner.bufferFrames
+        rendererTuner = tuner
+    }
+
+    /*
+     * Resizes the track buffer for the underruns seen since the last call and records an
+     * estimate of the output latency. Runs on the renderer thread.
+     */
+    private fun tuneRenderer() {
+        val tuner = rendererTuner
+        if (tuner != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            if (tuner.update(audioTrack.underrunCount, SystemClock.elapsedRealtime())) {
+                tuner.onBufferSizeApplied(audioTrack.setBufferSizeInFrames(tuner.bufferFrames))
+                Log.d(TAG, "AudioTrack buffer ${tuner.bufferFrames} frames after ${tuner.underruns} underruns")
+            }
+            rendererUnderruns = tuner.underruns
+            rendererBufferSizeFrames = tuner.bufferFrames
+        }
+        // Frames written but not yet presented, extrapolated from the last presentation timestamp
+        if (audioTrack.getTimestamp(rendererTimestamp)) {
+            val elapsedNs = System.nanoTime() - rendererTimestamp.nanoTime
+            val presentedFrames = rendererTimestamp.framePosition + elapsedNs * rendererSampleRate / NANOS_PER_SECOND
+            val pendingFrames = framesRendered - presentedFrames
+            if (pendingFrames >= 0) {
+                rendererLatency.record(pendingFrames * NANOS_PER_SECOND / rendererSampleRate)
+            }
         }
-        bb.limit(chunkSize)
-        bb.flip()
     }
 
-    // Renderer helper methods
     private fun write(audioTrack: AudioTrack?, byteBuffer: ByteBuffer?, sizeInBytes: Int): Int {
         return audioTrack!!.write(byteBuffer!!, sizeInBytes, AudioTrack.WRITE_BLOCKING)
     }
@@ -369,6 +852,16 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
 
         // We want to get as close to 10 msec buffers as possible because this is what the media engine prefers.
         private const val CALLBACK_BUFFER_SIZE_MS = 10
+        private val BUFFER_DURATION_NS = TimeUnit.MILLISECONDS.toNanos(CALLBACK_BUFFER_SIZE_MS.toLong())
+
+        private val NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1)
+        private val NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1)
+
+        // A late file capturer pushes at most this many buffers at once to catch up.
+        private const val MAX_CATCH_UP_BUFFERS = 5L
+
+        // Music is mixed underneath the microphone at half volume by default.
+        private const val DEFAULT_MUSIC_GAIN = 0.5f
 
         // Default audio data format is PCM 16 bit per sample. Guaranteed to be supported by all devices.
         private const val BITS_PER_SAMPLE = 16
@@ -376,6 +869,17 @@ class FileAndMicAudioDevice(private val context: Context) : AudioDevice {
         // Ask for a buffer size of BUFFER_SIZE_FACTOR * (minimum required buffer size). The extra space
         // is allocated to guard against glitches under high load.
         private const val BUFFER_SIZE_FACTOR = 2
-        private const val WAV_FILE_HEADER_SIZE = 44
+
+        // The AudioTrack buffer can grow to hold this many 10ms buffers.
+        private const val MAX_RENDERER_BUFFERS = 8
+
+        // The renderer checks for underruns and estimates its latency every 100ms.
+        private const val RENDERER_TUNING_INTERVAL_BUFFERS = 10
+
+        // Number of 10ms buffers the capture ring buffer can hold before it overruns.
+        private const val CAPTURE_RING_BUFFERS = 8
+
+        // The push thread re-checks the ring buffer if no buffer arrives within two callbacks.
+        private val PUSH_WAIT_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(2L * CALLBACK_BUFFER_SIZE_MS)
     }
 }
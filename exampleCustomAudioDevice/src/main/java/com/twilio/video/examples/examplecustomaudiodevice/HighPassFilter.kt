@@ -0,0 +1,76 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ShortBuffer
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.roundToInt
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * HighPassFilter removes DC offset and handling noise and rumble below [cutoffHz] with a second
+ * order Butterworth filter on every channel.
+ */
+class HighPassFilter(private val cutoffHz: Double = DEFAULT_CUTOFF_HZ) : AudioProcessor {
+    private var channelCount = 1
+    private var b0 = 1f
+    private var b1 = 0f
+    private var b2 = 0f
+    private var a1 = 0f
+    private var a2 = 0f
+
+    // Previous two inputs and outputs of each channel
+    private var x1 = FloatArray(1)
+    private var x2 = FloatArray(1)
+    private var y1 = FloatArray(1)
+    private var y2 = FloatArray(1)
+
+    override fun prepare(sampleRate: Int, channelCount: Int) {
+        require(cutoffHz > 0 && cutoffHz < sampleRate / 2.0) { "Invalid cutoff $cutoffHz" }
+        this.channelCount = channelCount
+        val w0 = 2 * PI * cutoffHz / sampleRate
+        val alpha = sin(w0) / (2 * BUTTERWORTH_Q)
+        val cosW0 = cos(w0)
+        val a0 = 1 + alpha
+        b0 = ((1 + cosW0) / 2 / a0).toFloat()
+        b1 = (-(1 + cosW0) / a0).toFloat()
+        b2 = b0
+        a1 = (-2 * cosW0 / a0).toFloat()
+        a2 = ((1 - alpha) / a0).toFloat()
+        x1 = FloatArray(channelCount)
+        x2 = FloatArray(channelCount)
+        y1 = FloatArray(channelCount)
+        y2 = FloatArray(channelCount)
+    }
+
+    override fun process(samples: ShortBuffer) {
+        var channel = 0
+        for (i in samples.position() until samples.limit()) {
+            val x = samples.get(i).toFloat()
+            val y = b0 * x + b1 * x1[channel] + b2 * x2[channel] - a1 * y1[channel] - a2 * y2[channel]
+            x2[channel] = x1[channel]
+            x1[channel] = x
+            y2[channel] = y1[channel]
+            y1[channel] = y
+            samples.put(i, clamp(y))
+            if (++channel == channelCount) {
+                channel = 0
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CUTOFF_HZ = 80.0
+
+        private val BUTTERWORTH_Q = 1 / sqrt(2.0)
+
+        private fun clamp(value: Float): Short {
+            val rounded = value.roundToInt()
+            return when {
+                rounded > Short.MAX_VALUE -> Short.MAX_VALUE
+                rounded < Short.MIN_VALUE -> Short.MIN_VALUE
+                else -> rounded.toShort()
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ShortBuffer
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+/**
+ * NoiseGate attenuates the signal while its level stays below [thresholdDb] dBFS. The level is
+ * followed per frame across all channels. The gate opens within [attackMs], stays open for at
+ * least [holdMs] after the level drops, and then fades down to [closedGainDb] over roughly
+ * [releaseMs], so word endings are not cut off.
+ */
+class NoiseGate(
+    private val thresholdDb: Double = DEFAULT_THRESHOLD_DB,
+    private val closedGainDb: Double = DEFAULT_CLOSED_GAIN_DB,
+    private val attackMs: Double = DEFAULT_ATTACK_MS,
+    private val holdMs: Double = DEFAULT_HOLD_MS,
+    private val releaseMs: Double = DEFAULT_RELEASE_MS,
+) : AudioProcessor {
+    private val threshold = (dbToLevel(thresholdDb) * FULL_SCALE).toFloat()
+    private val closedGain = dbToLevel(closedGainDb).toFloat()
+    private var channelCount = 1
+    private var envelopeDecay = 0f
+    private var attackCoefficient = 0f
+    private var releaseCoefficient = 0f
+    private var holdFrames = 0
+    private var envelope = 0f
+    private var gain = 0f
+    private var framesSinceOpen = 0
+
+    /**
+     * True while the level is above the threshold or within the hold time.
+     */
+    @Volatile
+    var isOpen = false
+        private set
+
+    override fun prepare(sampleRate: Int, channelCount: Int) {
+        this.channelCount = channelCount
+        envelopeDecay = smoothingCoefficient(ENVELOPE_DECAY_MS, sampleRate)
+        attackCoefficient = 1 - smoothingCoefficient(attackMs, sampleRate)
+        releaseCoefficient = 1 - smoothingCoefficient(releaseMs, sampleRate)
+        holdFrames = (holdMs * sampleRate / 1000).toInt()
+        envelope = 0f
+        gain = closedGain
+        framesSinceOpen = holdFrames
+        isOpen = false
+    }
+
+    override fun process(samples: ShortBuffer) {
+        val start = samples.position()
+        val end = start + (samples.remaining() / channelCount) * channelCount
+        var open = isOpen
+        var frame = start
+        while (frame < end) {
+            var peak = 0
+            for (channel in 0 until channelCount) {
+                peak = maxOf(peak, abs(samples.get(frame + channel).toInt()))
+            }
+            // Peaks are followed instantly and decay smoothly
+            envelope = maxOf(peak.toFloat(), envelope * envelopeDecay)
+            if (envelope >= threshold) {
+                framesSinceOpen = 0
+                open = true
+            } else if (framesSinceOpen < holdFrames) {
+                framesSinceOpen++
+            } else {
+                open = false
+            }
+            gain += if (open) {
+                (1 - gain) * attackCoefficient
+            } else {
+                (closedGain - gain) * releaseCoefficient
+            }
+            for (channel in 0 until channelCount) {
+                samples.put(frame + channel, (samples.get(frame + channel) * gain).roundToInt().toShort())
+            }
+            frame += channelCount
+        }
+        isOpen = open
+    }
+
+    companion object {
+        const val DEFAULT_THRESHOLD_DB = -50.0
+        const val DEFAULT_CLOSED_GAIN_DB = -30.0
+        const val DEFAULT_ATTACK_MS = 1.0
+        const val DEFAULT_HOLD_MS = 100.0
+        const val DEFAULT_RELEASE_MS = 80.0
+
+        private const val ENVELOPE_DECAY_MS = 10.0
+    }
+}
@@ -0,0 +1,65 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ByteBuffer
+
+/**
+ * PcmMixer sums two streams of 16 bit PCM in place with a gain per stream. Peaks above
+ * [SOFT_CLIP_KNEE] are compressed smoothly towards full scale instead of wrapping or hard
+ * clipping, and the number of samples that needed limiting is counted.
+ */
+object PcmMixer {
+    /**
+     * Samples below this magnitude pass through the limiter unchanged.
+     */
+    const val SOFT_CLIP_KNEE = 24576
+
+    private const val FULL_SCALE = Short.MAX_VALUE.toInt()
+    private const val HEADROOM = FULL_SCALE - SOFT_CLIP_KNEE
+
+    /**
+     * Mixes [secondary] into [primary] in a single pass over the remaining samples of
+     * [primary], writing the result back into [primary]. Samples missing from [secondary]
+     * are treated as silence. Positions are not modified and both buffers are read in their
+     * own byte order. Returns the number of samples that were limited.
+     */
+    fun mix(primary: ByteBuffer, primaryGain: Float, secondary: ByteBuffer, secondaryGain: Float): Int {
+        var limited = 0
+        val start = primary.position()
+        val end = start + (primary.remaining() and 1.inv())
+        val secondaryStart = secondary.position()
+        val secondaryEnd = secondary.limit()
+        var offset = start
+        while (offset < end) {
+            val secondaryOffset = secondaryStart + offset - start
+            val secondarySample = if (secondaryOffset + 1 < secondaryEnd) {
+                secondary.getShort(secondaryOffset).toFloat()
+            } else {
+                0f
+            }
+            val sum = (primary.getShort(offset) * primaryGain + secondarySample * secondaryGain).toInt()
+            val magnitude = if (sum < 0) -sum else sum
+            if (magnitude > SOFT_CLIP_KNEE) {
+                limited++
+                primary.putShort(offset, softClip(sum).toShort())
+            } else {
+                primary.putShort(offset, sum.toShort())
+            }
+            offset += 2
+        }
+        return limited
+    }
+
+    /**
+     * Compresses values beyond [SOFT_CLIP_KNEE] so that they approach, but never exceed, full
+     * scale. The curve is continuous and has unit slope at the knee.
+     */
+    fun softClip(value: Int): Int {
+        val magnitude = if (value < 0) -value else value
+        if (magnitude <= SOFT_CLIP_KNEE) {
+            return value
+        }
+        val excess = (magnitude - SOFT_CLIP_KNEE).toLong()
+        val limited = SOFT_CLIP_KNEE + (HEADROOM * excess / (excess + HEADROOM)).toInt()
+        return if (value < 0) -limited else limited
+    }
+}
@@ -0,0 +1,233 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ByteBuffer
+import kotlin.math.PI
+import kotlin.math.roundToInt
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * PcmResampler converts a stream of 16 bit PCM between sample rates and channel layouts. Rate
+ * conversion uses a polyphase windowed sinc filter, interpolating between neighbouring phases,
+ * and the output position is tracked as an exact fraction so there is no long term drift.
+ *
+ * Input is appended with [write] and output is pulled with [read], both working on interleaved
+ * samples in the byte order of the buffer passed in. All state is allocated up front for at most
+ * [maxOutputFrames] frames per [read], so neither call allocates. Mono is duplicated to every
+ * output channel and multichannel input is averaged down to mono. Other layouts keep the first
+ * output channels. Instances are not thread safe.
+ */
+class PcmResampler(
+    val inputRate: Int,
+    val inputChannels: Int,
+    val outputRate: Int,
+    val outputChannels: Int,
+    private val maxOutputFrames: Int,
+) {
+    private val coefficients: FloatArray
+    private val history: Array<FloatArray>
+    private var historyFrames = 0
+
+    // Position of the next output frame, historyIndex + phaseNumerator / outputRate, relative
+    // to the first tap of the filter in history
+    private var historyIndex = 0
+    private var phaseNumerator = 0L
+
+    init {
+        require(inputRate > 0 && outputRate > 0) { "Invalid rates $inputRate to $outputRate" }
+        require(inputChannels > 0 && outputChannels > 0) {
+            "Invalid channels $inputChannels to $outputChannels"
+        }
+        require(maxOutputFrames > 0) { "Invalid maximum output $maxOutputFrames" }
+        coefficients = buildCoefficients(inputRate, outputRate)
+        val maxInputFrames = (maxOutputFrames.toLong() * inputRate / outputRate).toInt() + 2
+        history = Array(outputChannels) { FloatArray(TAPS + maxInputFrames) }
+        reset()
+    }
+
+    /**
+     * Returns how many more input frames must be written before [read] can produce
+     * [outputFrames] frames.
+     */
+    fun inputFramesNeeded(outputFrames: Int): Int {
+        require(outputFrames in 1..maxOutputFrames) { "Invalid output frames $outputFrames" }
+        val lastIndex = historyIndex + (phaseNumerator + (outputFrames - 1L) * inputRate) / outputRate
+        return maxOf(0, (lastIndex + TAPS - historyFrames).toInt())
+    }
+
+    /**
+     * Appends all remaining frames of [input] and advances its position. At most the frames
+     * reported by [inputFramesNeeded] may be written before the next [read].
+     */
+    fun write(input: ByteBuffer) {
+        val frames = input.remaining() / (2 * inputChannels)
+        require(historyFrames + frames <= history[0].size) { "Wrote $frames frames without reading" }
+        var offset = input.position()
+        for (frame in 0 until frames) {
+            val index = historyFrames + frame
+            when {
+                inputChannels == outputChannels -> for (channel in 0 until outputChannels) {
+                    history[channel][index] = input.getShort(offset + 2 * channel).toFloat()
+                }
+                inputChannels == 1 -> {
+                    val sample = input.getShort(offset).toFloat()
+                    for (channel in 0 until outputChannels) {
+                        history[channel][index] = sample
+                    }
+                }
+                outputChannels == 1 -> {
+                    var sum = 0f
+                    for (channel in 0 until inputChannels) {
+                        sum += input.getShort(offset + 2 * channel)
+                    }
+                    history[0][index] = sum / inputChannels
+                }
+                else -> for (channel in 0 until outputChannels) {
+                    history[channel][index] = if (channel < inputChannels) {
+                        input.getShort(offset + 2 * channel).toFloat()
+                    } else {
+                        0f
+                    }
+                }
+            }
+            offset += 2 * inputChannels
+        }
+        historyFrames += frames
+        input.position(input.position() + frames * 2 * inputChannels)
+    }
+
+    /**
+     * Writes [outputFrames] frames to [output] and advances its position. Returns false, writing
+     * nothing, if not enough input has been written.
+     */
+    fun read(output: ByteBuffer, outputFrames: Int): Boolean {
+        if (inputFramesNeeded(outputFrames) > 0) {
+            return false
+        }
+        var offset = output.position()
+        for (frame in 0 until outputFrames) {
+            // Interpolate between the two nearest filter phases
+            val phase = phaseNumerator * PHASES / outputRate.toDouble()
+            val phaseIndex = phase.toInt()
+            val weight = (phase - phaseIndex).toFloat()
+            val lower = phaseIndex * TAPS
+            val upper = lower + TAPS
+            for (channel in 0 until outputChannels) {
+                val samples = history[channel]
+                var lowerSum = 0f
+                var upperSum = 0f
+                for (tap in 0 until TAPS) {
+                    val sample = samples[historyIndex + tap]
+                    lowerSum += sample * coefficients[lower + tap]
+                    upperSum += sample * coefficients[upper + tap]
+                }
+                val value = lowerSum + (upperSum - lowerSum) * weight
+                output.putShort(offset, clamp(value))
+                offset += 2
+            }
+            phaseNumerator += inputRate
+            historyIndex += (phaseNumerator / outputRate).toInt()
+            phaseNumerator %= outputRate
+        }
+        output.position(offset)
+        discardConsumedHistory()
+        return true
+    }
+
+    /**
+     * Drops all buffered input and starts again from silence.
+     */
+    fun reset() {
+        for (samples in history) {
+            samples.fill(0f)
+        }
+        // Prime the filter with silence so the first frame is centered on the first input
+        historyFrames = HALF_TAPS - 1
+        historyIndex = 0
+        phaseNumerator = 0
+    }
+
+    private fun discardConsumedHistory() {
+        if (historyIndex == 0) {
+            return
+        }
+        val remaining = historyFrames - historyIndex
+        for (samples in history) {
+            System.arraycopy(samples, historyIndex, samples, 0, maxOf(0, remaining))
+        }
+        historyFrames = maxOf(0, remaining)
+        historyIndex = 0
+    }
+
+    companion object {
+        private const val HALF_TAPS = 32
+        private const val TAPS = 2 * HALF_TAPS
+        private const val PHASES = 128
+        private const val KAISER_BETA = 8.0
+
+        // Fraction of the lower Nyquist frequency passed when the rate changes
+        private const val ROLLOFF = 0.92
+
+        /*
+         * Builds PHASES + 1 sets of TAPS coefficients. Set p delays the output by p / PHASES of
+         * an input frame, so the last set equals the first shifted by one tap and interpolation
+         * never needs to wrap.
+         */
+        private fun buildCoefficients(inputRate: Int, outputRate: Int): FloatArray {
+            val cutoff = if (inputRate == outputRate) {
+                1.0
+            } else {
+                minOf(inputRate, outputRate).toDouble() / inputRate * ROLLOFF
+            }
+            val table = FloatArray((PHASES + 1) * TAPS)
+            val taps = DoubleArray(TAPS)
+            for (phase in 0..PHASES) {
+                val fraction = phase.toDouble() / PHASES
+                var sum = 0.0
+                for (tap in 0 until TAPS) {
+                    val distance = tap - (HALF_TAPS - 1) - fraction
+                    taps[tap] = cutoff * sinc(cutoff * distance) * kaiser(distance / HALF_TAPS)
+                    sum += taps[tap]
+                }
+                // Normalize every phase to unity gain at DC
+                for (tap in 0 until TAPS) {
+                    table[phase * TAPS + tap] = (taps[tap] / sum).toFloat()
+                }
+            }
+            return table
+        }
+
+        private fun sinc(x: Double): Double {
+            return if (x == 0.0) 1.0 else sin(PI * x) / (PI * x)
+        }
+
+        private fun kaiser(x: Double): Double {
+            if (x <= -1.0 || x >= 1.0) {
+                return 0.0
+            }
+            return besselI0(KAISER_BETA * sqrt(1 - x * x)) / besselI0(KAISER_BETA)
+        }
+
+        private fun besselI0(x: Double): Double {
+            var sum = 1.0
+            var term = 1.0
+            var k = 1
+            while (term > 1e-12 * sum) {
+                val half = x / (2 * k)
+                term *= half * half
+                sum += term
+                k++
+            }
+            return sum
+        }
+
+        private fun clamp(value: Float): Short {
+            val rounded = value.roundToInt()
+            return when {
+                rounded > Short.MAX_VALUE -> Short.MAX_VALUE
+                rounded < Short.MIN_VALUE -> Short.MIN_VALUE
+                else -> rounded.toShort()
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * PcmRingBuffer is a lock free ring buffer of PCM bytes for exactly one producer thread and one
+ * consumer thread. The storage is a single direct buffer whose capacity is rounded up to a power
+ * of two, and neither [write] nor [read] allocates, so both are safe to call from audio threads.
+ *
+ * Chunks are written and read whole. A write that does not fit is dropped and counted as an
+ * overrun, and a read that cannot be satisfied is counted as an underrun.
+ */
+class PcmRingBuffer(minCapacityBytes: Int) {
+    /**
+     * Size of the ring in bytes, the smallest power of two that holds the requested capacity.
+     */
+    val capacity: Int
+    private val mask: Int
+    private val storage: ByteBuffer
+
+    // Views used only by the producer and the consumer respectively
+    private val writeView: ByteBuffer
+    private val readView: ByteBuffer
+
+    // Monotonic byte counts. Only the producer advances writeIndex and only the consumer
+    // advances readIndex.
+    private val writeIndex = AtomicLong()
+    private val readIndex = AtomicLong()
+
+    @Volatile
+    var overruns = 0L
+        private set
+
+    @Volatile
+    var underruns = 0L
+        private set
+
+    init {
+        require(minCapacityBytes in 1..MAX_CAPACITY) { "Invalid capacity $minCapacityBytes" }
+        capacity = Integer.highestOneBit(minCapacityBytes - 1).shl(1).coerceAtLeast(1)
+        mask = capacity - 1
+        storage = ByteBuffer.allocateDirect(capacity)
+        writeView = storage.duplicate()
+        readView = storage.duplicate()
+    }
+
+    /**
+     * Number of bytes that can currently be read.
+     */
+    val availableBytes: Int
+        get() = (writeIndex.get() - readIndex.get()).toInt()
+
+    /**
+     * Number of bytes that can currently be written.
+     */
+    val freeBytes: Int
+        get() = capacity - availableBytes
+
+    /**
+     * Fraction of the ring currently holding unread data, between 0 and 1.
+     */
+    val fillLevel: Float
+        get() = availableBytes.toFloat() / capacity
+
+    /**
+     * Total number of bytes written since creation.
+     */
+    val bytesWritten: Long
+        get() = writeIndex.get()
+
+    /**
+     * Total number of bytes read since creation.
+     */
+    val bytesRead: Long
+        get() = readIndex.get()
+
+    /**
+     * Copies all remaining bytes of [src] into the ring and advances its position. If there is
+     * not enough free space nothing is copied, the overrun is counted and false is returned.
+     * Must only be called from the producer thread.
+     */
+    fun write(src: ByteBuffer): Boolean {
+        val length = src.remaining()
+        val write = writeIndex.get()
+        if (length > capacity - (write - readIndex.get()).toInt()) {
+            overruns++
+            return false
+        }
+        val offset = write.toInt() and mask
+        val first = minOf(length, capacity - offset)
+        val limit = src.limit()
+        src.limit(src.position() + first)
+        writeView.clear()
+        writeView.position(offset)
+        writeView.put(src)
+        src.limit(limit)
+        if (first < length) {
+            writeView.clear()
+            writeView.put(src)
+        }
+        writeIndex.lazySet(write + length)
+        return true
+    }
+
+    /**
+     * Copies [length] bytes from the ring into [dst] and advances its position. If fewer than
+     * [length] bytes are available nothing is copied, the underrun is counted and false is
+     * returned. Must only be called from the consumer thread.
+     */
+    fun read(dst: ByteBuffer, length: Int = dst.remaining()): Boolean {
+        require(length <= dst.remaining()) { "Destination holds ${dst.remaining()} bytes, needs $length" }
+        val read = readIndex.get()
+        if ((writeIndex.get() - read).toInt() < length) {
+            underruns++
+            return false
+        }
+        val offset = read.toInt() and mask
+        val first = minOf(length, capacity - offset)
+        readView.limit(offset + first).position(offset)
+        dst.put(readView)
+        if (first < length) {
+            readView.limit(length - first).position(0)
+            dst.put(readView)
+        }
+        readIndex.lazySet(read + length)
+        return true
+    }
+
+    /**
+     * Discards all unread data. Must only be called from the consumer thread.
+     */
+    fun skipAvailable() {
+        readIndex.lazySet(writeIndex.get())
+    }
+
+    override fun toString(): String {
+        return "capacity=$capacity available=$availableBytes overruns=$overruns underruns=$underruns"
+    }
+
+    companion object {
+        private const val MAX_CAPACITY = 1 shl 30
+    }
+}
@@ -0,0 +1,94 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.nio.ShortBuffer
+
+/**
+ * VoiceActivityDetector flags buffers whose level stands more than [marginDb] above the
+ * tracked noise floor and above [minimumLevelDb] dBFS. The noise floor drops straight to quieter
+ * buffers and rises by at most [noiseFloorRiseDbPerSecond], so steady noise is learned while
+ * speech is not. Activity is held for [hangoverMs] after the last voiced buffer to bridge gaps
+ * between words. The samples are not modified.
+ */
+class VoiceActivityDetector(
+    private val marginDb: Double = DEFAULT_MARGIN_DB,
+    private val minimumLevelDb: Double = DEFAULT_MINIMUM_LEVEL_DB,
+    private val hangoverMs: Double = DEFAULT_HANGOVER_MS,
+    private val noiseFloorRiseDbPerSecond: Double = DEFAULT_NOISE_FLOOR_RISE_DB_PER_SECOND,
+) : AudioProcessor {
+    private var sampleRate = 1
+    private var channelCount = 1
+    private var hangoverRemainingMs = 0.0
+
+    /**
+     * Called on the processing thread whenever [isVoiceActive] changes.
+     */
+    @Volatile
+    var onVoiceActivityChanged: ((Boolean) -> Unit)? = null
+
+    @Volatile
+    var isVoiceActive = false
+        private set
+
+    /**
+     * Current estimate of the background level in dBFS.
+     */
+    @Volatile
+    var noiseFloorDb = Double.NaN
+        private set
+
+    /**
+     * Number of buffers in which voice was detected.
+     */
+    @Volatile
+    var voicedBuffers = 0L
+        private set
+
+    override fun prepare(sampleRate: Int, channelCount: Int) {
+        this.sampleRate = sampleRate
+        this.channelCount = channelCount
+        hangoverRemainingMs = 0.0
+        isVoiceActive = false
+        noiseFloorDb = Double.NaN
+        voicedBuffers = 0
+    }
+
+    override fun process(samples: ShortBuffer) {
+        val start = samples.position()
+        val end = samples.limit()
+        if (start == end) {
+            return
+        }
+        val levelDb = rmsDb(samples)
+        val bufferMs = 1000.0 * (end - start) / channelCount / sampleRate
+        val floorDb = noiseFloorDb
+        noiseFloorDb = if (floorDb.isNaN() || levelDb < floorDb) {
+            levelDb
+        } else {
+            minOf(levelDb, floorDb + noiseFloorRiseDbPerSecond * bufferMs / 1000)
+        }
+
+        // The first buffer only seeds the noise floor
+        val voiced = !floorDb.isNaN() && levelDb >= minimumLevelDb && levelDb >= floorDb + marginDb
+        val wasActive = isVoiceActive
+        if (voiced) {
+            voicedBuffers++
+            hangoverRemainingMs = hangoverMs
+            isVoiceActive = true
+        } else {
+            hangoverRemainingMs -= bufferMs
+            if (hangoverRemainingMs <= 0) {
+                isVoiceActive = false
+            }
+        }
+        if (isVoiceActive != wasActive) {
+            onVoiceActivityChanged?.invoke(isVoiceActive)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MARGIN_DB = 9.0
+        const val DEFAULT_MINIMUM_LEVEL_DB = -55.0
+        const val DEFAULT_HANGOVER_MS = 200.0
+        const val DEFAULT_NOISE_FLOOR_RISE_DB_PER_SECOND = 3.0
+    }
+}
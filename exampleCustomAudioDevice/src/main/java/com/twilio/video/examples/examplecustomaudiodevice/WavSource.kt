@@ -0,0 +1,232 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import android.content.Context
+import android.content.res.AssetFileDescriptor
+import android.content.res.Resources
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+
+/**
+ * WavSource serves PCM audio from a WAV file as a sequence of slices. The RIFF chunk layout is
+ * parsed rather than assuming a fixed 44 byte header, and the PCM payload is memory mapped, or
+ * cached in a direct buffer when the file cannot be mapped, exactly once.
+ *
+ * Slices returned by [nextSlice] are views of the payload, so no audio is copied until the
+ * caller consumes the slice. Reading is confined to one thread, while [seekToFrame] may be
+ * called from any thread.
+ */
+class WavSource(wavData: ByteBuffer) {
+    /**
+     * Number of interleaved channels.
+     */
+    val channelCount: Int
+
+    val sampleRate: Int
+
+    val bitsPerSample: Int
+
+    /**
+     * Size of one frame, one sample for every channel, in bytes.
+     */
+    val bytesPerFrame: Int
+
+    /**
+     * Number of frames in the PCM payload.
+     */
+    val frameCount: Long
+
+    /**
+     * When true, reading continues from the first frame after reaching the end of the payload.
+     */
+    @Volatile
+    var isLooping = true
+
+    private val pcmData: ByteBuffer
+    private val sliceView: ByteBuffer
+    private var position = 0
+
+    @Volatile
+    private var pendingSeekFrame = NO_SEEK
+
+    init {
+        val header = wavData.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        if (header.remaining() < RIFF_HEADER_SIZE ||
+            header.getInt(0) != RIFF_ID ||
+            header.getInt(8) != WAVE_ID
+        ) {
+            throw IOException("Not a RIFF WAVE file")
+        }
+        var format: ByteBuffer? = null
+        var data: ByteBuffer? = null
+        var offset = RIFF_HEADER_SIZE
+        while (offset + CHUNK_HEADER_SIZE <= header.limit() && (format == null || data == null)) {
+            val chunkId = header.getInt(offset)
+            val chunkSize = header.getInt(offset + 4).toLong() and 0xffffffffL
+            val chunkStart = offset + CHUNK_HEADER_SIZE
+            // Some writers leave the data size unset when streaming, so clamp to the file
+            val available = minOf(chunkSize, (header.limit() - chunkStart).toLong()).toInt()
+            when (chunkId) {
+                FMT_ID -> format = slice(header, chunkStart, available)
+                DATA_ID -> data = slice(header, chunkStart, available)
+            }
+            // Chunks are padded to an even size
+            val next = chunkStart + chunkSize + (chunkSize and 1)
+            if (next > header.limit()) {
+                break
+            }
+            offset = next.toInt()
+        }
+        if (format == null || format.remaining() < FMT_CHUNK_MIN_SIZE) {
+            throw IOException("WAV file has no valid fmt chunk")
+        }
+        if (data == null) {
+            throw IOException("WAV file has no data chunk")
+        }
+        val audioFormat = format.getShort(0).toInt() and 0xffff
+        channelCount = format.getShort(2).toInt() and 0xffff
+        sampleRate = format.getInt(4)
+        bitsPerSample = format.getShort(14).toInt() and 0xffff
+        bytesPerFrame = channelCount * bitsPerSample / 8
+        val encoding = if (audioFormat == WAVE_FORMAT_EXTENSIBLE && format.remaining() >= 26) {
+            format.getShort(24).toInt() and 0xffff
+        } else {
+            audioFormat
+        }
+        if (encoding != WAVE_FORMAT_PCM || bitsPerSample != 16 || channelCount == 0) {
+            throw IOException(
+                "Unsupported WAV format $audioFormat with $bitsPerSample bits and $channelCount channels",
+            )
+        }
+        frameCount = (data.remaining() / bytesPerFrame).toLong()
+        data.limit(frameCount.toInt() * bytesPerFrame)
+        pcmData = data.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN)
+        sliceView = pcmData.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    /**
+     * Frame that the next slice starts at.
+     */
+    val positionFrames: Long
+        get() = (position / bytesPerFrame).toLong()
+
+    /**
+     * Duration of the PCM payload in milliseconds.
+     */
+    val durationMs: Long
+        get() = frameCount * 1000 / sampleRate
+
+    /**
+     * Moves reading to [frame], which is clamped to the payload. Takes effect at the next call
+     * to [nextSlice].
+     */
+    fun seekToFrame(frame: Long) {
+        require(frame >= 0) { "Invalid frame $frame" }
+        pendingSeekFrame = minOf(frame, frameCount)
+    }
+
+    fun seekToMs(positionMs: Long) {
+        seekToFrame(positionMs * sampleRate / 1000)
+    }
+
+    /**
+     * Returns a read only view of up to [maxBytes] bytes of PCM starting at the current position
+     * and advances past it. The slice stops at the end of the payload, so a looping source
+     * needs a second call to fill a buffer that spans the loop point. An empty slice means the
+     * end was reached and [isLooping] is false. The returned buffer is reused by the next call.
+     */
+    fun nextSlice(maxBytes: Int): ByteBuffer {
+        val seekFrame = pendingSeekFrame
+        if (seekFrame != NO_SEEK) {
+            pendingSeekFrame = NO_SEEK
+            position = (seekFrame * bytesPerFrame).toInt()
+        }
+        if (position >= pcmData.limit() && isLooping) {
+            position = 0
+        }
+        val length = minOf(maxBytes / bytesPerFrame * bytesPerFrame, pcmData.limit() - position)
+        sliceView.limit(position + length).position(position)
+        position += length
+        return sliceView
+    }
+
+    companion object {
+        private const val RIFF_ID = 0x46464952 // "RIFF"
+        private const val WAVE_ID = 0x45564157 // "WAVE"
+        private const val FMT_ID = 0x20746d66 // "fmt "
+        private const val DATA_ID = 0x61746164 // "data"
+        private const val RIFF_HEADER_SIZE = 12
+        private const val CHUNK_HEADER_SIZE = 8
+        private const val FMT_CHUNK_MIN_SIZE = 16
+        private const val WAVE_FORMAT_PCM = 1
+        private const val WAVE_FORMAT_EXTENSIBLE = 0xfffe
+        private const val NO_SEEK = -1L
+
+        /**
+         * Opens a raw resource, mapping it when it is stored uncompressed in the APK.
+         */
+        @JvmStatic
+        fun fromRawResource(context: Context, resId: Int): WavSource {
+            val fd = try {
+                context.resources.openRawResourceFd(resId)
+            } catch (e: Resources.NotFoundException) {
+                // Compressed resources cannot be opened as a file descriptor
+                null
+            }
+            return fd?.use { map(it) } ?: WavSource(cache(context.resources.openRawResource(resId)))
+        }
+
+        /**
+         * Opens a file from the app's assets, mapping it when it is stored uncompressed.
+         */
+        @JvmStatic
+        fun fromAsset(context: Context, assetName: String): WavSource {
+            val fd = try {
+                context.assets.openFd(assetName)
+            } catch (e: IOException) {
+                null
+            }
+            return fd?.use { map(it) } ?: WavSource(cache(context.assets.open(assetName)))
+        }
+
+        @JvmStatic
+        fun fromFile(file: File): WavSource {
+            return FileInputStream(file).use {
+                WavSource(it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.channel.size()))
+            }
+        }
+
+        private fun map(fd: AssetFileDescriptor): WavSource {
+            return FileInputStream(fd.fileDescriptor).use {
+                val length = if (fd.length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    it.channel.size() - fd.startOffset
+                } else {
+                    fd.length
+                }
+                WavSource(it.channel.map(FileChannel.MapMode.READ_ONLY, fd.startOffset, length))
+            }
+        }
+
+        /*
+         * Reads a compressed resource once into a direct buffer.
+         */
+        private fun cache(inputStream: InputStream): ByteBuffer {
+            inputStream.use {
+                val bytes = it.readBytes()
+                val buffer = ByteBuffer.allocateDirect(bytes.size)
+                buffer.put(bytes).flip()
+                return buffer
+            }
+        }
+
+        private fun slice(buffer: ByteBuffer, offset: Int, length: Int): ByteBuffer {
+            val view = buffer.duplicate()
+            view.limit(offset + length).position(offset)
+            return view.slice().order(ByteOrder.LITTLE_ENDIAN)
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * Measures how much faster than real time the capture chain processes a speech fixture.
+ */
+class AudioProcessingChainBenchmark {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+    }
+
+    @Test
+    fun `capture chain over 20s of 44_1kHz stereo`() {
+        val fixture = AudioProcessingHarness.writeSpeechFixture(folder.newFile("speech.wav"), 44100)
+        val chain = AudioProcessingChain(
+            HighPassFilter(),
+            VoiceActivityDetector(),
+            NoiseGate(),
+            AutomaticGainControl(),
+        )
+
+        val result = AudioProcessingHarness.run(WavSource.fromFile(fixture), chain)
+        Benchmarks.report(
+            "AudioProcessingChain",
+            "20s in ${result.processingNs / 1000}us, " +
+                "${result.realTimeFactor.toInt()}x real time: $chain",
+        )
+    }
+}
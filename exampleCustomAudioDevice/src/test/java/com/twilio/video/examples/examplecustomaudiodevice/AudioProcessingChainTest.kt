@@ -0,0 +1,98 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.abs
+
+class AudioProcessingChainTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun `stages run in order in place on the remaining samples`() {
+        val add = SampleProcessor { it + 1 }
+        val double = SampleProcessor { it * 2 }
+        val chain = AudioProcessingChain(add, double)
+        chain.prepare(RATE, 1)
+        val buffer = shorts(1, 2, 3, 4)
+        buffer.position(2).limit(6)
+
+        chain.process(buffer)
+        assertEquals(listOf(1, 6, 8, 4), (0 until 4).map { buffer.getShort(2 * it).toInt() })
+        assertEquals(2, buffer.position())
+        assertEquals(6, buffer.limit())
+        assertEquals(1L, chain.stageOf(add).time.count())
+        assertEquals(1L, chain.stageOf(double).time.count())
+        assertEquals(1L, chain.totalTime.count())
+    }
+
+    @Test
+    fun `a new buffer gets a new view`() {
+        val chain = AudioProcessingChain(SampleProcessor { it + 1 })
+        chain.prepare(RATE, 1)
+        val first = shorts(1, 2)
+        val second = shorts(10, 20)
+
+        chain.process(first)
+        chain.process(second)
+        chain.process(first)
+        assertEquals(3, first.getShort(0).toInt())
+        assertEquals(11, second.getShort(0).toInt())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `buffers in non native order are rejected`() {
+        val chain = AudioProcessingChain(SampleProcessor { it })
+        chain.prepare(RATE, 1)
+        val order = if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            ByteOrder.BIG_ENDIAN
+        } else {
+            ByteOrder.LITTLE_ENDIAN
+        }
+        chain.process(ByteBuffer.allocateDirect(4).order(order))
+    }
+
+    @Test
+    fun `a capture chain cleans up a WAV fixture`() {
+        val fixture = AudioProcessingHarness.writeSpeechFixture(folder.newFile("speech.wav"), CAPTURE_RATE)
+        val vad = VoiceActivityDetector()
+        val chain = AudioProcessingChain(HighPassFilter(), vad, NoiseGate(), AutomaticGainControl())
+
+        val result = AudioProcessingHarness.run(WavSource.fromFile(fixture), chain)
+        assertEquals(2000, result.buffers)
+        // Half of the buffers hold speech
+        assertTrue("${vad.voicedBuffers} voiced buffers", vad.voicedBuffers in 900L..1100L)
+        // The offset is gone and speech is brought up towards the target level
+        val settled = result.output.copyOfRange(2 * CAPTURE_RATE, result.output.size)
+        assertTrue(abs(settled.average()) < 50)
+        assertTrue(AudioProcessingHarness.levelDb(settled) > -25)
+    }
+
+    private fun shorts(vararg samples: Short): ByteBuffer {
+        val buffer = ByteBuffer.allocateDirect(samples.size * 2).order(ByteOrder.nativeOrder())
+        samples.forEach { buffer.putShort(it) }
+        buffer.flip()
+        return buffer
+    }
+
+    private class SampleProcessor(private val transform: (Int) -> Int) : AudioProcessor {
+        override fun prepare(sampleRate: Int, channelCount: Int) {}
+
+        override fun process(samples: ShortBuffer) {
+            for (i in samples.position() until samples.limit()) {
+                samples.put(i, transform(samples.get(i).toInt()).toShort())
+            }
+        }
+    }
+
+    companion object {
+        private const val RATE = 16000
+        private const val CAPTURE_RATE = 44100
+    }
+}
@@ -0,0 +1,154 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.Random
+import kotlin.math.PI
+import kotlin.math.pow
+import kotlin.math.roundToInt
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Test harness for [AudioProcessor] stages. Fixtures are generated in code and written as WAV
+ * files, then streamed through a chain in 10ms buffers the way the capturer delivers them.
+ */
+internal object AudioProcessingHarness {
+    class Result(val output: ShortArray, val buffers: Int, val processingNs: Long, val audioNs: Long) {
+        val realTimeFactor: Double
+            get() = audioNs.toDouble() / maxOf(1L, processingNs)
+    }
+
+    /**
+     * Processes [source] to the end in 10ms buffers, timing only the chain.
+     */
+    fun run(source: WavSource, chain: AudioProcessingChain): Result {
+        source.isLooping = false
+        chain.prepare(source.sampleRate, source.channelCount)
+        val bufferBytes = source.sampleRate / 100 * source.bytesPerFrame
+        val buffer = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.nativeOrder())
+        val output = ShortArray((source.frameCount * source.channelCount).toInt())
+        var samplesOut = 0
+        var buffers = 0
+        var processingNs = 0L
+        while (true) {
+            val slice = source.nextSlice(bufferBytes)
+            if (!slice.hasRemaining()) {
+                break
+            }
+            // The payload is little endian, the chain expects native order
+            buffer.clear()
+            while (slice.remaining() >= 2) {
+                buffer.putShort(slice.short)
+            }
+            buffer.flip()
+            val startNs = System.nanoTime()
+            chain.process(buffer)
+            processingNs += System.nanoTime() - startNs
+            buffers++
+            while (buffer.hasRemaining()) {
+                output[samplesOut++] = buffer.short
+            }
+        }
+        val audioNs = source.frameCount * 1_000_000_000L / source.sampleRate
+        return Result(output, buffers, processingNs, audioNs)
+    }
+
+    /**
+     * Runs [processor] over interleaved [samples] in place in 10ms buffers, calling
+     * [afterBuffer] with the index of the first sample after each buffer.
+     */
+    fun processInBuffers(
+        processor: AudioProcessor,
+        samples: ShortArray,
+        sampleRate: Int,
+        channelCount: Int,
+        afterBuffer: (Int) -> Unit = {},
+    ) {
+        processor.prepare(sampleRate, channelCount)
+        val bufferSamples = sampleRate / 100 * channelCount
+        val buffer = ShortBuffer.wrap(samples)
+        var start = 0
+        while (start < samples.size) {
+            val end = minOf(start + bufferSamples, samples.size)
+            buffer.clear()
+            buffer.limit(end).position(start)
+            processor.process(buffer)
+            start = end
+            afterBuffer(start)
+        }
+    }
+
+    /**
+     * Writes a 20 second stereo speech fixture: half second bursts of a 300Hz tone over quiet
+     * noise with a DC offset and rumble.
+     */
+    fun writeSpeechFixture(file: File, sampleRate: Int): File {
+        val frames = 20 * sampleRate
+        val bursts = tone(300.0, -25.0, frames, sampleRate)
+        for (i in bursts.indices) {
+            if (i / (sampleRate / 2) % 2 == 1) {
+                bursts[i] = 0.0
+            }
+        }
+        val samples = pcm(
+            2,
+            bursts,
+            noise(-70.0, frames),
+            tone(20.0, -40.0, frames, sampleRate),
+            DoubleArray(frames) { 500.0 },
+        )
+        return writeWav(file, sampleRate, 2, samples)
+    }
+
+    fun writeWav(file: File, sampleRate: Int, channelCount: Int, samples: ShortArray): File {
+        val dataSize = samples.size * 2
+        val wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN)
+        wav.put("RIFF".toByteArray()).putInt(36 + dataSize).put("WAVE".toByteArray())
+        wav.put("fmt ".toByteArray()).putInt(16).putShort(1).putShort(channelCount.toShort())
+        wav.putInt(sampleRate).putInt(sampleRate * channelCount * 2)
+        wav.putShort((channelCount * 2).toShort()).putShort(16)
+        wav.put("data".toByteArray()).putInt(dataSize)
+        samples.forEach { wav.putShort(it) }
+        FileOutputStream(file).use { it.write(wav.array()) }
+        return file
+    }
+
+    /**
+     * A sine tone with the given RMS level in dBFS.
+     */
+    fun tone(frequency: Double, levelDb: Double, frames: Int, sampleRate: Int): DoubleArray {
+        val amplitude = dbToAmplitude(levelDb) * sqrt(2.0)
+        return DoubleArray(frames) { amplitude * sin(2 * PI * frequency * it / sampleRate) }
+    }
+
+    /**
+     * Gaussian noise with the given RMS level in dBFS.
+     */
+    fun noise(levelDb: Double, frames: Int, seed: Long = 1): DoubleArray {
+        val random = Random(seed)
+        val sigma = dbToAmplitude(levelDb)
+        return DoubleArray(frames) { sigma * random.nextGaussian() }
+    }
+
+    /**
+     * Sums and quantizes signals, repeating the result on every channel.
+     */
+    fun pcm(channelCount: Int, vararg signals: DoubleArray): ShortArray {
+        val frames = signals.maxOf { it.size }
+        return ShortArray(frames * channelCount) { i ->
+            val frame = i / channelCount
+            val sum = signals.sumOf { if (frame < it.size) it[frame] else 0.0 }
+            sum.roundToInt().coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+        }
+    }
+
+    fun levelDb(samples: ShortArray, from: Int = 0, to: Int = samples.size): Double {
+        return rmsDb(ShortBuffer.wrap(samples, from, to - from))
+    }
+
+    private fun dbToAmplitude(levelDb: Double) = 32768.0 * 10.0.pow(levelDb / 20)
+}
@@ -0,0 +1,117 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import com.twilio.video.examples.examplecustomaudiodevice.AudioProcessingHarness.levelDb
+import com.twilio.video.examples.examplecustomaudiodevice.AudioProcessingHarness.noise
+import com.twilio.video.examples.examplecustomaudiodevice.AudioProcessingHarness.pcm
+import com.twilio.video.examples.examplecustomaudiodevice.AudioProcessingHarness.processInBuffers
+import com.twilio.video.examples.examplecustomaudiodevice.AudioProcessingHarness.tone
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+
+class AudioProcessorTest {
+    @Test
+    fun `high pass filter removes offset and rumble but keeps speech`() {
+        // Left is a 1kHz tone with a DC offset, right is 20Hz rumble
+        val left = pcm(1, tone(1000.0, -20.0, RATE, RATE), DoubleArray(RATE) { 3000.0 })
+        val right = pcm(1, tone(20.0, -20.0, RATE, RATE))
+        val samples = ShortArray(2 * RATE) { if (it % 2 == 0) left[it / 2] else right[it / 2] }
+
+        processInBuffers(HighPassFilter(), samples, RATE, 2)
+        // Skip the first half second while the filter settles
+        val settled = RATE / 2
+        val leftOut = ShortArray(RATE - settled) { samples[2 * (settled + it)] }
+        val rightOut = ShortArray(RATE - settled) { samples[2 * (settled + it) + 1] }
+        assertEquals(-20.0, levelDb(leftOut), 0.2)
+        assertTrue(abs(leftOut.average()) < 20)
+        assertTrue(levelDb(rightOut) < -40)
+    }
+
+    @Test
+    fun `noise gate attenuates background noise and passes speech`() {
+        val segment = RATE / 2
+        val input = pcm(1, noise(-70.0, segment)) +
+            pcm(1, tone(440.0, -20.0, segment, RATE)) +
+            pcm(1, noise(-70.0, RATE, seed = 2))
+        val samples = input.copyOf()
+        val gate = NoiseGate()
+        var openAfterSpeech = false
+        processInBuffers(gate, samples, RATE, 1) {
+            if (it == 2 * segment) {
+                openAfterSpeech = gate.isOpen
+            }
+        }
+
+        assertTrue(levelDb(samples, 0, segment) < levelDb(input, 0, segment) - 20)
+        // Speech passes unchanged once the gate has opened
+        val speechStart = segment + RATE / 100
+        assertEquals(levelDb(input, speechStart, 2 * segment), levelDb(samples, speechStart, 2 * segment), 0.1)
+        assertTrue(openAfterSpeech)
+        // Closed again after the hold and release times
+        val tailStart = 2 * segment + RATE / 2
+        assertTrue(levelDb(samples, tailStart, samples.size) < levelDb(input, tailStart, samples.size) - 20)
+        assertFalse(gate.isOpen)
+    }
+
+    @Test
+    fun `automatic gain control brings quiet and loud speech to the target level`() {
+        for (inputDb in listOf(-40.0, -10.0)) {
+            val samples = pcm(1, tone(440.0, inputDb, 5 * RATE, RATE))
+            processInBuffers(AutomaticGainControl(), samples, RATE, 1)
+            val outputDb = levelDb(samples, 4 * RATE, 5 * RATE)
+            assertEquals("Input $inputDb", AutomaticGainControl.DEFAULT_TARGET_DB, outputDb, 1.0)
+        }
+    }
+
+    @Test
+    fun `automatic gain control holds its gain through pauses`() {
+        val samples = pcm(1, tone(440.0, -35.0, 3 * RATE, RATE)) + ShortArray(2 * RATE)
+        val agc = AutomaticGainControl()
+        var gainAfterSpeech = 0.0
+        processInBuffers(agc, samples, RATE, 1) {
+            if (it == 3 * RATE) {
+                gainAfterSpeech = agc.gainDb
+            }
+        }
+
+        assertTrue(gainAfterSpeech > 10)
+        assertEquals(gainAfterSpeech, agc.gainDb, 1e-9)
+    }
+
+    @Test
+    fun `automatic gain control soft clips sudden peaks`() {
+        // Gain built up on quiet speech is still applied when the talker shouts
+        val samples = pcm(1, tone(440.0, -40.0, 3 * RATE, RATE)) + pcm(1, tone(440.0, -3.0, RATE / 10, RATE))
+        val agc = AutomaticGainControl()
+        processInBuffers(agc, samples, RATE, 1)
+
+        assertTrue(agc.limitedSamples > 0)
+    }
+
+    @Test
+    fun `voice activity follows speech over background noise`() {
+        val speech = DoubleArray(RATE) + tone(440.0, -20.0, RATE / 2, RATE)
+        val input = pcm(1, noise(-50.0, 2 * RATE), speech)
+        val samples = input.copyOf()
+        val vad = VoiceActivityDetector()
+        val transitions = mutableListOf<Boolean>()
+        vad.onVoiceActivityChanged = { transitions += it }
+        val activeAt = mutableMapOf<Int, Boolean>()
+        processInBuffers(vad, samples, RATE, 1) { activeAt[it] = vad.isVoiceActive }
+
+        assertEquals(false, activeAt[RATE])
+        assertEquals(true, activeAt[RATE + RATE / 2])
+        // Inactive once the hangover after the speech has passed
+        assertEquals(false, activeAt[2 * RATE])
+        assertEquals(listOf(true, false), transitions)
+        assertEquals(-50.0, vad.noiseFloorDb, 1.0)
+        assertArrayEquals(input, samples)
+    }
+
+    companion object {
+        private const val RATE = 16000
+    }
+}
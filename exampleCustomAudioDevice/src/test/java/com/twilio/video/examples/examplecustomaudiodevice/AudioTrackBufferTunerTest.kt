@@ -0,0 +1,88 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AudioTrackBufferTunerTest {
+    @Test
+    fun `first update only records a baseline`() {
+        val tuner = tuner()
+        assertFalse(tuner.update(3, 0))
+        assertEquals(882, tuner.bufferFrames)
+        assertEquals(0L, tuner.underruns)
+    }
+
+    @Test
+    fun `underruns grow the buffer one burst at a time up to the maximum`() {
+        val tuner = tuner()
+        tuner.update(0, 0)
+        assertTrue(tuner.update(2, 100))
+        assertEquals(1323, tuner.bufferFrames)
+        assertEquals(2L, tuner.underruns)
+        tuner.update(3, 200)
+        tuner.update(4, 300)
+        assertEquals(1764, tuner.bufferFrames)
+        assertFalse(tuner.update(5, 400))
+        assertEquals(5L, tuner.underruns)
+    }
+
+    @Test
+    fun `quiet playback shrinks the buffer down to the minimum`() {
+        val tuner = tuner(initialBufferFrames = 1764)
+        tuner.update(0, 0)
+        assertFalse(tuner.update(0, QUIET_MS - 1))
+        assertTrue(tuner.update(0, QUIET_MS))
+        assertEquals(1323, tuner.bufferFrames)
+        tuner.update(0, 2 * QUIET_MS)
+        tuner.update(0, 3 * QUIET_MS)
+        assertEquals(441, tuner.bufferFrames)
+        assertFalse(tuner.update(0, 4 * QUIET_MS))
+    }
+
+    @Test
+    fun `underruns after a shrink double the quiet period`() {
+        val tuner = tuner()
+        tuner.update(0, 0)
+        tuner.update(0, QUIET_MS)
+        assertEquals(441, tuner.bufferFrames)
+        tuner.update(1, QUIET_MS + 100)
+        assertEquals(882, tuner.bufferFrames)
+
+        // The next shrink waits twice as long
+        assertFalse(tuner.update(1, 2 * QUIET_MS + 100))
+        assertTrue(tuner.update(1, 3 * QUIET_MS + 100))
+        assertEquals(441, tuner.bufferFrames)
+    }
+
+    @Test
+    fun `applied sizes replace the requested size`() {
+        val tuner = tuner()
+        tuner.update(0, 0)
+        tuner.update(1, 100)
+        tuner.onBufferSizeApplied(1536)
+        assertEquals(1536, tuner.bufferFrames)
+    }
+
+    @Test
+    fun `a reset underrun count starts a new baseline`() {
+        val tuner = tuner()
+        tuner.update(5, 0)
+        assertFalse(tuner.update(0, 100))
+        assertTrue(tuner.update(1, 200))
+        assertEquals(1L, tuner.underruns)
+    }
+
+    private fun tuner(initialBufferFrames: Int = 882) = AudioTrackBufferTuner(
+        burstFrames = 441,
+        minBufferFrames = 441,
+        maxBufferFrames = 1764,
+        initialBufferFrames = initialBufferFrames,
+        quietPeriodMs = QUIET_MS,
+    )
+
+    companion object {
+        private const val QUIET_MS = 1000L
+    }
+}
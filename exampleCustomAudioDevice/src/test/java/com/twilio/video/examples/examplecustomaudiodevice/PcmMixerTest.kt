@@ -0,0 +1,65 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class PcmMixerTest {
+    @Test
+    fun `sources are summed with their gains`() {
+        val primary = shorts(1000, -2000, 300)
+        val secondary = shorts(400, 400, -600)
+
+        assertEquals(0, PcmMixer.mix(primary, 1f, secondary, 0.5f))
+        assertEquals(1200.toShort(), primary.getShort(0))
+        assertEquals((-1800).toShort(), primary.getShort(2))
+        assertEquals(0.toShort(), primary.getShort(4))
+    }
+
+    @Test
+    fun `missing secondary samples are treated as silence`() {
+        val primary = shorts(100, 200, 300)
+        val secondary = shorts(50)
+
+        PcmMixer.mix(primary, 1f, secondary, 1f)
+        assertEquals(150.toShort(), primary.getShort(0))
+        assertEquals(200.toShort(), primary.getShort(2))
+        assertEquals(300.toShort(), primary.getShort(4))
+    }
+
+    @Test
+    fun `peaks are limited below full scale and counted`() {
+        val primary = shorts(30000, -30000, 20000)
+        val secondary = shorts(30000, -30000, 1000)
+
+        assertEquals(2, PcmMixer.mix(primary, 1f, secondary, 1f))
+        val positive = primary.getShort(0).toInt()
+        val negative = primary.getShort(2).toInt()
+        assertTrue(positive in PcmMixer.SOFT_CLIP_KNEE..Short.MAX_VALUE)
+        assertEquals(-positive, negative)
+        assertEquals(21000.toShort(), primary.getShort(4))
+    }
+
+    @Test
+    fun `soft clip is continuous and monotonic`() {
+        var previous = PcmMixer.softClip(0)
+        for (value in 1..200_000 step 7) {
+            val limited = PcmMixer.softClip(value)
+            assertTrue(limited >= previous)
+            assertTrue(limited < Short.MAX_VALUE)
+            previous = limited
+        }
+        assertEquals(PcmMixer.SOFT_CLIP_KNEE, PcmMixer.softClip(PcmMixer.SOFT_CLIP_KNEE))
+        // Just above the knee the slope is close to one
+        assertTrue(PcmMixer.softClip(PcmMixer.SOFT_CLIP_KNEE + 100) - PcmMixer.SOFT_CLIP_KNEE in 98..100)
+    }
+
+    private fun shorts(vararg samples: Short): ByteBuffer {
+        val buffer = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.nativeOrder())
+        samples.forEach { buffer.putShort(it) }
+        buffer.flip()
+        return buffer
+    }
+}
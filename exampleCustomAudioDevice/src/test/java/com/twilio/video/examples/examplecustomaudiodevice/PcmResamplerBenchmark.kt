@@ -0,0 +1,38 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Before
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Measures the time [PcmResampler] takes to convert a 10ms buffer.
+ */
+class PcmResamplerBenchmark {
+    @Before
+    fun setUp() {
+        Benchmarks.assumeEnabled()
+    }
+
+    @Test
+    fun `convert 48kHz to 44_1kHz stereo`() {
+        val resampler = PcmResampler(48000, 2, 44100, 2, 441)
+        val input = ByteBuffer.allocate(2 * 2 * 960).order(ByteOrder.nativeOrder())
+        val output = ByteBuffer.allocate(2 * 2 * 441).order(ByteOrder.nativeOrder())
+        fun convertBuffers(count: Int) {
+            repeat(count) {
+                input.clear().limit(resampler.inputFramesNeeded(441) * 4)
+                resampler.write(input)
+                output.clear()
+                resampler.read(output, 441)
+            }
+        }
+        // Warm up the JIT before timing
+        convertBuffers(2000)
+        val buffers = 5000
+        val startNs = System.nanoTime()
+        convertBuffers(buffers)
+        val nsPerBuffer = (System.nanoTime() - startNs) / buffers
+        Benchmarks.report("PcmResampler 48kHz to 44.1kHz stereo", "$nsPerBuffer ns per 10ms buffer")
+    }
+}
@@ -0,0 +1,178 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.log10
+import kotlin.math.roundToInt
+import kotlin.math.sin
+
+/**
+ * Measures [PcmResampler] against reference tones. The SNR and THD bounds are well above what is
+ * audible and close to the limit of 16 bit output.
+ */
+class PcmResamplerTest {
+    @Test
+    fun `common rate conversions keep a 1kHz tone clean`() {
+        val rates = listOf(48000 to 44100, 44100 to 48000, 16000 to 44100, 22050 to 44100, 44100 to 44100)
+        for ((inputRate, outputRate) in rates) {
+            val output = resampleTone(inputRate, outputRate, 1000.0)
+            // Skip the first 100ms while the filter settles and analyze one second
+            val analysis = ToneAnalysis(output, outputRate / 10, outputRate, 1000.0, outputRate)
+            assertTrue("$inputRate to $outputRate SNR ${analysis.snrDb}", analysis.snrDb > 80)
+            assertTrue("$inputRate to $outputRate THD ${analysis.thdDb}", analysis.thdDb < -90)
+        }
+    }
+
+    @Test
+    fun `tones above the output Nyquist frequency are rejected`() {
+        // 23kHz cannot be represented at 44.1kHz and must not alias to 21.1kHz
+        val output = resampleTone(48000, 44100, 23000.0)
+        val aliased = ToneAnalysis(output, 4410, 44100, 21100.0, 44100)
+        assertTrue("Alias level ${aliased.levelDb}", aliased.levelDb < -60)
+    }
+
+    @Test
+    fun `equal rates pass samples through unchanged`() {
+        val resampler = PcmResampler(44100, 1, 44100, 1, 441)
+        val input = shorts(ShortArray(441) { (it * 37 - 8000).toShort() })
+        val needed = resampler.inputFramesNeeded(441)
+        val output = ByteBuffer.allocate(882).order(ByteOrder.nativeOrder())
+        val padded = shorts(ShortArray(needed) { if (it < 441) input.getShort(2 * it) else 0 })
+        resampler.write(padded)
+        assertTrue(resampler.read(output, 441))
+        for (i in 0 until 441) {
+            assertEquals(input.getShort(2 * i), output.getShort(2 * i))
+        }
+    }
+
+    @Test
+    fun `output frame count does not drift`() {
+        val resampler = PcmResampler(48000, 2, 44100, 2, 441)
+        val input = ByteBuffer.allocate(2 * 2 * 960).order(ByteOrder.nativeOrder())
+        val output = ByteBuffer.allocate(2 * 2 * 441).order(ByteOrder.nativeOrder())
+        var inputFrames = 0L
+        // Ten minutes of 10ms buffers
+        repeat(60_000) {
+            val needed = resampler.inputFramesNeeded(441)
+            input.clear().limit(needed * 4)
+            resampler.write(input)
+            inputFrames += needed
+            output.clear()
+            assertTrue(resampler.read(output, 441))
+        }
+        // Every output second consumes exactly one input second, within the filter length
+        assertEquals(600.0 * 48000, inputFrames.toDouble(), 64.0)
+    }
+
+    @Test
+    fun `mono is duplicated and stereo is averaged`() {
+        val upmix = PcmResampler(44100, 1, 44100, 2, 1)
+        upmix.write(shorts(ShortArray(upmix.inputFramesNeeded(1)) { 1000 }))
+        val stereo = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder())
+        assertTrue(upmix.read(stereo, 1))
+        assertEquals(1000.toShort(), stereo.getShort(0))
+        assertEquals(1000.toShort(), stereo.getShort(2))
+
+        val downmix = PcmResampler(44100, 2, 44100, 1, 1)
+        val needed = downmix.inputFramesNeeded(1)
+        downmix.write(shorts(ShortArray(needed * 2) { if (it % 2 == 0) 3000 else -1000 }))
+        val mono = ByteBuffer.allocate(2).order(ByteOrder.nativeOrder())
+        assertTrue(downmix.read(mono, 1))
+        assertEquals(1000.toShort(), mono.getShort(0))
+    }
+
+    @Test
+    fun `read without enough input writes nothing`() {
+        val resampler = PcmResampler(48000, 1, 44100, 1, 441)
+        val output = ByteBuffer.allocate(882)
+        assertFalse(resampler.read(output, 441))
+        assertEquals(0, output.position())
+    }
+
+    private fun resampleTone(inputRate: Int, outputRate: Int, frequency: Double): ShortArray {
+        val outputFrames = outputRate / 100
+        val resampler = PcmResampler(inputRate, 1, outputRate, 1, outputFrames)
+        val seconds = 2
+        val output = ByteBuffer.allocate(2 * outputRate * seconds).order(ByteOrder.nativeOrder())
+        val input = ByteBuffer.allocate(2 * (inputRate / 50 + 64)).order(ByteOrder.nativeOrder())
+        var inputFrame = 0
+        while (output.remaining() >= 2 * outputFrames) {
+            val needed = resampler.inputFramesNeeded(outputFrames)
+            input.clear()
+            for (i in 0 until needed) {
+                val t = 2 * PI * frequency * (inputFrame + i) / inputRate
+                input.putShort((AMPLITUDE * sin(t)).roundToInt().toShort())
+            }
+            inputFrame += needed
+            input.flip()
+            resampler.write(input)
+            assertTrue(resampler.read(output, outputFrames))
+        }
+        return ShortArray(output.position() / 2) { output.getShort(2 * it) }
+    }
+
+    private fun shorts(samples: ShortArray): ByteBuffer {
+        val buffer = ByteBuffer.allocate(samples.size * 2).order(ByteOrder.nativeOrder())
+        samples.forEach { buffer.putShort(it) }
+        buffer.flip()
+        return buffer
+    }
+
+    /*
+     * Projects a window of samples onto a tone and its harmonics to measure signal to noise ratio
+     * and total harmonic distortion.
+     */
+    private class ToneAnalysis(
+        samples: ShortArray,
+        start: Int,
+        length: Int,
+        frequency: Double,
+        rate: Int,
+    ) {
+        val snrDb: Double
+        val thdDb: Double
+        val levelDb: Double
+
+        init {
+            var total = 0.0
+            for (i in start until start + length) {
+                total += samples[i].toDouble() * samples[i]
+            }
+            total /= length
+            val fundamental = power(samples, start, length, frequency, rate)
+            var harmonics = 0.0
+            for (harmonic in 2..5) {
+                harmonics += power(samples, start, length, frequency * harmonic, rate)
+            }
+            snrDb = 10 * log10(fundamental / (total - fundamental))
+            thdDb = 10 * log10(harmonics / fundamental)
+            levelDb = 10 * log10(fundamental / (AMPLITUDE * AMPLITUDE / 2))
+        }
+
+        private fun power(samples: ShortArray, start: Int, length: Int, frequency: Double, rate: Int): Double {
+            if (frequency >= rate / 2.0) {
+                return 0.0
+            }
+            var sinSum = 0.0
+            var cosSum = 0.0
+            for (i in start until start + length) {
+                val t = 2 * PI * frequency * i / rate
+                sinSum += samples[i] * sin(t)
+                cosSum += samples[i] * cos(t)
+            }
+            sinSum *= 2.0 / length
+            cosSum *= 2.0 / length
+            return (sinSum * sinSum + cosSum * cosSum) / 2
+        }
+    }
+
+    companion object {
+        private const val AMPLITUDE = 16000.0
+    }
+}
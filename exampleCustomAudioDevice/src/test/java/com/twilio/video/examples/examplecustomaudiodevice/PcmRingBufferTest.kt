@@ -0,0 +1,158 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+class PcmRingBufferTest {
+    @Test
+    fun `capacity is rounded up to a power of two`() {
+        assertEquals(1, PcmRingBuffer(1).capacity)
+        assertEquals(1024, PcmRingBuffer(1024).capacity)
+        assertEquals(2048, PcmRingBuffer(1025).capacity)
+        assertEquals(32768, PcmRingBuffer(8 * 1764).capacity)
+    }
+
+    @Test
+    fun `reads return bytes in write order across the wrap point`() {
+        val ring = PcmRingBuffer(16)
+        val out = ByteBuffer.allocate(6)
+        var next = 0
+        var expected = 0
+        repeat(20) {
+            assertTrue(ring.write(sequence(next, 6)))
+            next += 6
+            out.clear()
+            assertTrue(ring.read(out))
+            for (i in 0 until 6) {
+                assertEquals((expected++).toByte(), out.get(i))
+            }
+        }
+        assertEquals(0, ring.availableBytes)
+        assertEquals(120L, ring.bytesRead)
+    }
+
+    @Test
+    fun `writes that do not fit are dropped and counted`() {
+        val ring = PcmRingBuffer(8)
+        assertTrue(ring.write(sequence(0, 6)))
+        val chunk = sequence(6, 4)
+        assertFalse(ring.write(chunk))
+
+        assertEquals(4, chunk.remaining())
+        assertEquals(1, ring.overruns)
+        assertEquals(6, ring.availableBytes)
+        assertEquals(0.75f, ring.fillLevel, 0f)
+    }
+
+    @Test
+    fun `reads that cannot be satisfied are counted and copy nothing`() {
+        val ring = PcmRingBuffer(8)
+        ring.write(sequence(0, 3))
+        val out = ByteBuffer.allocate(4)
+        assertFalse(ring.read(out))
+
+        assertEquals(0, out.position())
+        assertEquals(1, ring.underruns)
+        assertEquals(3, ring.availableBytes)
+    }
+
+    @Test
+    fun `source and destination positions are advanced`() {
+        val ring = PcmRingBuffer(8)
+        val chunk = sequence(0, 8)
+        chunk.position(2)
+        assertTrue(ring.write(chunk))
+        assertEquals(8, chunk.position())
+
+        val out = ByteBuffer.allocateDirect(10)
+        out.position(4)
+        assertTrue(ring.read(out, 6))
+        assertEquals(10, out.position())
+        assertEquals(2.toByte(), out.get(4))
+        assertEquals(7.toByte(), out.get(9))
+    }
+
+    @Test
+    fun `skipAvailable discards unread data`() {
+        val ring = PcmRingBuffer(8)
+        ring.write(sequence(0, 5))
+        ring.skipAvailable()
+        assertEquals(0, ring.availableBytes)
+        assertEquals(8, ring.freeBytes)
+    }
+
+    @Test(timeout = 30_000)
+    fun `concurrent producer and consumer preserve every byte`() {
+        val ring = PcmRingBuffer(4 * CHUNK_SIZE)
+        val failure = AtomicReference<Throwable>()
+        val producer = Thread {
+            val chunk = ByteBuffer.allocateDirect(CHUNK_SIZE)
+            var value = 0
+            var chunks = 0
+            while (chunks < CHUNK_COUNT) {
+                chunk.clear()
+                val start = value
+                while (chunk.hasRemaining()) {
+                    chunk.put((value++).toByte())
+                }
+                chunk.flip()
+                if (ring.write(chunk)) {
+                    chunks++
+                } else {
+                    // Try the same chunk again once the consumer has caught up
+                    value = start
+                    Thread.yield()
+                }
+            }
+        }
+        val consumer = Thread {
+            val chunk = ByteBuffer.allocateDirect(CHUNK_SIZE)
+            var expected = 0
+            var chunks = 0
+            try {
+                while (chunks < CHUNK_COUNT) {
+                    chunk.clear()
+                    if (!ring.read(chunk)) {
+                        Thread.yield()
+                        continue
+                    }
+                    for (i in 0 until CHUNK_SIZE) {
+                        assertEquals((expected++).toByte(), chunk.get(i))
+                    }
+                    chunks++
+                }
+            } catch (t: Throwable) {
+                failure.set(t)
+            }
+        }
+        producer.start()
+        consumer.start()
+        producer.join(TimeUnit.SECONDS.toMillis(20))
+        consumer.join(TimeUnit.SECONDS.toMillis(20))
+
+        failure.get()?.let { throw it }
+        assertEquals(CHUNK_SIZE.toLong() * CHUNK_COUNT, ring.bytesRead)
+        assertEquals(ring.bytesWritten, ring.bytesRead)
+        assertEquals(0, ring.availableBytes)
+    }
+
+    private fun sequence(start: Int, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocate(length)
+        for (i in 0 until length) {
+            buffer.put((start + i).toByte())
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    companion object {
+        // 10ms of 44.1kHz stereo PCM, deliberately not a power of two
+        private const val CHUNK_SIZE = 1764
+        private const val CHUNK_COUNT = 100_000
+    }
+}
@@ -0,0 +1,127 @@
+package com.twilio.video.examples.examplecustomaudiodevice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class WavSourceTest {
+    @Test
+    fun `chunks before and after the payload are skipped`() {
+        val source = WavSource(wav(frames = 10, extraChunks = true))
+
+        assertEquals(2, source.channelCount)
+        assertEquals(44100, source.sampleRate)
+        assertEquals(16, source.bitsPerSample)
+        assertEquals(4, source.bytesPerFrame)
+        assertEquals(10L, source.frameCount)
+        source.seekToFrame(1)
+        val slice = source.nextSlice(4)
+        assertEquals(1, sampleAt(slice, 0))
+        assertEquals(-1, sampleAt(slice, 2))
+    }
+
+    @Test
+    fun `slices are views of consecutive frames`() {
+        val source = WavSource(wav(frames = 10))
+        val first = source.nextSlice(12)
+        assertEquals(12, first.remaining())
+        assertEquals(0, sampleAt(first, 0))
+        assertEquals(2, sampleAt(first, 4))
+
+        val second = source.nextSlice(8)
+        assertEquals(3, sampleAt(second, 0))
+        assertEquals(5L, source.positionFrames)
+    }
+
+    @Test
+    fun `slices are truncated to whole frames`() {
+        val source = WavSource(wav(frames = 10))
+        assertEquals(8, source.nextSlice(11).remaining())
+    }
+
+    @Test
+    fun `looping restarts at the first frame`() {
+        val source = WavSource(wav(frames = 3))
+        assertEquals(12, source.nextSlice(16).remaining())
+        val wrapped = source.nextSlice(8)
+        assertEquals(8, wrapped.remaining())
+        assertEquals(0, sampleAt(wrapped, 0))
+    }
+
+    @Test
+    fun `sources that do not loop end with an empty slice`() {
+        val source = WavSource(wav(frames = 3))
+        source.isLooping = false
+        source.nextSlice(12)
+        assertFalse(source.nextSlice(12).hasRemaining())
+    }
+
+    @Test
+    fun `seeking moves the next slice`() {
+        val source = WavSource(wav(frames = 44100))
+        source.seekToMs(500)
+        assertEquals(22050, sampleAt(source.nextSlice(4), 0))
+
+        // Seeking past the end is clamped to the end
+        source.isLooping = false
+        source.seekToFrame(100_000)
+        assertFalse(source.nextSlice(4).hasRemaining())
+    }
+
+    @Test
+    fun `payload size is clamped to the file`() {
+        val wav = wav(frames = 4)
+        // Streaming writers may leave the data chunk size at its maximum
+        wav.putInt(DATA_SIZE_OFFSET, -1)
+        assertEquals(4L, WavSource(wav).frameCount)
+    }
+
+    @Test(expected = IOException::class)
+    fun `non WAV data is rejected`() {
+        WavSource(ByteBuffer.wrap("not a wav file at all".toByteArray()))
+    }
+
+    @Test(expected = IOException::class)
+    fun `non PCM formats are rejected`() {
+        val wav = wav(frames = 4)
+        wav.putShort(FORMAT_OFFSET, 3)
+        WavSource(wav)
+    }
+
+    /*
+     * Frame i holds sample i in the left channel and -i in the right channel.
+     */
+    private fun wav(frames: Int, extraChunks: Boolean = false): ByteBuffer {
+        val dataSize = frames * 4
+        val extraSize = if (extraChunks) 2 * (8 + 6) else 0
+        val buffer = ByteBuffer.allocate(44 + dataSize + extraSize).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put("RIFF".toByteArray()).putInt(36 + dataSize + extraSize).put("WAVE".toByteArray())
+        buffer.put("fmt ".toByteArray()).putInt(16)
+        buffer.putShort(1).putShort(2).putInt(44100).putInt(44100 * 4).putShort(4).putShort(16)
+        if (extraChunks) {
+            // An odd sized chunk is followed by a pad byte
+            buffer.put("LIST".toByteArray()).putInt(5).put(ByteArray(6))
+        }
+        buffer.put("data".toByteArray()).putInt(dataSize)
+        for (i in 0 until frames) {
+            buffer.putShort(i.toShort()).putShort((-i).toShort())
+        }
+        if (extraChunks) {
+            buffer.put("id3 ".toByteArray()).putInt(6).put(ByteArray(6))
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    private fun sampleAt(slice: ByteBuffer, offset: Int): Int {
+        return slice.duplicate().order(ByteOrder.LITTLE_ENDIAN).getShort(slice.position() + offset).toInt()
+    }
+
+    companion object {
+        private const val FORMAT_OFFSET = 20
+        private const val DATA_SIZE_OFFSET = 40
+    }
+}
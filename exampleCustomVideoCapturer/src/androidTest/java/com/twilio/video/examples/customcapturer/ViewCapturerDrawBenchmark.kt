@@ -0,0 +1,93 @@
+package com.twilio.video.examples.customcapturer
+
+import android.graphics.Color
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import android.view.View
+import android.widget.LinearLayout
+import android.widget.TextView
+import com.twilio.video.VideoDimensions
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Compares the main thread time [ViewCapturer] spends per frame when it rasterizes the view
+ * inline with the time it spends only recording a [android.graphics.Picture]. Drawing needs a
+ * real view hierarchy, so this runs on a device with
+ * `./gradlew connectedAndroidTest -Pbenchmark` and logs both histograms instead of asserting on
+ * them.
+ */
+@RunWith(AndroidJUnit4::class)
+class ViewCapturerDrawBenchmark {
+    private lateinit var view: View
+
+    @Before
+    fun setUp() {
+        val arguments = InstrumentationRegistry.getArguments()
+        assumeTrue("Benchmarks run with -Pbenchmark", arguments.getString("benchmark") == "true")
+        InstrumentationRegistry.getInstrumentation().runOnMainSync { view = createView() }
+    }
+
+    @Test
+    fun inlineRasterizationVsPictureRecording() {
+        val inline = captureMainThreadDrawTime(rasterizeOffMainThread = false)
+        val recorded = captureMainThreadDrawTime(rasterizeOffMainThread = true)
+        Log.i(TAG, "Main thread draw time, rasterized inline: $inline")
+        Log.i(TAG, "Main thread draw time, Picture recorded: $recorded")
+    }
+
+    private fun captureMainThreadDrawTime(rasterizeOffMainThread: Boolean): String {
+        val capturer = ViewCapturer(
+            view,
+            skipUnchangedFrames = false,
+            rasterizeOffMainThread = rasterizeOffMainThread,
+        )
+        capturer.startCapture(
+            VideoDimensions.HD_720P_VIDEO_WIDTH,
+            VideoDimensions.HD_720P_VIDEO_HEIGHT,
+            FRAMERATE,
+        )
+        Thread.sleep(CAPTURE_DURATION_MS)
+        capturer.stopCapture()
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync()
+        val drawTime = capturer.mainThreadDrawTime
+        return "p50=${drawTime.percentileMs(50.0)}ms p90=${drawTime.percentileMs(90.0)}ms " +
+            "$drawTime framesSent=${capturer.framesSent}"
+    }
+
+    /*
+     * Lays out a detached 720p hierarchy of text rows, which is enough for the capturer to draw
+     * it without showing an activity.
+     */
+    private fun createView(): View {
+        val context = InstrumentationRegistry.getTargetContext()
+        val layout = LinearLayout(context).apply { orientation = LinearLayout.VERTICAL }
+        for (row in 0 until ROWS) {
+            layout.addView(
+                TextView(context).apply {
+                    text = "Row $row of the captured view hierarchy"
+                    setTextColor(if (row % 2 == 0) Color.BLACK else Color.DKGRAY)
+                    setBackgroundColor(Color.HSVToColor(floatArrayOf(row * 360f / ROWS, 0.3f, 1f)))
+                },
+            )
+        }
+        val width = VideoDimensions.HD_720P_VIDEO_WIDTH
+        val height = VideoDimensions.HD_720P_VIDEO_HEIGHT
+        layout.measure(
+            View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+            View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY),
+        )
+        layout.layout(0, 0, width, height)
+        return layout
+    }
+
+    companion object {
+        private const val TAG = "ViewCapturerBenchmark"
+        private const val FRAMERATE = 30
+        private const val CAPTURE_DURATION_MS = 5000L
+        private const val ROWS = 40
+    }
+}
@@ -3,73 +3,128 @@ package com.twilio.video.examples.customcapturer
 import android.content.Context
 import android.graphics.Bitmap
 import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Picture
 import android.os.Handler
+import android.os.HandlerThread
 import android.os.Looper
 import android.os.SystemClock
 import android.view.View
+import android.view.ViewTreeObserver
 import com.twilio.video.Argb8888Buffer
 import com.twilio.video.VideoCapturer
 import com.twilio.video.VideoDimensions
 import com.twilio.video.VideoFormat
+import com.twilio.video.examples.common.LatencyHistogram
+import com.twilio.video.examples.common.LatencyStats
+import com.twilio.video.examples.common.RecyclableBuffer
 import tvi.webrtc.CapturerObserver
 import tvi.webrtc.SurfaceTextureHelper
 import tvi.webrtc.VideoFrame
 import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * ViewCapturer demonstrates how to implement a custom [VideoCapturer]. This class
  * captures the contents of a provided view and signals the [tvi.webrtc.CapturerObserver] when
  * the frame is available.
+ *
+ * Captures are scheduled against absolute deadlines derived from the framerate requested in
+ * [startCapture], so draw time does not slow the capture rate down. Deadlines missed because
+ * the main thread was busy are dropped rather than captured in a burst. Copying, change
+ * detection and frame delivery run on a dedicated capture thread.
+ *
+ * When [rasterizeOffMainThread] is enabled, the main thread only records the view's drawing
+ * commands into a [Picture] and the capture thread plays them back into the capture bitmap.
+ * Recording is much cheaper than rasterizing, which keeps capture from competing with UI input.
+ * Views whose content is only available to the hardware renderer, such as a TextureView, are
+ * not captured in either mode.
+ *
+ * Frames are produced at the resolution negotiated in [startCapture]. The view is scaled down
+ * while it is drawn, preserving its aspect ratio, so capture memory, copies and encoding scale
+ * with the requested format rather than with the display. Views are never scaled up.
+ *
+ * When [skipUnchangedFrames] is enabled, a frame is only sent if the view hierarchy was drawn
+ * since the last capture and its pixels actually changed. An unchanged view is still sent once
+ * every [keepAliveIntervalMs] so receivers keep getting frames.
  */
-class ViewCapturer(private val view: View) : VideoCapturer {
+class ViewCapturer @JvmOverloads constructor(
+    private val view: View,
+    private val skipUnchangedFrames: Boolean = true,
+    private val keepAliveIntervalMs: Long = DEFAULT_KEEP_ALIVE_INTERVAL_MS,
+    private val rasterizeOffMainThread: Boolean = true,
+) : VideoCapturer {
     private val handler = Handler(Looper.getMainLooper())
+    private var captureThread: HandlerThread? = null
+
+    @Volatile
+    private var captureHandler: Handler? = null
     private var capturerObserver: CapturerObserver? = null
     private val started =
         AtomicBoolean(false)
+    private val captureSlots = arrayOf(CaptureSlot(), CaptureSlot())
+    private val viewDrawn = AtomicBoolean(true)
+    private val onDrawListener = ViewTreeObserver.OnDrawListener { viewDrawn.set(true) }
+    private var lastFrameHash = 0L
+
+    @Volatile
+    private var lastFrameTimeMs = 0L
+    private val sentFrameCount = AtomicLong()
+    private val skippedFrameCount = AtomicLong()
+    private val missedDeadlineCount = AtomicLong()
+    private var frameIntervalNs = 0L
+    private var captureStartNs = 0L
+    private var frameIndex = 0L
+    private var maxCaptureWidth = 0
+    private var maxCaptureHeight = 0
+
+    /**
+     * Number of frames delivered to the SDK since capturing last started.
+     */
+    val framesSent: Long
+        get() = sentFrameCount.get()
+
+    /**
+     * Number of capture ticks skipped because the view did not change.
+     */
+    val framesSkipped: Long
+        get() = skippedFrameCount.get()
+
+    /**
+     * Number of capture deadlines dropped because the previous capture ran late.
+     */
+    val deadlinesMissed: Long
+        get() = missedDeadlineCount.get()
 
-    private val viewCapturer = {
-        val dropFrame = view.width == 0 || view.height == 0
+    /**
+     * How late each capture ran relative to its deadline.
+     */
+    val captureJitter = LatencyStats()
+
+    /**
+     * Time the main thread spends drawing or recording the view for each captured frame.
+     */
+    val mainThreadDrawTime = LatencyHistogram()
+
+    /**
+     * Frames per second delivered to the SDK since capturing started.
+     */
+    val achievedFramerate: Double
+        get() {
+            val elapsedNs = SystemClock.uptimeMillis() * NANOS_PER_MILLI - captureStartNs
+            return if (elapsedNs <= 0) 0.0 else framesSent * NANOS_PER_SECOND.toDouble() / elapsedNs
+        }
+
+    private val viewCapturer = Runnable {
+        val deadlineNs = captureStartNs + frameIndex * frameIntervalNs
+        captureJitter.record(maxOf(0L, SystemClock.uptimeMillis() * NANOS_PER_MILLI - deadlineNs))
 
         // Only capture the view if the dimensions have been established
-        if (!dropFrame) {
-            // Draw view into bitmap backed canvas
-            val measuredWidth = View.MeasureSpec.makeMeasureSpec(
-                view.width,
-                View.MeasureSpec.EXACTLY,
-            )
-            val measuredHeight = View.MeasureSpec.makeMeasureSpec(
-                view.height,
-                View.MeasureSpec.EXACTLY,
-            )
-            view.measure(measuredWidth, measuredHeight)
-            view.layout(0, 0, view.measuredWidth, view.measuredHeight)
-            val viewBitmap = Bitmap.createBitmap(
-                view.width,
-                view.height,
-                Bitmap.Config.ARGB_8888,
-            )
-            val viewCanvas = Canvas(viewBitmap)
-            view.draw(viewCanvas)
-
-            // Extract the frame from the bitmap
-            val bytes = viewBitmap.byteCount
-            val buffer = ByteBuffer.allocate(bytes)
-            viewBitmap.copyPixelsToBuffer(buffer)
-
-            // Create video frame
-            val captureTimeNs =
-                TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime())
-            val videoBuffer: VideoFrame.Buffer =
-                Argb8888Buffer(buffer, view.width, view.height)
-            val videoFrame = VideoFrame(videoBuffer, 0, captureTimeNs)
-
-            // Notify the observer
-            if (started.get()) {
-                capturerObserver?.onFrameCaptured(videoFrame)
-                videoFrame.release()
-            }
+        if (view.width != 0 && view.height != 0) {
+            captureFrame()
         }
 
         // Schedule the next capture
@@ -78,9 +133,22 @@ class ViewCapturer(private val view: View) : VideoCapturer {
         }
     }
 
+    /**
+     * Returns the view dimensions scaled down to fit within 720p, which is the largest format
+     * the view will be captured at unless a larger one is negotiated in [startCapture].
+     */
     override fun getCaptureFormat(): VideoFormat {
-        val videoDimensions = VideoDimensions(view.width, view.height)
-        return VideoFormat(videoDimensions, 30)
+        val videoDimensions = if (view.width != 0 && view.height != 0) {
+            fitDimensions(
+                view.width,
+                view.height,
+                VideoDimensions.HD_720P_VIDEO_WIDTH,
+                VideoDimensions.HD_720P_VIDEO_HEIGHT,
+            )
+        } else {
+            VideoDimensions(view.width, view.height)
+        }
+        return VideoFormat(videoDimensions, MAX_FRAMERATE)
     }
 
     /**
@@ -99,10 +167,26 @@ class ViewCapturer(private val view: View) : VideoCapturer {
     }
 
     override fun startCapture(width: Int, height: Int, framerate: Int) {
+        val thread = HandlerThread("ViewCapturerThread").apply { start() }
+        captureThread = thread
+        captureHandler = Handler(thread.looper)
+        val targetFramerate = if (framerate > 0) minOf(framerate, MAX_FRAMERATE) else DEFAULT_FRAMERATE
+        frameIntervalNs = NANOS_PER_SECOND / targetFramerate
+        maxCaptureWidth = width
+        maxCaptureHeight = height
+        captureStartNs = SystemClock.uptimeMillis() * NANOS_PER_MILLI
+        frameIndex = 0
+        captureJitter.reset()
+        mainThreadDrawTime.reset()
+        sentFrameCount.set(0)
+        skippedFrameCount.set(0)
+        missedDeadlineCount.set(0)
         started.set(true)
+        viewDrawn.set(true)
+        handler.post { view.viewTreeObserver.addOnDrawListener(onDrawListener) }
 
         // Notify capturer API that the capturer has started
-        val capturerStarted = handler.postDelayed(viewCapturer, VIEW_CAPTURER_FRAMERATE_MS.toLong())
+        val capturerStarted = handler.post(viewCapturer)
         capturerObserver?.onCapturerStarted(capturerStarted)
     }
 
@@ -112,14 +196,236 @@ class ViewCapturer(private val view: View) : VideoCapturer {
     override fun stopCapture() {
         started.set(false)
         handler.removeCallbacks(viewCapturer)
+        handler.post { view.viewTreeObserver.removeOnDrawListener(onDrawListener) }
+        captureThread?.quitSafely()
+        captureThread = null
+        captureHandler = null
         capturerObserver?.onCapturerStopped()
     }
 
+    private fun captureFrame() {
+        val nowMs = SystemClock.elapsedRealtime()
+        val keepAliveDue = nowMs - lastFrameTimeMs >= keepAliveIntervalMs
+
+        // Skip drawing entirely if the view hierarchy has not been drawn since the last capture
+        if (skipUnchangedFrames && !keepAliveDue && !viewDrawn.get()) {
+            skippedFrameCount.incrementAndGet()
+            return
+        }
+
+        // Drop the frame if the SDK still holds both buffers
+        val slot = captureSlots.firstOrNull { it.tryAcquire() } ?: return
+
+        // Draw or record the view at the capture size, the rest happens off the main thread
+        val captureDimensions = if (maxCaptureWidth > 0 && maxCaptureHeight > 0) {
+            fitDimensions(view.width, view.height, maxCaptureWidth, maxCaptureHeight)
+        } else {
+            VideoDimensions(view.width, view.height)
+        }
+        viewDrawn.set(false)
+        val drawStartNs = System.nanoTime()
+        if (rasterizeOffMainThread) {
+            slot.record(view, captureDimensions.width, captureDimensions.height)
+        } else {
+            slot.draw(view, captureDimensions.width, captureDimensions.height)
+        }
+        mainThreadDrawTime.record(System.nanoTime() - drawStartNs)
+        val posted = captureHandler?.post { deliverFrame(slot, nowMs, keepAliveDue) } ?: false
+        if (!posted) {
+            slot.release()
+        }
+    }
+
+    /*
+     * Runs on the capture thread.
+     */
+    private fun deliverFrame(slot: CaptureSlot, captureTimeMs: Long, keepAliveDue: Boolean) {
+        if (rasterizeOffMainThread) {
+            slot.rasterize()
+        }
+        slot.copyPixels()
+
+        // A redraw does not always change pixels, so compare with the last frame sent
+        if (skipUnchangedFrames) {
+            val frameHash = slot.hashPixels()
+            if (!keepAliveDue && frameHash == lastFrameHash) {
+                skippedFrameCount.incrementAndGet()
+                slot.release()
+                return
+            }
+            lastFrameHash = frameHash
+        }
+        lastFrameTimeMs = captureTimeMs
+
+        // Create video frame
+        val captureTimeNs =
+            TimeUnit.MILLISECONDS.toNanos(captureTimeMs)
+        val videoBuffer: VideoFrame.Buffer = RecyclableBuffer(
+            Argb8888Buffer(slot.buffer, slot.width, slot.height),
+            slot::release,
+        )
+        val videoFrame = VideoFrame(videoBuffer, 0, captureTimeNs)
+
+        // Notify the observer
+        if (started.get()) {
+            capturerObserver?.onFrameCaptured(videoFrame)
+            sentFrameCount.incrementAndGet()
+        }
+        videoFrame.release()
+    }
+
+    /*
+     * Posts the next capture at its absolute deadline. If capturing ran past one or more
+     * deadlines, those frames are dropped and the schedule resumes at the next future deadline.
+     */
     private fun scheduleNextCapture() {
-        handler.postDelayed(viewCapturer, VIEW_CAPTURER_FRAMERATE_MS.toLong())
+        val nowNs = SystemClock.uptimeMillis() * NANOS_PER_MILLI
+        frameIndex++
+        val dueIndex = (nowNs - captureStartNs) / frameIntervalNs + 1
+        if (dueIndex > frameIndex) {
+            missedDeadlineCount.addAndGet(dueIndex - frameIndex)
+            frameIndex = dueIndex
+        }
+        val deadlineMs = (captureStartNs + frameIndex * frameIntervalNs) / NANOS_PER_MILLI
+        handler.postAtTime(viewCapturer, deadlineMs)
+    }
+
+    /**
+     * One half of the capture double buffer. A slot owns a bitmap and a direct buffer sized for
+     * the view, and stays in use from the moment it is drawn until the SDK releases the frame
+     * that wraps its buffer. Memory is only reallocated when the capture size changes.
+     */
+    private class CaptureSlot {
+        private val inUse = AtomicBoolean(false)
+        private val canvas = Canvas()
+        private val picture = Picture()
+        private var bitmap: Bitmap? = null
+        private var scaleX = 1f
+        private var scaleY = 1f
+        lateinit var buffer: ByteBuffer
+            private set
+        var width = 0
+            private set
+        var height = 0
+            private set
+
+        fun tryAcquire(): Boolean = inUse.compareAndSet(false, true)
+
+        fun release() {
+            inUse.set(false)
+        }
+
+        fun draw(view: View, width: Int, height: Int) {
+            val bitmap = obtainBitmap(width, height)
+            bitmap.eraseColor(Color.TRANSPARENT)
+            setScale(view, width, height)
+            drawScaled { view.draw(canvas) }
+        }
+
+        /**
+         * Records the view's drawing commands without rasterizing them. Must be called on the
+         * main thread.
+         */
+        fun record(view: View, width: Int, height: Int) {
+            obtainBitmap(width, height)
+            setScale(view, width, height)
+            val recordingCanvas = picture.beginRecording(view.width, view.height)
+            view.draw(recordingCanvas)
+            picture.endRecording()
+        }
+
+        /**
+         * Plays the last recording back into the slot's bitmap. Safe to call off the main thread
+         * because the recording no longer references the view.
+         */
+        fun rasterize() {
+            bitmap?.eraseColor(Color.TRANSPARENT)
+            drawScaled { canvas.drawPicture(picture) }
+        }
+
+        fun copyPixels() {
+            buffer.clear()
+            bitmap?.copyPixelsToBuffer(buffer)
+            buffer.rewind()
+        }
+
+        /**
+         * Hashes the captured pixels eight bytes at a time. This is much cheaper than encoding
+         * and sending an unchanged frame.
+         */
+        fun hashPixels(): Long {
+            val bytes = buffer.duplicate().order(ByteOrder.nativeOrder())
+            val pixels = bytes.asLongBuffer()
+            var hash = FNV_OFFSET_BASIS
+            while (pixels.hasRemaining()) {
+                hash = (hash xor pixels.get()) * FNV_PRIME
+            }
+            // With an odd pixel count the long view leaves out the last pixel
+            if (bytes.limit() % 8 != 0) {
+                hash = (hash xor bytes.getInt(bytes.limit() - 4).toLong()) * FNV_PRIME
+            }
+            return hash
+        }
+
+        private fun setScale(view: View, width: Int, height: Int) {
+            scaleX = width.toFloat() / view.width
+            scaleY = height.toFloat() / view.height
+        }
+
+        private inline fun drawScaled(block: () -> Unit) {
+            val saveCount = canvas.save()
+            canvas.scale(scaleX, scaleY)
+            block()
+            canvas.restoreToCount(saveCount)
+        }
+
+        private fun obtainBitmap(width: Int, height: Int): Bitmap {
+            val current = bitmap
+            if (current != null && this.width == width && this.height == height) {
+                return current
+            }
+            current?.recycle()
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).also {
+                bitmap = it
+                canvas.setBitmap(it)
+                buffer = ByteBuffer.allocateDirect(it.byteCount)
+                this.width = width
+                this.height = height
+            }
+        }
     }
 
     companion object {
-        private const val VIEW_CAPTURER_FRAMERATE_MS = 100
+        /*
+         * Returns the largest dimensions with the aspect ratio of the view that fit within the
+         * provided bounds in either orientation. Dimensions are rounded down to even values and
+         * are never larger than the view.
+         */
+        private fun fitDimensions(
+            viewWidth: Int,
+            viewHeight: Int,
+            maxWidth: Int,
+            maxHeight: Int,
+        ): VideoDimensions {
+            val maxLong = maxOf(maxWidth, maxHeight)
+            val maxShort = minOf(maxWidth, maxHeight)
+            val viewLong = maxOf(viewWidth, viewHeight)
+            val viewShort = minOf(viewWidth, viewHeight)
+            val scale = minOf(1.0, maxLong.toDouble() / viewLong, maxShort.toDouble() / viewShort)
+            if (scale >= 1.0) {
+                return VideoDimensions(viewWidth, viewHeight)
+            }
+            val width = maxOf(2, (viewWidth * scale).toInt() and 1.inv())
+            val height = maxOf(2, (viewHeight * scale).toInt() and 1.inv())
+            return VideoDimensions(width, height)
+        }
+
+        private const val DEFAULT_FRAMERATE = 10
+        private const val MAX_FRAMERATE = 30
+        private const val DEFAULT_KEEP_ALIVE_INTERVAL_MS = 1000L
+        private const val NANOS_PER_MILLI = 1_000_000L
+        private const val NANOS_PER_SECOND = 1_000_000_000L
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
     }
 }
@@ -91,6 +91,7 @@ class CustomVideoSinkVideoActivity : Activity() {
         localVideoTrack?.removeSink(localVideoView)
         localVideoTrack?.removeSink(snapshotVideoRenderer)
         localVideoTrack?.release()
+        snapshotVideoRenderer.release()
         super.onDestroy()
     }
 
@@ -2,39 +2,116 @@ package com.twilio.video.examples.customvideosink
 
 import android.os.Handler
 import android.os.Looper
+import android.util.Log
 import android.widget.ImageView
-import com.twilio.video.examples.common.toBitmap
+import com.twilio.video.examples.common.LatencyStats
+import com.twilio.video.examples.common.SnapshotCallback
+import com.twilio.video.examples.common.SnapshotHandle
+import com.twilio.video.examples.common.SnapshotOptions
+import com.twilio.video.examples.common.SnapshotRequestQueue
 import tvi.webrtc.VideoFrame
 import tvi.webrtc.VideoSink
-import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 /**
- * SnapshotVideoSink demonstrates how to implement a custom [tvi.webrtc.VideoSink]. Caches the
- * last frame rendered and will update the provided image view any time [takeSnapshot] is
- * invoked.
+ * SnapshotVideoSink demonstrates how to implement a custom [tvi.webrtc.VideoSink]. Any time
+ * [takeSnapshot] is invoked the next frame rendered is converted and shown in the provided image
+ * view.
+ *
+ * Frames are only retained while a snapshot is pending and the conversion runs on a bounded
+ * background worker, so the rendering thread is never blocked. All requests that arrive before
+ * the next frame are satisfied by a single conversion per requested format.
  */
 class SnapshotVideoSink(private val imageView: ImageView) : VideoSink {
-    private val snapshotRequsted =
-        AtomicBoolean(false)
+    private val snapshotRequests = SnapshotRequestQueue()
+    private val droppedSnapshotCount = AtomicLong()
     private val handler = Handler(Looper.getMainLooper())
+    private val snapshotExecutor = ThreadPoolExecutor(
+        1,
+        1,
+        0L,
+        TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue<Runnable>(MAX_PENDING_SNAPSHOTS),
+        ThreadFactory { Thread(it, "SnapshotThread") },
+    )
+
+    /**
+     * Time from a snapshot request until its result is ready.
+     */
+    val snapshotLatency = LatencyStats()
+
+    /**
+     * Number of snapshot requests dropped because the worker already had a full queue.
+     */
+    val droppedSnapshots: Long
+        get() = droppedSnapshotCount.get()
 
     override fun onFrame(videoFrame: VideoFrame) {
+        if (!snapshotRequests.hasPending) {
+            return
+        }
+        val requests = snapshotRequests.drain()
         videoFrame.retain()
-        if (snapshotRequsted.compareAndSet(true, false)) {
-            val bitmap = videoFrame.toBitmap()
-            handler.post {
-                imageView.setImageBitmap(bitmap)
-                videoFrame.release()
+        try {
+            snapshotExecutor.execute {
+                /*
+                 * The worker has no EGL context, so texture frames are converted by the buffer
+                 * on its own EGL thread instead of through YuvConverterCache.
+                 */
+                try {
+                    SnapshotRequestQueue.fulfil(videoFrame, requests)
+                } finally {
+                    videoFrame.release()
+                }
             }
-        } else {
+        } catch (e: RejectedExecutionException) {
             videoFrame.release()
+            droppedSnapshotCount.addAndGet(requests.size.toLong())
+            Log.w(TAG, "Dropped snapshot, $droppedSnapshots dropped so far")
+            SnapshotRequestQueue.reject(requests)
         }
     }
 
     /**
-     * Request a snapshot on the rendering thread.
+     * Request a snapshot of the next rendered frame and show it in the image view.
      */
     fun takeSnapshot() {
-        snapshotRequsted.set(true)
+        takeSnapshot(SnapshotOptions()) { snapshot ->
+            val bitmap = snapshot?.bitmap
+            handler.post {
+                imageView.setImageBitmap(bitmap)
+            }
+        }
+    }
+
+    /**
+     * Request a snapshot of the next rendered frame. The callback is invoked on the snapshot
+     * worker thread.
+     */
+    fun takeSnapshot(options: SnapshotOptions, callback: SnapshotCallback): SnapshotHandle {
+        lateinit var handle: SnapshotHandle
+        handle = snapshotRequests.enqueue(options) { snapshot ->
+            snapshotLatency.record(System.nanoTime() - handle.requestTimeNs)
+            Log.d(TAG, "Snapshot latency: $snapshotLatency, dropped: $droppedSnapshots")
+            callback(snapshot)
+        }
+        return handle
+    }
+
+    /**
+     * Stops the snapshot worker. Pending snapshots are still delivered.
+     */
+    fun release() {
+        snapshotExecutor.shutdown()
+    }
+
+    companion object {
+        private const val TAG = "SnapshotVideoSink"
+        private const val MAX_PENDING_SNAPSHOTS = 2
     }
 }